@@ -1,14 +1,32 @@
 package com.weddini.throttling.autoconfigure;
 
+import com.weddini.throttling.ThrottlingJournal;
 import com.weddini.throttling.service.ThrottlingEvaluator;
 import com.weddini.throttling.service.ThrottlingEvaluatorImpl;
 import com.weddini.throttling.service.ThrottlingService;
 import com.weddini.throttling.service.ThrottlingServiceImpl;
+import com.weddini.throttling.store.CounterTransport;
+import com.weddini.throttling.store.JdbcThrottlingStore;
+import com.weddini.throttling.store.RedisThrottlingStore;
+import com.weddini.throttling.store.ReplicatedThrottlingStore;
+import com.weddini.throttling.store.ShardedThrottlingStore;
+import com.weddini.throttling.store.StripedThrottlingStore;
+import com.weddini.throttling.store.ThrottlingPeerServer;
+import com.weddini.throttling.store.ThrottlingStore;
+import com.weddini.throttling.store.UdpCounterTransport;
+import com.weddini.throttling.support.AccessList;
+import com.weddini.throttling.support.AddressMask;
+import com.weddini.throttling.support.LimitOverrides;
 import com.weddini.throttling.support.ThrottlingBeanPostProcessor;
 import com.weddini.throttling.support.ThrottlingInterceptor;
+import com.weddini.throttling.support.ThrottlingManagement;
+import com.weddini.throttling.support.WheelTimer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -17,6 +35,18 @@ import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
 @Configuration
 @ConditionalOnClass(ThrottlingBeanPostProcessor.class)
 @EnableConfigurationProperties(ThrottlingProperties.class)
@@ -25,10 +55,16 @@ public class ThrottlingAutoConfiguration {
     private static final int DEFAULT_LRU_CACHE_CAPACITY = 10000;
 
     private final ThrottlingProperties throttlingProperties;
+    private final ObjectProvider<ThrottlingStore> throttlingStore;
+    private final ObjectProvider<ThrottlingJournal> throttlingJournal;
 
     @Autowired
-    public ThrottlingAutoConfiguration(ThrottlingProperties throttlingProperties) {
+    public ThrottlingAutoConfiguration(ThrottlingProperties throttlingProperties,
+                                       ObjectProvider<ThrottlingStore> throttlingStore,
+                                       ObjectProvider<ThrottlingJournal> throttlingJournal) {
         this.throttlingProperties = throttlingProperties;
+        this.throttlingStore = throttlingStore;
+        this.throttlingJournal = throttlingJournal;
     }
 
     @Bean
@@ -41,7 +77,14 @@ public class ThrottlingAutoConfiguration {
     @ConditionalOnMissingBean
     @ConditionalOnWebApplication
     public ThrottlingInterceptor throttlingInterceptor() {
-        return new ThrottlingInterceptor(throttlingEvaluator(), throttlingService());
+        return new ThrottlingInterceptor(throttlingEvaluator(), throttlingService(), throttlingTimer());
+    }
+
+    @Bean(destroyMethod = "stop")
+    @ConditionalOnMissingBean
+    @ConditionalOnWebApplication
+    public WheelTimer throttlingTimer() {
+        return new WheelTimer();
     }
 
     @Bean
@@ -59,14 +102,129 @@ public class ThrottlingAutoConfiguration {
     @Bean
     @ConditionalOnMissingBean
     public ThrottlingEvaluator throttlingEvaluator() {
-        return new ThrottlingEvaluatorImpl();
+        return new ThrottlingEvaluatorImpl(new AddressMask(
+                throttlingProperties.getIpv4PrefixLength() != null ? throttlingProperties.getIpv4PrefixLength() : 32,
+                throttlingProperties.getIpv6PrefixLength() != null ? throttlingProperties.getIpv6PrefixLength() : 128));
     }
 
     @Bean
     @ConditionalOnMissingBean
     public ThrottlingService throttlingService() {
-        return new ThrottlingServiceImpl(throttlingProperties.getLruCacheCapacity() != null ?
-                throttlingProperties.getLruCacheCapacity() : DEFAULT_LRU_CACHE_CAPACITY);
+        ThrottlingService service = new ThrottlingServiceImpl(throttlingProperties.getLruCacheCapacity() != null ?
+                throttlingProperties.getLruCacheCapacity() : DEFAULT_LRU_CACHE_CAPACITY, throttlingAccessList(),
+                throttlingProperties.getPartitions(), throttlingStore.getIfAvailable(),
+                throttlingProperties.getRedis().getLeaseSize(), throttlingProperties.getRedis().getLeaseDuration());
+        service.setLimitOverrides(throttlingLimitOverrides());
+        ThrottlingJournal journal = throttlingJournal.getIfAvailable();
+        if (journal != null) {
+            // the journal supersedes the snapshot
+            service.setJournal(journal);
+        } else if (throttlingProperties.getSnapshotFile() != null) {
+            service.restoreSnapshot(path(throttlingProperties.getSnapshotFile()));
+        }
+        return service;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "spring.throttling", name = "snapshot-file")
+    public DisposableBean throttlingSnapshot() {
+        ThrottlingService service = throttlingService();
+        if (throttlingJournal.getIfAvailable() != null) {
+            // never restored, the journal supersedes it
+            return () -> {
+            };
+        }
+        return () -> service.writeSnapshot(path(throttlingProperties.getSnapshotFile()));
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "spring.throttling.journal", name = "directory")
+    public ThrottlingJournal throttlingJournal() throws IOException {
+        ThrottlingProperties.Journal journal = throttlingProperties.getJournal();
+        return new ThrottlingJournal(path(journal.getDirectory()), journal.getFlushInterval(), journal.getSegmentSize(),
+                journal.getCompactionInterval());
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "spring.throttling.redis", name = "host")
+    public ThrottlingStore throttlingStore() {
+        ThrottlingProperties.Redis redis = throttlingProperties.getRedis();
+        return new RedisThrottlingStore(redis.getHost(), redis.getPort(), redis.getTimeout());
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "spring.throttling.cluster", name = "port")
+    public ThrottlingStore clusterThrottlingStore() throws IOException {
+        ThrottlingProperties.Cluster cluster = throttlingProperties.getCluster();
+        if (cluster.getMode() == ThrottlingProperties.Cluster.Mode.SHARDED) {
+            if (cluster.getNodeId() == null) {
+                throw new IllegalStateException("spring.throttling.cluster.node-id is required once sharded");
+            }
+            Map<String, InetSocketAddress> nodes = new HashMap<>();
+            nodes.put(cluster.getNodeId(), address(cluster.getNodeId()));
+            for (String peer : cluster.getPeers()) {
+                nodes.put(peer, address(peer));
+            }
+            byte[] secret = cluster.getSecret() != null ? cluster.getSecret().getBytes(StandardCharsets.UTF_8) : null;
+            String bindAddress = cluster.getBindAddress() != null ? cluster.getBindAddress() : nodes.get(cluster.getNodeId()).getHostString();
+            ThrottlingPeerServer server = new ThrottlingPeerServer(new InetSocketAddress(bindAddress, cluster.getPort()),
+                    new StripedThrottlingStore(), secret);
+            return new ShardedThrottlingStore(cluster.getNodeId(), nodes, server, ShardedThrottlingStore.DEFAULT_TIMEOUT, secret);
+        }
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : cluster.getPeers()) {
+            peers.add(address(peer));
+        }
+        CounterTransport transport = new UdpCounterTransport(cluster.getPort(), peers,
+                cluster.getSecret() != null ? cluster.getSecret().getBytes(StandardCharsets.UTF_8) : null);
+        return new ReplicatedThrottlingStore(cluster.getNodeId() != null ? cluster.getNodeId() : UUID.randomUUID().toString(),
+                transport, cluster.getReplicationInterval());
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "spring.throttling.jdbc", name = "enabled", havingValue = "true")
+    public ThrottlingStore jdbcThrottlingStore(ObjectProvider<DataSource> dataSource) {
+        ThrottlingProperties.Jdbc jdbc = throttlingProperties.getJdbc();
+        if (dataSource.getIfAvailable() == null) {
+            throw new IllegalStateException("spring.throttling.jdbc.enabled requires a DataSource");
+        }
+        JdbcThrottlingStore store = new JdbcThrottlingStore(dataSource.getIfAvailable(), jdbc.getTable(),
+                jdbc.getFlushInterval(), jdbc.getMaxStaleness());
+        if (jdbc.isInitializeSchema()) {
+            store.createTable();
+        }
+        return store;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public ThrottlingManagement throttlingManagement() {
+        return new ThrottlingManagement(throttlingService(), throttlingLimitOverrides(), throttlingAccessList());
+    }
+
+    @Bean(initMethod = "reload")
+    @ConditionalOnMissingBean
+    public AccessList throttlingAccessList() {
+        return new AccessList(path(throttlingProperties.getAllowlistFile()), path(throttlingProperties.getDenylistFile()));
+    }
+
+    @Bean(initMethod = "reload")
+    @ConditionalOnMissingBean
+    public LimitOverrides throttlingLimitOverrides() {
+        return new LimitOverrides(path(throttlingProperties.getLimitOverridesFile()), throttlingProperties.getLimitOverrides());
+    }
+
+    private static InetSocketAddress address(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        return new InetSocketAddress(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    private static Path path(String file) {
+        return file != null ? Paths.get(file) : null;
     }
 
 }
@@ -2,11 +2,77 @@ package com.weddini.throttling.autoconfigure;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 @ConfigurationProperties(prefix = "spring.throttling")
 public class ThrottlingProperties {
 
     private Integer lruCacheCapacity;
 
+    /**
+     * File of evaluated values never throttled, a value per line.
+     */
+    private String allowlistFile;
+
+    /**
+     * File of evaluated values always rejected, a value per line.
+     */
+    private String denylistFile;
+
+    /**
+     * File of limits of evaluated values overriding the annotations, an override per line,
+     * e.g. {@code ReportController#export acme 1000/MINUTES}.
+     */
+    private String limitOverridesFile;
+
+    /**
+     * Limits of evaluated values overriding the annotations, in the format of the file.
+     */
+    private List<String> limitOverrides = new ArrayList<>();
+
+    /**
+     * File the rate limits are saved to on shutdown and restored from on startup.
+     */
+    private String snapshotFile;
+
+    /**
+     * Number of leading bits of IPv4 remote addresses throttled together, e.g. 24. Default is 32, i.e. per address.
+     */
+    private Integer ipv4PrefixLength;
+
+    /**
+     * Number of leading bits of IPv6 remote addresses throttled together, e.g. 64. Default is 128, i.e. per address.
+     */
+    private Integer ipv6PrefixLength;
+
+    /**
+     * Capacities of cache partitions by name, see {@code @Throttling(partition = ...)}.
+     */
+    private Map<String, Integer> partitions = new HashMap<>();
+
+    /**
+     * Redis server holding the rate limits shared by all the replicas.
+     */
+    private final Redis redis = new Redis();
+
+    /**
+     * Nodes exchanging their counts of the rate limits, without a central server.
+     */
+    private final Cluster cluster = new Cluster();
+
+    /**
+     * Table of the application database holding the rate limits shared by all the replicas.
+     */
+    private final Jdbc jdbc = new Jdbc();
+
+    /**
+     * Journal of the calls of the rate limits on the local disk, replayed after a crash.
+     */
+    private final Journal journal = new Journal();
+
     public ThrottlingProperties() {
     }
 
@@ -21,4 +87,374 @@ public class ThrottlingProperties {
     public void setLruCacheCapacity(Integer lruCacheCapacity) {
         this.lruCacheCapacity = lruCacheCapacity;
     }
+
+    public String getAllowlistFile() {
+        return allowlistFile;
+    }
+
+    public void setAllowlistFile(String allowlistFile) {
+        this.allowlistFile = allowlistFile;
+    }
+
+    public String getDenylistFile() {
+        return denylistFile;
+    }
+
+    public void setDenylistFile(String denylistFile) {
+        this.denylistFile = denylistFile;
+    }
+
+    public String getLimitOverridesFile() {
+        return limitOverridesFile;
+    }
+
+    public void setLimitOverridesFile(String limitOverridesFile) {
+        this.limitOverridesFile = limitOverridesFile;
+    }
+
+    public List<String> getLimitOverrides() {
+        return limitOverrides;
+    }
+
+    public void setLimitOverrides(List<String> limitOverrides) {
+        this.limitOverrides = limitOverrides;
+    }
+
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public Integer getIpv4PrefixLength() {
+        return ipv4PrefixLength;
+    }
+
+    public void setIpv4PrefixLength(Integer ipv4PrefixLength) {
+        this.ipv4PrefixLength = ipv4PrefixLength;
+    }
+
+    public Integer getIpv6PrefixLength() {
+        return ipv6PrefixLength;
+    }
+
+    public void setIpv6PrefixLength(Integer ipv6PrefixLength) {
+        this.ipv6PrefixLength = ipv6PrefixLength;
+    }
+
+    public Map<String, Integer> getPartitions() {
+        return partitions;
+    }
+
+    public void setPartitions(Map<String, Integer> partitions) {
+        this.partitions = partitions;
+    }
+
+    public Redis getRedis() {
+        return redis;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public Jdbc getJdbc() {
+        return jdbc;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    public static class Redis {
+
+        /**
+         * Host of the Redis server, rate limits are enforced by each replica on its own if not set.
+         */
+        private String host;
+
+        private int port = 6379;
+
+        /**
+         * Max time in milliseconds to connect and to wait for a reply, calls are allowed once exceeded.
+         */
+        private long timeout = 1000;
+
+        /**
+         * Number of permits of a key leased from Redis at once and served locally, 0 to decide each call by Redis.
+         */
+        private int leaseSize;
+
+        /**
+         * Time in milliseconds unused leased permits are returned to Redis after.
+         */
+        private long leaseDuration = 1000;
+
+        public String getHost() {
+            return host;
+        }
+
+        public void setHost(String host) {
+            this.host = host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+
+        public int getLeaseSize() {
+            return leaseSize;
+        }
+
+        public void setLeaseSize(int leaseSize) {
+            this.leaseSize = leaseSize;
+        }
+
+        public long getLeaseDuration() {
+            return leaseDuration;
+        }
+
+        public void setLeaseDuration(long leaseDuration) {
+            this.leaseDuration = leaseDuration;
+        }
+    }
+
+    public static class Cluster {
+
+        public enum Mode {
+            /**
+             * Each node counts all the keys and exchanges its counts with its peers.
+             */
+            REPLICATED,
+            /**
+             * Each key is counted by a single node, the others forward their calls to it.
+             */
+            SHARDED
+        }
+
+        private Mode mode = Mode.REPLICATED;
+
+        /**
+         * Port receiving the counts of the peers over UDP, or the forwarded calls over TCP once sharded.
+         * Rate limits are not shared between the nodes if not set.
+         */
+        private Integer port;
+
+        /**
+         * Addresses of the other nodes, as host:port.
+         */
+        private List<String> peers = new ArrayList<>();
+
+        /**
+         * Id of the node, unique in the cluster. Default is a random id once replicated, required once sharded:
+         * the host:port the peers reach the node at.
+         */
+        private String nodeId;
+
+        /**
+         * Time in milliseconds between two exchanges of the counts.
+         */
+        private long replicationInterval = 100;
+
+        /**
+         * Secret shared by the nodes, authenticating the counts they exchange, or the nodes forwarding calls once
+         * sharded. Counts of other addresses than the peers are dropped regardless.
+         */
+        private String secret;
+
+        /**
+         * Local address the forwarded calls are accepted on once sharded. Default is the host of node-id.
+         */
+        private String bindAddress;
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public void setMode(Mode mode) {
+            this.mode = mode;
+        }
+
+        public Integer getPort() {
+            return port;
+        }
+
+        public void setPort(Integer port) {
+            this.port = port;
+        }
+
+        public List<String> getPeers() {
+            return peers;
+        }
+
+        public void setPeers(List<String> peers) {
+            this.peers = peers;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public void setNodeId(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        public long getReplicationInterval() {
+            return replicationInterval;
+        }
+
+        public void setReplicationInterval(long replicationInterval) {
+            this.replicationInterval = replicationInterval;
+        }
+
+        public String getSecret() {
+            return secret;
+        }
+
+        public void setSecret(String secret) {
+            this.secret = secret;
+        }
+
+        public String getBindAddress() {
+            return bindAddress;
+        }
+
+        public void setBindAddress(String bindAddress) {
+            this.bindAddress = bindAddress;
+        }
+    }
+
+    public static class Jdbc {
+
+        /**
+         * Whether rate limits are kept in the database of the application data source.
+         */
+        private boolean enabled;
+
+        private String table = "throttling_counter";
+
+        /**
+         * Whether the table is created on startup.
+         */
+        private boolean initializeSchema;
+
+        /**
+         * Time in milliseconds between two writes of the permits taken meanwhile.
+         */
+        private long flushInterval = 20;
+
+        /**
+         * Max age in milliseconds of the local copy of the counts of a key.
+         */
+        private long maxStaleness = 1000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public void setTable(String table) {
+            this.table = table;
+        }
+
+        public boolean isInitializeSchema() {
+            return initializeSchema;
+        }
+
+        public void setInitializeSchema(boolean initializeSchema) {
+            this.initializeSchema = initializeSchema;
+        }
+
+        public long getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(long flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public long getMaxStaleness() {
+            return maxStaleness;
+        }
+
+        public void setMaxStaleness(long maxStaleness) {
+            this.maxStaleness = maxStaleness;
+        }
+    }
+
+    public static class Journal {
+
+        /**
+         * Directory of the journal, calls are not journaled if not set.
+         */
+        private String directory;
+
+        /**
+         * Time in milliseconds between two writes of the calls taken meanwhile, each forced to the disk at once.
+         */
+        private long flushInterval = 10;
+
+        /**
+         * Size in bytes of a segment of the journal.
+         */
+        private int segmentSize = 16 * 1024 * 1024;
+
+        /**
+         * Time in milliseconds between two compactions of the segments into a snapshot, 0 to never compact.
+         */
+        private long compactionInterval = 60000;
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public long getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(long flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        public void setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        public long getCompactionInterval() {
+            return compactionInterval;
+        }
+
+        public void setCompactionInterval(long compactionInterval) {
+            this.compactionInterval = compactionInterval;
+        }
+    }
 }
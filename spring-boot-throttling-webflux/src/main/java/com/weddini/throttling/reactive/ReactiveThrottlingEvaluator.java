@@ -0,0 +1,23 @@
+package com.weddini.throttling.reactive;
+
+import com.weddini.throttling.Throttling;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Method;
+
+
+public interface ReactiveThrottlingEvaluator {
+
+    Mono<String> evaluate(Throttling throttlingConfig, Object bean, Class clazz, Method method, ServerWebExchange exchange);
+
+    /**
+     * Evaluates the cost of an exchange, whose handler arguments are not resolved yet when it is throttled.
+     *
+     * @return number of permits the exchange costs {@see Throttling#cost()}
+     */
+    default int evaluateCost(Throttling throttlingConfig, Object bean, Class clazz, Method method, ServerWebExchange exchange) {
+        return 1;
+    }
+
+}
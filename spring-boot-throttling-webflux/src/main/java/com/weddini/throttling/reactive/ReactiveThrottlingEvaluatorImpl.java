@@ -0,0 +1,134 @@
+package com.weddini.throttling.reactive;
+
+import com.weddini.throttling.Throttling;
+import com.weddini.throttling.support.AddressMask;
+import com.weddini.throttling.support.SpElEvaluator;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpCookie;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.util.StringUtils;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.weddini.throttling.ThrottlingType.SpEL;
+
+/**
+ * {@link ReactiveThrottlingEvaluator} reading the throttling context from the {@link ServerWebExchange}
+ * instead of the thread-bound {@link org.springframework.web.context.request.RequestContextHolder}.
+ *
+ * <p>Exchanges are throttled before their handler arguments are resolved, so SpEL expressions of keys and costs are
+ * evaluated against the exchange, available as {@code #exchange}, and its request, available as {@code #request},
+ * e.g. {@code #request.headers.getFirst('X-Tenant')}. Handler arguments, e.g. {@code #model.userName}, are not available.
+ */
+public class ReactiveThrottlingEvaluatorImpl implements ReactiveThrottlingEvaluator {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final SpElEvaluator spElEvaluator;
+    private final AddressMask addressMask;
+
+    public ReactiveThrottlingEvaluatorImpl() {
+        this(AddressMask.NONE);
+    }
+
+    /**
+     * @param addressMask networks remote addresses are aggregated into
+     */
+    public ReactiveThrottlingEvaluatorImpl(AddressMask addressMask) {
+        this.spElEvaluator = new SpElEvaluator();
+        this.addressMask = addressMask;
+    }
+
+    @Override
+    public Mono<String> evaluate(Throttling throttlingConfig, Object bean, Class clazz, Method method, ServerWebExchange exchange) {
+
+        if (throttlingConfig.type().equals(SpEL) && !StringUtils.isEmpty(throttlingConfig.expression())) {
+            try {
+                return Mono.justOrEmpty(spElEvaluator.evaluate(throttlingConfig.expression(), bean,
+                        variables(exchange), clazz, method));
+            } catch (Throwable t) {
+                if (logger.isErrorEnabled()) {
+                    logger.error("exception occurred while evaluating SpEl expression = '" +
+                            throttlingConfig.expression() + "', please check @Throttling configuration.", t);
+                }
+                return Mono.empty();
+            }
+        }
+
+        ServerHttpRequest request = exchange.getRequest();
+        String value = null;
+
+        switch (throttlingConfig.type()) {
+            case CookieValue:
+                if (!StringUtils.isEmpty(throttlingConfig.cookieName())) {
+                    HttpCookie cookie = request.getCookies().getFirst(throttlingConfig.cookieName());
+                    value = cookie != null ? cookie.getValue() : null;
+                } else {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("cannot resolve HTTP cookie value for empty cookie name, " +
+                                "please check @Throttling configuration.");
+                    }
+                }
+                break;
+
+            case HeaderValue:
+                if (!StringUtils.isEmpty(throttlingConfig.headerName())) {
+                    value = request.getHeaders().getFirst(throttlingConfig.headerName());
+                } else {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("cannot resolve HTTP header value for empty header name, " +
+                                "please check @Throttling configuration.");
+                    }
+                }
+                break;
+
+            case PrincipalName:
+                return exchange.getPrincipal()
+                        .map(Principal::getName)
+                        .switchIfEmpty(Mono.defer(() -> {
+                            if (logger.isWarnEnabled()) {
+                                logger.warn("cannot resolve exchange.getPrincipal().getName() " +
+                                        "since exchange.getPrincipal() is empty.");
+                            }
+                            return Mono.empty();
+                        }));
+
+            case RemoteAddr:
+                InetSocketAddress remoteAddress = request.getRemoteAddress();
+                if (remoteAddress != null) {
+                    value = remoteAddress.getAddress() != null ?
+                            addressMask.mask(remoteAddress.getAddress()) : remoteAddress.getHostString();
+                }
+                break;
+        }
+
+        return Mono.justOrEmpty(value);
+    }
+
+    private static Map<String, Object> variables(ServerWebExchange exchange) {
+        Map<String, Object> variables = new HashMap<>(4);
+        variables.put("exchange", exchange);
+        variables.put("request", exchange.getRequest());
+        return variables;
+    }
+
+    @Override
+    public int evaluateCost(Throttling throttlingConfig, Object bean, Class clazz, Method method, ServerWebExchange exchange) {
+        try {
+            return spElEvaluator.evaluateCost(throttlingConfig.cost(), bean, variables(exchange), clazz, method);
+        } catch (Throwable t) {
+            if (logger.isErrorEnabled()) {
+                logger.error("exception occurred while evaluating cost = '" +
+                        throttlingConfig.cost() + "', please check @Throttling configuration.", t);
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,171 @@
+package com.weddini.throttling.reactive;
+
+import com.weddini.throttling.Throttling;
+import com.weddini.throttling.ThrottlingDecision;
+import com.weddini.throttling.ThrottlingKey;
+import com.weddini.throttling.ThrottlingPermit;
+import com.weddini.throttling.service.ThrottlingService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * {@link WebFilter} applying {@link Throttling} configuration of annotated WebFlux handler methods.
+ *
+ * <p>Reactive counterpart of {@link com.weddini.throttling.support.ThrottlingInterceptor}: the handler is resolved
+ * through the given {@link HandlerMapping}s, the throttling context is read from the {@link ServerWebExchange}
+ * and rejected exchanges are completed with {@code 429 Too Many Requests}. The gauges are lock-free,
+ * so the filter never parks an event-loop thread, and delayed exchanges are resumed by a timer.
+ * Decisions of a {@link ThrottlingService#isBlocking() blocking} service, e.g. backed by a shared store, wait for
+ * the network, those are made on the given scheduler instead, {@link Schedulers#elastic()} by default.
+ */
+public class ThrottlingWebFilter implements WebFilter {
+
+    private static final String PERMIT_ATTRIBUTE = ThrottlingWebFilter.class.getName() + ".PERMIT";
+    private static final String START_ATTRIBUTE = ThrottlingWebFilter.class.getName() + ".START";
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final List<HandlerMapping> handlerMappings;
+    private final ReactiveThrottlingEvaluator throttlingEvaluator;
+    private final ThrottlingService throttlingService;
+    // null to decide on the calling thread
+    private final Scheduler decisionScheduler;
+
+    public ThrottlingWebFilter(List<HandlerMapping> handlerMappings, ReactiveThrottlingEvaluator throttlingEvaluator,
+                               ThrottlingService throttlingService) {
+        this(handlerMappings, throttlingEvaluator, throttlingService, Schedulers.elastic());
+    }
+
+    /**
+     * @param decisionScheduler scheduler of the decisions of a blocking service
+     */
+    public ThrottlingWebFilter(List<HandlerMapping> handlerMappings, ReactiveThrottlingEvaluator throttlingEvaluator,
+                               ThrottlingService throttlingService, Scheduler decisionScheduler) {
+        this.handlerMappings = handlerMappings;
+        this.throttlingEvaluator = throttlingEvaluator;
+        this.throttlingService = throttlingService;
+        this.decisionScheduler = throttlingService.isBlocking() ? decisionScheduler : null;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        return Flux.fromIterable(handlerMappings)
+                .concatMap(mapping -> mapping.getHandler(exchange))
+                .next()
+                .filter(HandlerMethod.class::isInstance)
+                .cast(HandlerMethod.class)
+                .flatMap(handlerMethod -> isAllowed(exchange, handlerMethod))
+                .defaultIfEmpty(Boolean.TRUE)
+                .flatMap(allowed -> {
+                    if (allowed) {
+                        if (exchange.getAttributes().containsKey(PERMIT_ATTRIBUTE)) {
+                            exchange.getAttributes().put(START_ATTRIBUTE, System.nanoTime());
+                        }
+                        return chain.filter(exchange);
+                    }
+                    exchange.getResponse().setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+                    return exchange.getResponse().setComplete();
+                })
+                // covers the whole exchange, so the permit is returned even if it is cancelled during its delay
+                .doFinally(signal -> release(exchange));
+    }
+
+    private static void release(ServerWebExchange exchange) {
+        ThrottlingPermit permit = (ThrottlingPermit) exchange.getAttributes().remove(PERMIT_ATTRIBUTE);
+        if (permit != null) {
+            Long start = (Long) exchange.getAttributes().remove(START_ATTRIBUTE);
+            permit.release(start != null ? System.nanoTime() - start : 0);
+        }
+    }
+
+    private Mono<Boolean> isAllowed(ServerWebExchange exchange, HandlerMethod handlerMethod) {
+
+        Throttling[] annotations = handlerMethod.getMethod().getAnnotationsByType(Throttling.class);
+
+        if (annotations.length == 0) {
+            return Mono.empty();
+        }
+
+        Throttling annotation = annotations[0];
+
+        List<Throttling[]> levels = ThrottlingKey.levels(annotations);
+
+        return Flux.fromIterable(levels)
+                .concatMap(level -> throttlingEvaluator.evaluate(level[0], handlerMethod.getBean(), handlerMethod.getBeanType(),
+                        handlerMethod.getMethod(), exchange)
+                        .map(Optional::of)
+                        .defaultIfEmpty(Optional.empty()))
+                .collectList()
+                .flatMap(values -> {
+                    List<String> evaluatedValues = new ArrayList<>(values.size());
+                    for (Optional<String> value : values) {
+                        evaluatedValues.add(value.orElse(null));
+                    }
+                    String evaluatedValue = evaluatedValues.get(0);
+
+                    List<ThrottlingKey> keys = ThrottlingKey.keys(handlerMethod.getMethod(), levels, evaluatedValues);
+
+                    int cost = throttlingEvaluator.evaluateCost(annotation, handlerMethod.getBean(), handlerMethod.getBeanType(),
+                            handlerMethod.getMethod(), exchange);
+
+                    return decide(keys, annotation.maxWait(), cost).flatMap(decision -> {
+                        setHeaders(exchange.getResponse().getHeaders(), decision);
+                        long delay = decision.getDelay();
+
+                        if (delay < 0) {
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("cannot proceed with a handling http request [" + exchange.getRequest().getURI()
+                                        + "] due to @Throttling configuration, type=" + annotation.type() + ", value=" + evaluatedValue);
+                            }
+                            return Mono.just(Boolean.FALSE);
+                        }
+                        if (ThrottlingKey.holdsPermit(keys)) {
+                            exchange.getAttributes().put(PERMIT_ATTRIBUTE, decision.getPermit());
+                        }
+                        return delay > 0 ?
+                                Mono.delay(Duration.ofMillis(delay)).map(tick -> Boolean.TRUE) :
+                                Mono.just(Boolean.TRUE);
+                    });
+                });
+    }
+
+    /**
+     * Decides on the calling thread unless the service is blocking.
+     */
+    private Mono<ThrottlingDecision> decide(List<ThrottlingKey> keys, long maxWait, int cost) {
+        if (decisionScheduler == null) {
+            return Mono.just(throttlingService.decide(keys, maxWait, cost));
+        }
+        return Mono.fromCallable(() -> throttlingService.decide(keys, maxWait, cost)).subscribeOn(decisionScheduler);
+    }
+
+    private static void setHeaders(HttpHeaders headers, ThrottlingDecision decision) {
+        if (decision.getRemaining() >= 0) {
+            headers.set(ThrottlingDecision.LIMIT_HEADER, String.valueOf(decision.getLimit()));
+            headers.set(ThrottlingDecision.REMAINING_HEADER, String.valueOf(decision.getRemaining()));
+        }
+        if (decision.hasResetAt()) {
+            headers.set(ThrottlingDecision.RESET_HEADER, String.valueOf(decision.getResetEpochSeconds()));
+            if (!decision.isAllowed()) {
+                headers.set(ThrottlingDecision.RETRY_AFTER_HEADER, String.valueOf(decision.getRetryAfterSeconds()));
+            }
+        }
+    }
+
+}
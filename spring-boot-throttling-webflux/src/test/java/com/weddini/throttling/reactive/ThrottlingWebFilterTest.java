@@ -0,0 +1,176 @@
+package com.weddini.throttling.reactive;
+
+import com.weddini.throttling.Throttling;
+import com.weddini.throttling.ThrottlingDecision;
+import com.weddini.throttling.ThrottlingKey;
+import com.weddini.throttling.ThrottlingMode;
+import com.weddini.throttling.ThrottlingType;
+import com.weddini.throttling.service.ThrottlingService;
+import com.weddini.throttling.service.ThrottlingServiceImpl;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.util.Assert;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ThrottlingWebFilterTest {
+
+    private final ThrottlingService throttlingService = new ThrottlingServiceImpl(100);
+    private final AtomicInteger handled = new AtomicInteger();
+    private final WebFilterChain chain = exchange -> {
+        handled.incrementAndGet();
+        return Mono.empty();
+    };
+
+    @Test
+    public void testAllow() throws Exception {
+        ThrottlingWebFilter filter = filter("limited");
+
+        MockServerWebExchange exchange = exchange("alice");
+        filter.filter(exchange, chain).block();
+
+        Assert.isTrue(handled.get() == 1, "Should pass the first exchange to the chain");
+        Assert.isTrue(exchange.getResponse().getStatusCode() == null, "Shouldn't set the status of an allowed exchange");
+        Assert.isTrue("0".equals(exchange.getResponse().getHeaders().getFirst(ThrottlingDecision.REMAINING_HEADER)),
+                "Should tell no permit is left");
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        ThrottlingWebFilter filter = filter("limited");
+        filter.filter(exchange("alice"), chain).block();
+
+        MockServerWebExchange rejected = exchange("alice");
+        filter.filter(rejected, chain).block();
+        Assert.isTrue(handled.get() == 1, "Shouldn't pass the second exchange of the value to the chain");
+        Assert.isTrue(rejected.getResponse().getStatusCode() == HttpStatus.TOO_MANY_REQUESTS, "Should reject with 429");
+        Assert.isTrue(rejected.getResponse().getHeaders().getFirst(ThrottlingDecision.RETRY_AFTER_HEADER) != null,
+                "Should tell when to retry");
+
+        // the expression is evaluated against the request of each exchange
+        filter.filter(exchange("bob"), chain).block();
+        Assert.isTrue(handled.get() == 2, "Should pass the exchange of another value to the chain");
+    }
+
+    @Test
+    public void testDelay() throws Exception {
+        ThrottlingWebFilter filter = filter("delayed");
+        filter.filter(exchange("alice"), chain).block();
+
+        long start = System.currentTimeMillis();
+        MockServerWebExchange delayed = exchange("alice");
+        filter.filter(delayed, chain).block();
+        long elapsed = System.currentTimeMillis() - start;
+
+        Assert.isTrue(handled.get() == 2, "Should pass the delayed exchange to the chain");
+        Assert.isTrue(delayed.getResponse().getStatusCode() == null, "Shouldn't reject the delayed exchange");
+        Assert.isTrue(elapsed >= 500, "Should delay the exchange until the next permit, but was " + elapsed + " ms");
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        ThrottlingWebFilter filter = filter("concurrent");
+
+        MockServerWebExchange nested = exchange("alice");
+        filter.filter(exchange("alice"), exchange -> {
+            handled.incrementAndGet();
+            // the permit is held until the chain of the first exchange completes
+            return filter.filter(nested, chain);
+        }).block();
+        Assert.isTrue(nested.getResponse().getStatusCode() == HttpStatus.TOO_MANY_REQUESTS,
+                "Should reject the exchange while the permit is held");
+
+        MockServerWebExchange released = exchange("alice");
+        filter.filter(released, chain).block();
+        Assert.isTrue(released.getResponse().getStatusCode() == null, "Should allow the exchange once the permit is released");
+        Assert.isTrue(handled.get() == 2, "Should pass the first and the last exchanges to the chain");
+    }
+
+    @Test
+    public void testCancelDuringDelay() throws Exception {
+        ThrottlingWebFilter filter = filter("delayedConcurrent");
+        filter.filter(exchange("alice"), chain).block();
+
+        // delayed by the rate of alice while holding the shared concurrency permit
+        Disposable delayed = filter.filter(exchange("alice"), chain).subscribe();
+        delayed.dispose();
+
+        MockServerWebExchange next = exchange("bob");
+        filter.filter(next, chain).block();
+        Assert.isTrue(next.getResponse().getStatusCode() == null, "Should release the permit of the exchange cancelled during its delay");
+        Assert.isTrue(handled.get() == 2, "Shouldn't pass the cancelled exchange to the chain");
+    }
+
+    @Test
+    public void testBlockingService() throws Exception {
+        AtomicReference<String> decidedOn = new AtomicReference<>();
+        ThrottlingService blockingService = new ThrottlingServiceImpl(100) {
+            @Override
+            public boolean isBlocking() {
+                return true;
+            }
+
+            @Override
+            public ThrottlingDecision decide(List<ThrottlingKey> keys, long maxWait, int permits) {
+                decidedOn.set(Thread.currentThread().getName());
+                return super.decide(keys, maxWait, permits);
+            }
+        };
+        ThrottlingWebFilter filter = new ThrottlingWebFilter(Collections.singletonList(mapping("limited")),
+                new ReactiveThrottlingEvaluatorImpl(), blockingService, Schedulers.newSingle("decisions"));
+
+        filter.filter(exchange("alice"), chain).block();
+        Assert.isTrue(handled.get() == 1, "Should pass the exchange decided off the calling thread to the chain");
+        Assert.isTrue(decidedOn.get().startsWith("decisions"), "Should decide on the scheduler, but was " + decidedOn.get());
+    }
+
+    private ThrottlingWebFilter filter(String methodName) throws NoSuchMethodException {
+        return new ThrottlingWebFilter(Collections.singletonList(mapping(methodName)), new ReactiveThrottlingEvaluatorImpl(),
+                throttlingService);
+    }
+
+    private static HandlerMapping mapping(String methodName) throws NoSuchMethodException {
+        HandlerMethod handlerMethod = new HandlerMethod(new Handlers(), Handlers.class.getMethod(methodName));
+        return exchange -> Mono.just(handlerMethod);
+    }
+
+    private static MockServerWebExchange exchange(String user) {
+        return MockServerWebExchange.from(MockServerHttpRequest.get("/").header("X-User", user).build());
+    }
+
+    public static class Handlers {
+
+        @Throttling(type = ThrottlingType.SpEL, expression = "#request.headers.getFirst('X-User')", limit = 1, timeUnit = TimeUnit.SECONDS)
+        public void limited() {
+        }
+
+        @Throttling(type = ThrottlingType.SpEL, expression = "#request.headers.getFirst('X-User')", limit = 1, timeUnit = TimeUnit.SECONDS,
+                maxWait = 2000)
+        public void delayed() {
+        }
+
+        @Throttling(type = ThrottlingType.SpEL, expression = "#exchange.request.headers.getFirst('X-User')", limit = 1,
+                mode = ThrottlingMode.CONCURRENCY)
+        public void concurrent() {
+        }
+
+        @Throttling(type = ThrottlingType.SpEL, expression = "#request.headers.getFirst('X-User')", limit = 1, timeUnit = TimeUnit.SECONDS,
+                maxWait = 2000)
+        @Throttling(type = ThrottlingType.SpEL, expression = "'shared'", limit = 1, mode = ThrottlingMode.CONCURRENCY)
+        public void delayedConcurrent() {
+        }
+    }
+
+}
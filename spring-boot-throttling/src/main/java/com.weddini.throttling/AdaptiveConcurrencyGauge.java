@@ -0,0 +1,35 @@
+package com.weddini.throttling;
+
+/**
+ * Class holding the number of method calls in flight against an {@link AdaptiveLimit}
+ * Used as a value in {@link com.weddini.throttling.cache.Cache} for {@link ThrottlingMode#ADAPTIVE}
+ */
+public class AdaptiveConcurrencyGauge extends ConcurrencyGauge {
+
+    private final AdaptiveLimit adaptiveLimit;
+
+    public AdaptiveConcurrencyGauge(AdaptiveLimit adaptiveLimit) {
+        super(adaptiveLimit.getLimit());
+        this.adaptiveLimit = adaptiveLimit;
+    }
+
+    @Override
+    public int getLimit() {
+        return adaptiveLimit.getLimit();
+    }
+
+    @Override
+    public boolean throttle() {
+        boolean allowed = super.throttle();
+        if (!allowed || getInFlight() >= getLimit()) {
+            adaptiveLimit.onSaturated();
+        }
+        return allowed;
+    }
+
+    @Override
+    public void release(long elapsedNanos) {
+        super.release(elapsedNanos);
+        adaptiveLimit.onCompleted(elapsedNanos);
+    }
+}
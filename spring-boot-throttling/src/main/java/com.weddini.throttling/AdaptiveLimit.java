@@ -0,0 +1,81 @@
+package com.weddini.throttling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Concurrency limit of a method following its measured latency.
+ *
+ * <p>Latencies of completed calls are recorded into a {@link LatencyHistogram}. Every {@code SAMPLE_SIZE} calls
+ * the 90th percentile is compared with a slowly moving baseline (AIMD): the limit backs off multiplicatively
+ * when the latency exceeds {@code TOLERANCE} times the baseline, and grows by one when calls were rejected
+ * or saturated the limit while the latency stayed healthy. The limit stays between 1 and {@code 10 * initialLimit}.
+ */
+public class AdaptiveLimit {
+
+    private static final int SAMPLE_SIZE = 100;
+    private static final double TOLERANCE = 2.0;
+    private static final double BACKOFF_RATIO = 0.9;
+    // the baseline moves by 1/BASELINE_SMOOTHING of the difference towards a higher sample
+    private static final int BASELINE_SMOOTHING = 20;
+
+    private final int maxLimit;
+    private final LatencyHistogram histogram;
+    private final AtomicBoolean updating;
+
+    private volatile int limit;
+    private volatile long baseline;
+    private volatile boolean saturated;
+
+    public AdaptiveLimit(int initialLimit) {
+        this.limit = Math.max(1, initialLimit);
+        this.maxLimit = limit * 10;
+        this.baseline = Long.MAX_VALUE;
+        this.histogram = new LatencyHistogram();
+        this.updating = new AtomicBoolean();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Marks the limit as reached by the calls in flight.
+     */
+    public void onSaturated() {
+        if (!saturated) {
+            saturated = true;
+        }
+    }
+
+    public void onCompleted(long elapsedNanos) {
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        if (histogram.getCount() >= SAMPLE_SIZE && updating.compareAndSet(false, true)) {
+            try {
+                update();
+            } finally {
+                updating.set(false);
+            }
+        }
+    }
+
+    private void update() {
+        long latency = histogram.getValueAtPercentile(0.9);
+        histogram.reset();
+
+        long currentBaseline = baseline;
+        if (latency < currentBaseline) {
+            baseline = latency;
+        } else {
+            baseline = currentBaseline + (latency - currentBaseline) / BASELINE_SMOOTHING;
+        }
+
+        // sub-microsecond baseline is rounded up, otherwise any measurable latency would look degraded
+        if (latency > Math.max(1, currentBaseline) * TOLERANCE) {
+            limit = Math.max(1, (int) (limit * BACKOFF_RATIO));
+        } else if (saturated) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+        saturated = false;
+    }
+}
@@ -0,0 +1,131 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.support.CountMinSketch;
+
+/**
+ * View of a single value in the sketches of a method for {@link ThrottlingMode#APPROXIMATE}, one sketch per window.
+ * The counts live in the shared sketches, so the view is created per call and never cached.
+ *
+ * <p>Calls are counted first and taken back if the estimate exceeds the limit, so racing calls may both be rejected
+ * but the limit is never exceeded. Reservations are not supported, a call either proceeds at once or is rejected.
+ */
+public class ApproximateThrottlingGauge extends ThrottlingGauge {
+
+    private final CountMinSketch[] sketches;
+    private final int[] limits;
+    private final long fingerprint;
+    // time the permits of the call were counted at, -1 if they were not
+    private long countedAt = -1;
+
+    /**
+     * @param sketches sketches of the method, one per limit
+     * @param limits   limits of the method
+     * @param value    the evaluated value
+     */
+    public ApproximateThrottlingGauge(CountMinSketch[] sketches, int[] limits, String value) {
+        super(limits[0]);
+        this.sketches = sketches;
+        this.limits = limits;
+        this.fingerprint = CountMinSketch.fingerprint(value);
+    }
+
+    @Override
+    public boolean throttle() {
+        return throttle(1);
+    }
+
+    @Override
+    public boolean throttle(int permits) {
+        return acquire(System.currentTimeMillis(), permits, null) < 0;
+    }
+
+    @Override
+    public long reserve(long maxWait) {
+        return reserve(maxWait, 1);
+    }
+
+    @Override
+    public long reserve(long maxWait, int permits) {
+        return throttle(permits) ? 0 : -1;
+    }
+
+    /**
+     * Describes the outcome by the window with the least remaining permits, reset once its oldest slice rotates out.
+     */
+    @Override
+    public ThrottlingDecision decide(long maxWait, int permits) {
+        long now = System.currentTimeMillis();
+        int[] estimates = new int[sketches.length];
+        int rejected = acquire(now, permits, estimates);
+        boolean allowed = rejected < 0;
+
+        int tightest = allowed ? 0 : rejected;
+        for (int i = 1; allowed && i < sketches.length; i++) {
+            if (limits[i] - estimates[i] < limits[tightest] - estimates[tightest]) {
+                tightest = i;
+            }
+        }
+        return new ThrottlingDecision(allowed, allowed ? 0 : -1, limits[tightest],
+                Math.max(0, limits[tightest] - estimates[tightest]), sketches[tightest].nextRotation(now));
+    }
+
+    /**
+     * @param estimates receives the estimate of each window, if not null
+     * @return index of the window rejecting the call, or -1 if the call is allowed
+     */
+    private int acquire(long now, int permits, int[] estimates) {
+        if (permits <= 0) {
+            return -1;
+        }
+        for (int i = 0; i < sketches.length; i++) {
+            int estimate = sketches[i].add(fingerprint, permits, now);
+            if (estimates != null) {
+                estimates[i] = estimate;
+            }
+            if (estimate > limits[i]) {
+                for (int j = i; j >= 0; j--) {
+                    sketches[j].subtract(fingerprint, permits, now);
+                    if (estimates != null) {
+                        estimates[j] -= permits;
+                    }
+                }
+                return i;
+            }
+        }
+        countedAt = now;
+        return -1;
+    }
+
+    /**
+     * The estimate drops no sooner than the oldest slice of an exhausted window rotates out.
+     */
+    @Override
+    public long nextPermitTime() {
+        long now = System.currentTimeMillis();
+        long permitTime = now;
+        for (int i = 0; i < sketches.length; i++) {
+            if (sketches[i].estimate(fingerprint, now) >= limits[i]) {
+                permitTime = Math.max(permitTime, sketches[i].nextRotation(now));
+            }
+        }
+        return permitTime;
+    }
+
+    @Override
+    public void rollback(int permits) {
+        if (countedAt < 0 || permits <= 0) {
+            return;
+        }
+        for (CountMinSketch sketch : sketches) {
+            sketch.subtract(fingerprint, permits, countedAt);
+        }
+        countedAt = -1;
+    }
+
+    /**
+     * Slices rotate out lazily as the sketches are used.
+     */
+    @Override
+    public void removeEldest() {
+    }
+}
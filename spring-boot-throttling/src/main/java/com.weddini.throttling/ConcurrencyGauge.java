@@ -0,0 +1,102 @@
+package com.weddini.throttling;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class holding the number of method calls in flight
+ * Used as a value in {@link com.weddini.throttling.cache.Cache} for {@link ThrottlingMode#CONCURRENCY}
+ *
+ * <p>Permits taken by {@link #throttle()} are returned with {@link #release(long)} once the call completes.
+ * The gauge is kept in the cache while calls are in flight, see {@link #holdsPermits()}.
+ */
+public class ConcurrencyGauge extends ThrottlingGauge {
+
+    private final AtomicInteger inFlight;
+
+    public ConcurrencyGauge(int throttleLimit) {
+        super(throttleLimit);
+        inFlight = new AtomicInteger();
+    }
+
+    @Override
+    public boolean throttle() {
+        for (; ; ) {
+            int current = inFlight.get();
+            if (current >= getLimit()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Calls in flight are counted regardless of their cost.
+     */
+    @Override
+    public boolean throttle(int permits) {
+        return throttle();
+    }
+
+    @Override
+    public long reserve(long maxWait, int permits) {
+        return reserve(maxWait);
+    }
+
+    /**
+     * Completion time of calls in flight is unknown, so the call either proceeds at once or is rejected.
+     */
+    @Override
+    public long reserve(long maxWait) {
+        return throttle() ? 0 : -1;
+    }
+
+    /**
+     * Completion time of calls in flight is unknown, so is the reset time.
+     */
+    @Override
+    public ThrottlingDecision decide(long maxWait, int permits) {
+        boolean allowed = throttle();
+        int limit = getLimit();
+        return new ThrottlingDecision(allowed, allowed ? 0 : -1, limit, Math.max(0, limit - getInFlight()), Long.MAX_VALUE);
+    }
+
+    @Override
+    public long nextPermitTime() {
+        return inFlight.get() < getLimit() ? System.currentTimeMillis() : Long.MAX_VALUE;
+    }
+
+    @Override
+    public void removeEldest() {
+    }
+
+    @Override
+    public void rollback(int permits) {
+        decrement();
+    }
+
+    @Override
+    public void release(long elapsedNanos) {
+        decrement();
+    }
+
+    @Override
+    public boolean holdsPermits() {
+        return inFlight.get() > 0;
+    }
+
+    private void decrement() {
+        for (; ; ) {
+            int current = inFlight.get();
+            // a release without a matching permit must not free the permit of another call
+            if (current == 0 || inFlight.compareAndSet(current, current - 1)) {
+                return;
+            }
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
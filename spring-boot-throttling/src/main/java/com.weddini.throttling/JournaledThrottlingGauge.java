@@ -0,0 +1,24 @@
+package com.weddini.throttling;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link ThrottlingGauge} reporting the calls of its sliding log to a {@link ThrottlingJournal}, so they can be
+ * replayed after a crash. The calling thread only queues the call, the journal writes it in the background.
+ */
+public class JournaledThrottlingGauge extends ThrottlingGauge {
+
+    private final ThrottlingJournal journal;
+    private final byte[] id;
+
+    public JournaledThrottlingGauge(ThrottlingKey key, ThrottlingJournal journal) {
+        super(key.getTimeUnits(), key.getLimits());
+        this.journal = journal;
+        this.id = key.id().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected void appended(long timestamp, int permits) {
+        journal.append(id, getWindow(), timestamp, permits);
+    }
+}
@@ -0,0 +1,75 @@
+package com.weddini.throttling;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear (HDR-style) histogram of latencies.
+ *
+ * <p>Values are counted in buckets of powers of two, each split into {@code 2^SUB_BUCKET_BITS} linear sub-buckets,
+ * which keeps the relative error of a percentile below 12.5%. Recording is lock-free and allocation-free.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(Long.SIZE * SUB_BUCKETS);
+        count = new AtomicLong();
+    }
+
+    public void record(long value) {
+        counts.incrementAndGet(index(Math.max(0, value)));
+        count.incrementAndGet();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile percentile in range {@code (0, 1]}
+     * @return the lowest value of the bucket holding the percentile, 0 if the histogram is empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long threshold = (long) Math.ceil(count.get() * percentile);
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= threshold && cumulative > 0) {
+                return lowestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowestValue(int index) {
+        int bucket = index / SUB_BUCKETS;
+        int subBucket = index % SUB_BUCKETS;
+        if (bucket == 0) {
+            return subBucket;
+        }
+        int magnitude = bucket + SUB_BUCKET_BITS - 1;
+        return (1L << magnitude) | ((long) subBucket << (magnitude - SUB_BUCKET_BITS));
+    }
+}
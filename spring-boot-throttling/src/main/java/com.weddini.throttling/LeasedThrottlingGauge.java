@@ -0,0 +1,222 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.store.ThrottlingStore;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gauge serving calls from a lease of permits taken in batches from a {@link ThrottlingStore}.
+ * Used as a value in {@link com.weddini.throttling.cache.Cache} in place of {@link StoreThrottlingGauge}
+ * once leasing is enabled.
+ *
+ * <p>Calls take permits of the lease with a CAS and never leave the process. The lease is refilled in the background
+ * once half of it is used, a call finding it empty falls back to a round trip to the store. Unused permits are returned
+ * to the store once the lease expires, even if the key is not called anymore, or once the gauge is evicted. Leased permits are already counted by the store,
+ * so replicas never exceed the limit together, but up to a lease per replica may sit unused until it expires.
+ */
+public class LeasedThrottlingGauge extends ThrottlingGauge {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final ThrottlingStore store;
+    private final String[] keys;
+    private final int[] limits;
+    private final long[] windows;
+    private final int leaseSize;
+    private final long leaseDuration;
+    private final Executor executor;
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    private volatile long expiresAt;
+    private volatile long rejectedUntil;
+
+    /**
+     * @param leaseSize     number of permits taken from the store at once
+     * @param leaseDuration time in milliseconds unused permits are kept before they are returned to the store
+     * @param executor      executor refilling and returning leases. A {@link ScheduledExecutorService} also returns
+     *                      each lease once it expires, otherwise an expired lease is returned by the next call of the key
+     */
+    public LeasedThrottlingGauge(ThrottlingStore store, ThrottlingKey key, int leaseSize, long leaseDuration, Executor executor) {
+        super(key.getLimit());
+        this.store = store;
+        this.limits = key.getLimits();
+        this.windows = StoreThrottlingGauge.windows(key);
+        this.keys = StoreThrottlingGauge.storeKeys(key, windows);
+        int lowest = Integer.MAX_VALUE;
+        for (int limit : limits) {
+            lowest = Math.min(lowest, limit);
+        }
+        this.leaseSize = Math.max(1, Math.min(leaseSize, lowest));
+        this.leaseDuration = leaseDuration;
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean throttle() {
+        return throttle(1);
+    }
+
+    @Override
+    public boolean throttle(int permits) {
+        return reserve(0, permits) == 0;
+    }
+
+    @Override
+    public long reserve(long maxWait) {
+        return reserve(maxWait, 1);
+    }
+
+    @Override
+    public long reserve(long maxWait, int permits) {
+        return decide(maxWait, permits).getDelay();
+    }
+
+    @Override
+    public ThrottlingDecision decide(long maxWait, int permits) {
+        if (permits <= 0) {
+            return new ThrottlingDecision(true, 0, getLimit(), leased.get(), Long.MAX_VALUE);
+        }
+        removeEldest();
+        int remaining = take(permits);
+        if (remaining < 0) {
+            refill();
+            // the refill may already be done
+            remaining = take(permits);
+        }
+        if (remaining >= 0) {
+            return new ThrottlingDecision(true, 0, getLimit(), remaining, Long.MAX_VALUE);
+        }
+
+        // the lease ran out before the refill, decide the call by the store itself
+        ThrottlingDecision decision = store.acquire(keys, limits, windows, permits, maxWait);
+        rejectedUntil = decision.isAllowed() ? 0 : decision.getResetAt();
+        return decision;
+    }
+
+    /**
+     * @return permits left in the lease once the permits are taken, or -1 if the lease does not hold enough of them
+     */
+    private int take(int permits) {
+        for (; ; ) {
+            int current = leased.get();
+            if (current < permits) {
+                return -1;
+            }
+            if (leased.compareAndSet(current, current - permits)) {
+                if (current - permits < leaseSize / 2) {
+                    refill();
+                }
+                return current - permits;
+            }
+        }
+    }
+
+    private void refill() {
+        if (!refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    int size = leaseSize;
+                    ThrottlingDecision decision = store.acquire(keys, limits, windows, size, 0);
+                    if (!decision.isAllowed() && decision.getRemaining() > 0) {
+                        // lease what is left of the limit
+                        size = decision.getRemaining();
+                        decision = store.acquire(keys, limits, windows, size, 0);
+                    }
+                    if (decision.isAllowed()) {
+                        expiresAt = System.currentTimeMillis() + leaseDuration;
+                        leased.addAndGet(size);
+                        scheduleExpiry();
+                    }
+                } catch (RuntimeException e) {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("cannot lease permits from the throttling store", e);
+                    }
+                } finally {
+                    refilling.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refilling.set(false);
+        }
+    }
+
+    /**
+     * Checks the lease once it may have expired, a lease extended by a later refill is checked by the expiry of that refill.
+     */
+    private void scheduleExpiry() {
+        if (!(executor instanceof ScheduledExecutorService)) {
+            return;
+        }
+        try {
+            ((ScheduledExecutorService) executor).schedule(this::removeEldest, leaseDuration, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the lease is returned by the next call or once the gauge is evicted
+        }
+    }
+
+    /**
+     * Returns the unused permits of the lease to the store.
+     */
+    public void returnLease() {
+        int unused = leased.getAndSet(0);
+        if (unused <= 0) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    store.rollback(keys, limits, windows, unused);
+                } catch (RuntimeException e) {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("cannot return leased permits to the throttling store", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the permits expire in the store by time
+        }
+    }
+
+    /**
+     * @return the number of permits left in the lease
+     */
+    public int getLeased() {
+        return leased.get();
+    }
+
+    @Override
+    public long nextPermitTime() {
+        return leased.get() > 0 || rejectedUntil == 0 ? System.currentTimeMillis() : rejectedUntil;
+    }
+
+    /**
+     * Permits of a call rejected elsewhere go back to the lease.
+     */
+    @Override
+    public void rollback(int permits) {
+        if (permits > 0) {
+            leased.addAndGet(permits);
+        }
+    }
+
+    /**
+     * Returns the lease once it expires.
+     */
+    @Override
+    public void removeEldest() {
+        if (expiresAt != 0 && expiresAt <= System.currentTimeMillis() && leased.get() > 0) {
+            returnLease();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.store.ThrottlingStore;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * View of a single key in a {@link ThrottlingStore} shared by all the replicas of a service.
+ * The state lives in the store, so the view is created per call and never cached.
+ */
+public class StoreThrottlingGauge extends ThrottlingGauge {
+
+    private final ThrottlingStore store;
+    private final String[] keys;
+    private final int[] limits;
+    private final long[] windows;
+    // permits taken by the call, 0 if none
+    private int taken;
+    private long rejectedUntil;
+
+    public StoreThrottlingGauge(ThrottlingStore store, ThrottlingKey key) {
+        super(key.getLimit());
+        this.store = store;
+        this.limits = key.getLimits();
+        this.windows = windows(key);
+        this.keys = storeKeys(key, windows);
+    }
+
+    /**
+     * @return length of each window of the key in milliseconds
+     */
+    static long[] windows(ThrottlingKey key) {
+        TimeUnit[] timeUnits = key.getTimeUnits();
+        long[] windows = new long[timeUnits.length];
+        for (int i = 0; i < timeUnits.length; i++) {
+            windows[i] = timeUnits[i].toMillis(1);
+        }
+        return windows;
+    }
+
+    /**
+     * Keys of the windows of a level share the hash tag in braces, so they live on the same Redis Cluster node.
+     *
+     * @return store key of each window of the key
+     */
+    static String[] storeKeys(ThrottlingKey key, long[] windows) {
+        String prefix = "throttling:{" + key.id() + "}";
+        String[] keys = new String[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            keys[i] = prefix + ":" + windows[i];
+        }
+        return keys;
+    }
+
+    @Override
+    public boolean throttle() {
+        return throttle(1);
+    }
+
+    @Override
+    public boolean throttle(int permits) {
+        return reserve(0, permits) == 0;
+    }
+
+    @Override
+    public long reserve(long maxWait) {
+        return reserve(maxWait, 1);
+    }
+
+    @Override
+    public long reserve(long maxWait, int permits) {
+        return decide(maxWait, permits).getDelay();
+    }
+
+    @Override
+    public ThrottlingDecision decide(long maxWait, int permits) {
+        if (permits <= 0) {
+            return new ThrottlingDecision(true, 0, getLimit(), -1, Long.MAX_VALUE);
+        }
+        ThrottlingDecision decision = store.acquire(keys, limits, windows, permits, maxWait);
+        if (decision.isAllowed()) {
+            taken = permits;
+        } else {
+            rejectedUntil = decision.getResetAt();
+        }
+        return decision;
+    }
+
+    /**
+     * @return the time the store would allow the rejected call at, the current time if the call was not rejected
+     */
+    @Override
+    public long nextPermitTime() {
+        return rejectedUntil != 0 ? rejectedUntil : System.currentTimeMillis();
+    }
+
+    @Override
+    public void rollback(int permits) {
+        if (taken > 0) {
+            store.rollback(keys, limits, windows, Math.min(permits, taken));
+            taken = 0;
+        }
+    }
+
+    /**
+     * Keys expire in the store once their permits are returned.
+     */
+    @Override
+    public void removeEldest() {
+    }
+}
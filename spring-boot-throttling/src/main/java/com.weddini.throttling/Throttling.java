@@ -3,6 +3,7 @@ package com.weddini.throttling;
 import java.lang.annotation.Documented;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Inherited;
+import java.lang.annotation.Repeatable;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
@@ -13,6 +14,7 @@ import java.util.concurrent.TimeUnit;
  *
  * <p>Annotation for specifying method throttling configuration
  * will be evaluated in {@link java.lang.reflect.Proxy} to decide whether a method invocation is allowed or not.
+ * The annotation is repeatable, e.g. 10 calls per SECOND and 1000 calls per HOUR, see {@link Throttlings}.
  *
  * @author Nikolay Papakha (nikolay.papakha@gmail.com)
  */
@@ -20,6 +22,7 @@ import java.util.concurrent.TimeUnit;
 @Target({ElementType.METHOD})
 @Inherited
 @Documented
+@Repeatable(Throttlings.class)
 public @interface Throttling {
 
     /**
@@ -70,5 +73,52 @@ public @interface Throttling {
      */
     String expression() default "";
 
+    /**
+     * Returns the number of permits a call consumes, either a positive number or a Spring-EL expression evaluated
+     * against the method arguments, e.g. {@code "#items.size()"}. Controllers are throttled before their arguments are
+     * resolved, so their expressions are evaluated against the request instead, available as {@code #request}.
+     * Default value is empty, i.e. each call consumes 1 permit.
+     * Applicable for {@code ThrottlingMode.RATE}, concurrency modes count calls regardless of their cost.
+     *
+     * @return the call cost
+     */
+    String cost() default "";
+
+    /**
+     * Returns ThrottlingMode {@see ThrottlingMode}
+     * Used to decide how the limit is enforced.
+     * Default value is {@code ThrottlingMode.RATE}
+     *
+     * @return ThrottlingMode
+     */
+    ThrottlingMode mode() default ThrottlingMode.RATE;
+
+    /**
+     * Returns the name of the cache partition holding the gauges of the method.
+     * Methods of a partition only evict each other's gauges, so a method with many throttled values cannot reset
+     * the limits of another partition. Default value is empty, i.e. the shared cache.
+     *
+     * @return the cache partition name
+     */
+    String partition() default "";
+
+    /**
+     * Returns the max number of gauges of the {@link #partition()}, unless configured in
+     * {@code spring.throttling.partitions}.
+     * Default value is 0, i.e. the capacity of the shared cache.
+     *
+     * @return the cache partition capacity
+     */
+    int partitionCapacity() default 0;
+
+    /**
+     * Returns max time in milliseconds a call waits for a permit once the limit is reached.
+     * Default value is 0, i.e. calls above the limit are rejected with {@link ThrottlingException}.
+     * Controller calls are delayed with servlet async processing, service calls are delayed on the calling thread.
+     *
+     * @return max wait time in milliseconds
+     */
+    long maxWait() default 0;
+
 }
 
@@ -0,0 +1,103 @@
+package com.weddini.throttling;
+
+/**
+ * Outcome of a throttling call, computed from the gauge state the call was decided against.
+ * Used to tell clients when to retry with {@code Retry-After} and {@code X-RateLimit-*} headers.
+ */
+public class ThrottlingDecision {
+
+    public static final String LIMIT_HEADER = "X-RateLimit-Limit";
+    public static final String REMAINING_HEADER = "X-RateLimit-Remaining";
+    public static final String RESET_HEADER = "X-RateLimit-Reset";
+    public static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    private final boolean allowed;
+    private final long delay;
+    private final int limit;
+    private final int remaining;
+    private final long resetAt;
+    private final ThrottlingPermit permit;
+
+    /**
+     * @param allowed   true if the call is allowed
+     * @param delay     time in milliseconds to wait before proceeding with the call, -1 if the call is not allowed
+     * @param limit     the limit the call was decided against
+     * @param remaining permits left within the limit, -1 if unknown
+     * @param resetAt   the time in milliseconds (see {@link System#currentTimeMillis()}) when a permit is available again,
+     *                  {@link Long#MAX_VALUE} if unknown
+     */
+    public ThrottlingDecision(boolean allowed, long delay, int limit, int remaining, long resetAt) {
+        this(allowed, delay, limit, remaining, resetAt, ThrottlingPermit.NONE);
+    }
+
+    /**
+     * @param permit permits held by the allowed call, released once it completes
+     */
+    public ThrottlingDecision(boolean allowed, long delay, int limit, int remaining, long resetAt, ThrottlingPermit permit) {
+        this.allowed = allowed;
+        this.delay = delay;
+        this.limit = limit;
+        this.remaining = remaining;
+        this.resetAt = resetAt;
+        this.permit = permit;
+    }
+
+    public boolean isAllowed() {
+        return allowed;
+    }
+
+    public long getDelay() {
+        return delay;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+
+    public long getResetAt() {
+        return resetAt;
+    }
+
+    /**
+     * @return permits held by the allowed call for its duration, {@link ThrottlingPermit#NONE} if none
+     */
+    public ThrottlingPermit getPermit() {
+        return permit;
+    }
+
+    /**
+     * @return true if the reset time is known
+     */
+    public boolean hasResetAt() {
+        return resetAt != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return {@code X-RateLimit-Reset} value, the reset time in epoch seconds
+     */
+    public long getResetEpochSeconds() {
+        return (resetAt + 999) / 1000;
+    }
+
+    /**
+     * @return {@code Retry-After} value, at least 1 second
+     */
+    public long getRetryAfterSeconds() {
+        return Math.max(1, (resetAt - System.currentTimeMillis() + 999) / 1000);
+    }
+
+    @Override
+    public String toString() {
+        return "ThrottlingDecision{" +
+                "allowed=" + allowed +
+                ", delay=" + delay +
+                ", limit=" + limit +
+                ", remaining=" + remaining +
+                ", resetAt=" + resetAt +
+                '}';
+    }
+}
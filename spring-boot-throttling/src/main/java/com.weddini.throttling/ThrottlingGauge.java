@@ -1,60 +1,576 @@
 package com.weddini.throttling;
 
-import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class holding method calls information
  * Used as a value in {@link com.weddini.throttling.cache.Cache}
  *
+ * <p>Calls are kept as a sliding log in a ring buffer which is published through a single
+ * {@link AtomicReference}, so neither {@link #throttle()} nor {@link #removeEldest()} ever
+ * blocks the calling thread. A contended update simply retries against the latest state.
+ * Reserved calls are logged with the future time they are allowed to proceed at.
+ *
  * @author Nikolay Papakha (nikolay.papakha@gmail.com)
  */
 public class ThrottlingGauge {
 
+    private static final int INITIAL_CAPACITY = 16;
+
     private final int throttleLimit;
+    private final int[] limits;
+    private final long[] windows;
+    // the longest window, calls older than that are pruned
     private final long mills;
-    private final ArrayList<Long> callTimestamps;
-    private final ReadWriteLock lock;
+    private final AtomicReference<State> state;
 
     public ThrottlingGauge(TimeUnit timeUnit, int throttleLimit) {
+        this(new TimeUnit[]{timeUnit}, new int[]{throttleLimit});
+    }
+
+    /**
+     * Gauge enforcing several limits at once, at most {@code limits[i]} calls per {@code timeUnits[i]}.
+     * All limits are checked against a single log, so a call rejected by one of them takes no permit from the others.
+     */
+    public ThrottlingGauge(TimeUnit[] timeUnits, int[] limits) {
+        if (timeUnits.length == 0 || timeUnits.length != limits.length) {
+            throw new IllegalArgumentException("timeUnits and limits should be non-empty and of the same length");
+        }
+        this.throttleLimit = limits[0];
+        this.limits = limits.clone();
+        this.windows = new long[timeUnits.length];
+        long longest = 0;
+        int highest = 1;
+        for (int i = 0; i < timeUnits.length; i++) {
+            windows[i] = timeUnits[i].toMillis(1);
+            longest = Math.max(longest, windows[i]);
+            highest = Math.max(highest, limits[i]);
+        }
+        this.mills = longest;
+        state = new AtomicReference<>(new State(new AtomicReferenceArray<>(Math.min(INITIAL_CAPACITY, highest)),
+                0, 0, 0, null));
+    }
+
+    /**
+     * Constructor for gauges which do not keep a log of calls.
+     */
+    protected ThrottlingGauge(int throttleLimit) {
         this.throttleLimit = throttleLimit;
-        mills = timeUnit.toMillis(1);
-        callTimestamps = new ArrayList<>();
-        lock = new ReentrantReadWriteLock(true);
+        this.limits = null;
+        this.windows = null;
+        this.mills = 0;
+        this.state = null;
+    }
+
+    /**
+     * @return the limit of the first window
+     */
+    public int getLimit() {
+        return throttleLimit;
     }
 
     public boolean throttle() {
-        lock.readLock().lock();
-        try {
-            if (callTimestamps.size() >= throttleLimit) {
-                return false;
-            }
-        } finally {
-            lock.readLock().unlock();
+        return throttle(1);
+    }
+
+    /**
+     * Takes several permits at once, recorded as a single call of the sliding log.
+     *
+     * @param permits number of permits the call costs
+     * @return true if all the permits are taken
+     */
+    public boolean throttle(int permits) {
+        return acquire(System.currentTimeMillis(), 0, permits, null) == 0;
+    }
+
+    /**
+     * Reserves the next permit if it becomes available within the given time.
+     * The reserved call is recorded with its future timestamp, so later callers queue up behind it.
+     *
+     * @param maxWait max time in milliseconds the caller agrees to wait for a permit
+     * @return time in milliseconds to wait before proceeding with the call, or -1 if the permit
+     * is not available within {@code maxWait}
+     */
+    public long reserve(long maxWait) {
+        return reserve(maxWait, 1);
+    }
+
+    /**
+     * Reserves several permits at once, see {@link #reserve(long)}.
+     *
+     * @param permits number of permits the call costs
+     */
+    public long reserve(long maxWait, int permits) {
+        return acquire(System.currentTimeMillis(), maxWait, permits, null);
+    }
+
+    /**
+     * Reserves permits like {@link #reserve(long, int)} as of the given time, so the call is logged at
+     * {@code now + delay} and can be given back by {@link #rollback(long, int)}.
+     * Gauges which do not keep a log of calls decide as of their own time.
+     *
+     * @param now current time in milliseconds, see {@link System#currentTimeMillis()}
+     */
+    public long reserve(long now, long maxWait, int permits) {
+        return state != null ? acquire(now, maxWait, permits, null) : reserve(maxWait, permits);
+    }
+
+    /**
+     * Reserves permits like {@link #reserve(long, int)} and describes the outcome by the window with the least
+     * remaining permits, as seen by the state the call was decided against.
+     */
+    public ThrottlingDecision decide(long maxWait, int permits) {
+        return decide(System.currentTimeMillis(), maxWait, permits);
+    }
+
+    /**
+     * Decides like {@link #decide(long, int)} as of the given time, see {@link #reserve(long, long, int)}.
+     *
+     * @param now current time in milliseconds, see {@link System#currentTimeMillis()}
+     */
+    public ThrottlingDecision decide(long now, long maxWait, int permits) {
+        if (state == null) {
+            return decide(maxWait, permits);
         }
+        State[] decided = new State[1];
+        long delay = acquire(now, maxWait, permits, decided);
+        State state = decided[0] != null ? decided[0] : this.state.get();
 
-        lock.writeLock().lock();
-        try {
-            if (callTimestamps.size() < throttleLimit) {
-                callTimestamps.add(System.currentTimeMillis());
-                return true;
+        int limit = throttleLimit;
+        long remaining = Long.MAX_VALUE;
+        long resetAt = now;
+        for (int i = 0; i < limits.length; i++) {
+            long count = 0;
+            Call oldest = null;
+            if (windows[i] == mills) {
+                // the state is pruned by the longest window
+                count = state.total;
+                oldest = state.head < state.tail ? state.call(state.head) : null;
             } else {
-                return false;
+                long threshold = now - windows[i];
+                for (long index = state.tail - 1; index >= state.head; index--) {
+                    Call call = state.call(index);
+                    if (call == null || call.timestamp < threshold) {
+                        break;
+                    }
+                    count += call.permits;
+                    oldest = call;
+                }
+            }
+            if (limits[i] - count < remaining) {
+                remaining = limits[i] - count;
+                limit = limits[i];
+                resetAt = oldest != null ? oldest.timestamp + windows[i] + 1 : now;
+            }
+        }
+
+        if (delay < 0) {
+            // the time the rejected call would fit at
+            long permitTime = permitTime(state, now, permits);
+            resetAt = permitTime != -1 ? permitTime : resetAt;
+        }
+        return new ThrottlingDecision(delay >= 0, delay, limit, (int) Math.max(0, remaining), resetAt);
+    }
+
+    /**
+     * @return the time in milliseconds (see {@link System#currentTimeMillis()}) when the next permit is available,
+     * or {@link Long#MAX_VALUE} if the limit does not allow any call
+     */
+    public long nextPermitTime() {
+        long now = System.currentTimeMillis();
+        long threshold = now - this.mills;
+        for (; ; ) {
+            State pruned = state.get().prune(threshold);
+            long permitTime = pruned != null ? permitTime(pruned, now, 1) : -1;
+            if (permitTime != -1) {
+                return permitTime;
+            }
+        }
+    }
+
+    /**
+     * @param decided receives the state the call was decided against, if not null
+     */
+    private long acquire(long now, long maxWait, int permits, State[] decided) {
+        if (permits <= 0) {
+            return 0;
+        }
+        long threshold = now - this.mills;
+        for (; ; ) {
+            State current = state.get();
+            State pruned = current.prune(threshold);
+            long permitTime = pruned != null ? permitTime(pruned, now, permits) : -1;
+            if (permitTime == -1) {
+                // the ring was recycled under our feet, re-read the state
+                continue;
+            }
+            // a call above the smallest limit never fits, however long it may wait
+            if (permitTime == Long.MAX_VALUE || permitTime - now > maxWait) {
+                if (decided != null) {
+                    decided[0] = pruned;
+                }
+                return -1;
+            }
+            State next = pruned.append(new Call(current.tail, permitTime, permits));
+            if (next != null && state.compareAndSet(current, next)) {
+                if (decided != null) {
+                    decided[0] = next;
+                }
+                appended(permitTime, permits);
+                return permitTime - now;
+            }
+        }
+    }
+
+    /**
+     * @return the time when a call of the given cost fits into every window, {@link Long#MAX_VALUE} if it never fits,
+     * or -1 if the state is outdated
+     */
+    private long permitTime(State state, long now, int permits) {
+        long permitTime = now;
+        for (int i = 0; i < limits.length; i++) {
+            long windowPermitTime = permitTime(state, now, permits, limits[i], windows[i]);
+            if (windowPermitTime == -1) {
+                return -1;
+            }
+            permitTime = Math.max(permitTime, windowPermitTime);
+        }
+        return permitTime;
+    }
+
+    private long permitTime(State state, long now, int permits, int limit, long window) {
+        long first = state.head;
+        long total = state.total;
+        if (window < mills) {
+            // calls are ordered by timestamp, count the calls of a shorter window from the newest one
+            long threshold = now - window;
+            first = state.tail;
+            total = 0;
+            while (first > state.head) {
+                Call call = state.call(first - 1);
+                if (call == null) {
+                    return -1;
+                }
+                if (call.timestamp < threshold) {
+                    break;
+                }
+                total += call.permits;
+                first--;
+            }
+        }
+
+        long excess = total + permits - limit;
+        for (long i = first; excess > 0 && i < state.tail; i++) {
+            Call call = state.call(i);
+            if (call == null) {
+                return -1;
+            }
+            excess -= call.permits;
+            if (excess <= 0) {
+                // the call expires right after it falls out of the window
+                return call.timestamp + window + 1;
+            }
+        }
+        // no room even when the whole window expires
+        return excess > 0 ? Long.MAX_VALUE : now;
+    }
+
+    /**
+     * Gives back permits of a call which was rejected elsewhere, when the time of the call is not known.
+     * The permits are returned by a compensating entry next to the latest call, so the log stays ordered by time,
+     * which may return them later than the call would have expired. Prefer {@link #rollback(long, int)}.
+     *
+     * @param permits number of permits taken by the call
+     */
+    public void rollback(int permits) {
+        if (permits <= 0) {
+            return;
+        }
+        for (; ; ) {
+            State current = state.get();
+            if (current.last == null) {
+                // the call already fell out of the window
+                return;
+            }
+            State next = current.append(new Call(current.tail, current.last.timestamp, -permits));
+            if (next != null && state.compareAndSet(current, next)) {
+                appended(current.last.timestamp, -permits);
+                return;
             }
-        } finally {
-            lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Gives back permits of a call which was rejected elsewhere, e.g. by another level of hierarchical limits.
+     * The permits are taken off the call itself, so the log stays ordered by time and the call stops counting
+     * at once rather than when a later call expires. Gauges which do not keep a log of calls ignore the timestamp.
+     *
+     * @param timestamp time the call is logged at, {@code now + delay} of {@link #reserve(long, long, int)}
+     * @param permits   number of permits taken by the call
+     */
+    public void rollback(long timestamp, int permits) {
+        if (state == null) {
+            rollback(permits);
+            return;
+        }
+        if (permits <= 0) {
+            return;
+        }
+        for (; ; ) {
+            State current = state.get();
+            State next = current.amend(timestamp, permits);
+            if (next == current) {
+                // the call already fell out of the window
+                return;
+            }
+            if (next != null && state.compareAndSet(current, next)) {
+                appended(timestamp, -permits);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called by the thread which appended a call or a compensating entry to the log, once it is published.
+     * Calls restored by {@link #restore(long, int)} are not reported.
+     *
+     * @param timestamp time the call is logged at
+     * @param permits   permits of the call, negative for a compensating entry
+     */
+    protected void appended(long timestamp, int permits) {
+    }
+
+    /**
+     * Returns a permit taken by {@link #throttle()} once the call completes.
+     * Permits of the sliding log are returned by time, so this is a no-op here.
+     *
+     * @param elapsedNanos duration of the completed call
+     */
+    public void release(long elapsedNanos) {
+    }
+
+    /**
+     * @return true while completed calls are still to return permits of the gauge, the gauge is then kept in the cache
+     */
+    public boolean holdsPermits() {
+        return false;
+    }
+
     public void removeEldest() {
         long threshold = System.currentTimeMillis() - this.mills;
-        lock.writeLock().lock();
-        try {
-            callTimestamps.removeIf(it -> it < threshold);
-        } finally {
-            lock.writeLock().unlock();
+        for (; ; ) {
+            State current = state.get();
+            State pruned = current.prune(threshold);
+            if (pruned == current || (pruned != null && state.compareAndSet(current, pruned))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the longest window in milliseconds
+     */
+    long getWindow() {
+        return mills;
+    }
+
+    /**
+     * @return the calls of the longest window ordered by time, as pairs of timestamp and permits
+     */
+    long[] calls() {
+        long threshold = System.currentTimeMillis() - this.mills;
+        for (; ; ) {
+            State pruned = state.get().prune(threshold);
+            if (pruned == null) {
+                continue;
+            }
+            long[] calls = new long[(int) (pruned.tail - pruned.head) * 2];
+            int i = 0;
+            for (long index = pruned.head; index < pruned.tail; index++) {
+                Call call = pruned.call(index);
+                if (call == null) {
+                    // the ring was recycled under our feet, re-read the state
+                    break;
+                }
+                calls[i++] = call.timestamp;
+                calls[i++] = call.permits;
+            }
+            if (i == calls.length) {
+                return calls;
+            }
+        }
+    }
+
+    /**
+     * Appends a call of a previous run of the application, calls are restored in the order of their time.
+     */
+    void restore(long timestamp, int permits) {
+        for (; ; ) {
+            State current = state.get();
+            State next = current.append(new Call(current.tail, timestamp, permits));
+            if (next != null && state.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A single recorded call (or batch of calls) in the sliding log.
+     */
+    static final class Call {
+        final long index;
+        final long timestamp;
+        final int permits;
+        // incremented each time the call is amended
+        final int revision;
+
+        Call(long index, long timestamp, int permits) {
+            this(index, timestamp, permits, 0);
+        }
+
+        Call(long index, long timestamp, int permits, int revision) {
+            this.index = index;
+            this.timestamp = timestamp;
+            this.permits = permits;
+            this.revision = revision;
+        }
+    }
+
+    /**
+     * Immutable view of the sliding log.
+     * <p>
+     * Calls {@code [head, tail - 1)} live in the ring, the latest call is carried by the state itself
+     * and is copied into the ring by the next writer. Ring slots are only ever replaced by calls with
+     * a higher index, or by a later revision of the same call, so a writer holding an outdated state cannot clobber
+     * newer calls.
+     */
+    static final class State {
+        final AtomicReferenceArray<Call> ring;
+        final long head;
+        final long tail;
+        final long total;
+        final Call last;
+
+        State(AtomicReferenceArray<Call> ring, long head, long tail, long total, Call last) {
+            this.ring = ring;
+            this.head = head;
+            this.tail = tail;
+            this.total = total;
+            this.last = last;
+        }
+
+        /**
+         * @param index logical index of the call, {@code head <= index < tail}
+         * @return the call or null if the slot was already recycled by a newer call
+         */
+        Call call(long index) {
+            if (index == tail - 1) {
+                return last;
+            }
+            Call call = ring.get((int) (index % ring.length()));
+            return call != null && call.index == index ? call : null;
+        }
+
+        /**
+         * @return the state without calls older than threshold, or null if this state is outdated
+         */
+        State prune(long threshold) {
+            long newHead = head;
+            long newTotal = total;
+            while (newHead < tail) {
+                Call call = call(newHead);
+                if (call == null) {
+                    return null;
+                }
+                if (call.timestamp >= threshold) {
+                    break;
+                }
+                newTotal -= call.permits;
+                newHead++;
+            }
+            return newHead == head ? this : new State(ring, newHead, tail, newTotal, newHead == tail ? null : last);
+        }
+
+        /**
+         * @return the state with the call appended, or null if this state is outdated
+         */
+        State append(Call call) {
+            AtomicReferenceArray<Call> target = ring;
+            if (last != null) {
+                if (tail - head > ring.length()) {
+                    target = grow();
+                    if (target == null) {
+                        return null;
+                    }
+                } else if (!publish(ring, last)) {
+                    return null;
+                }
+            }
+            return new State(target, head, tail + 1, total + call.permits, call);
+        }
+
+        /**
+         * @return the state with the permits taken off the newest call logged at the timestamp which holds them,
+         * this state if there is no such call, or null if this state is outdated
+         */
+        State amend(long timestamp, int permits) {
+            for (long index = tail - 1; index >= head; index--) {
+                Call call = call(index);
+                if (call == null) {
+                    return null;
+                }
+                if (call.timestamp != timestamp || call.permits < permits) {
+                    continue;
+                }
+                Call amended = new Call(index, timestamp, call.permits - permits, call.revision + 1);
+                if (index == tail - 1) {
+                    // the next writer publishes the revision over the former one, even if a writer holding an
+                    // outdated state published the former one meanwhile
+                    return new State(ring, head, tail, total - permits, amended);
+                }
+                // states sharing the ring would see the amended call with their former totals, the ring is copied
+                AtomicReferenceArray<Call> copy = new AtomicReferenceArray<>(ring.length());
+                for (long i = head; i < tail - 1; i++) {
+                    Call copied = i == index ? amended : call(i);
+                    if (copied == null) {
+                        return null;
+                    }
+                    copy.set((int) (i % copy.length()), copied);
+                }
+                return new State(copy, head, tail, total - permits, last);
+            }
+            return this;
+        }
+
+        private AtomicReferenceArray<Call> grow() {
+            AtomicReferenceArray<Call> grown = new AtomicReferenceArray<>(ring.length() << 1);
+            for (long i = head; i < tail; i++) {
+                Call call = call(i);
+                if (call == null) {
+                    return null;
+                }
+                grown.set((int) (i % grown.length()), call);
+            }
+            return grown;
+        }
+
+        /**
+         * @return false if the slot holds a newer call or a later revision of the call
+         */
+        private static boolean publish(AtomicReferenceArray<Call> ring, Call call) {
+            int slot = (int) (call.index % ring.length());
+            for (; ; ) {
+                Call existing = ring.get(slot);
+                if (existing != null && (existing.index > call.index
+                        || existing.index == call.index && existing.revision >= call.revision)) {
+                    return existing.index == call.index && existing.revision == call.revision;
+                }
+                if (ring.compareAndSet(slot, existing, call)) {
+                    return true;
+                }
+            }
         }
     }
 }
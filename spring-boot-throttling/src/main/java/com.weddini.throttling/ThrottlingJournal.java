@@ -0,0 +1,451 @@
+package com.weddini.throttling;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the calls of {@link JournaledThrottlingGauge}s, so their calls outlive a crash of the application.
+ *
+ * <p>Calls are handed over to a lock-free queue by the calling thread and never touch the disk there. A single writer
+ * thread drains the queue every {@code flushInterval}, appends the calls to the current segment, a memory-mapped file of
+ * {@code segmentSize} bytes, and forces it to the disk once per batch. Each record holds the {@link ThrottlingKey#id()} of
+ * its gauge, the longest window, the time and the permits of the call, and a CRC32 of all these, so a record torn by
+ * a crash ends the replay of its segment.
+ *
+ * <p>Every {@code compactionInterval} the segments written so far are folded, with the previous compaction, into
+ * a {@link ThrottlingSnapshot} of the unexpired calls named after the last segment it covers, and then deleted.
+ * On startup the latest snapshot and the segments written after it are replayed in the background, and the calls of a
+ * gauge are restored once its key is first used by {@link #restore(ThrottlingKey, ThrottlingGauge)}. The replay is never
+ * waited for: a gauge created before the journal is replayed starts with the calls of the current run only.
+ */
+public class ThrottlingJournal implements Closeable {
+
+    private static final int MAGIC = 0x5448524a;
+    private static final int VERSION = 1;
+    // magic, version
+    private static final int SEGMENT_HEADER_SIZE = 4 + 4;
+    // key length, window, timestamp, permits and checksum, the key aside
+    private static final int RECORD_SIZE = 4 + 8 + 8 + 4 + 4;
+    private static final long DEFAULT_FLUSH_INTERVAL = 10;
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_COMPACTION_INTERVAL = 60000;
+    private static final String PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long compactionInterval;
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService writer;
+    // unexpired calls of the previous runs by gauge, completed once replayed
+    private final CompletableFuture<Map<String, long[]>> replayed = new CompletableFuture<>();
+    private volatile boolean closed;
+
+    // owned by the writer thread
+    private final CRC32 checksum = new CRC32();
+    private long sequence;
+    private MappedByteBuffer segment;
+    private boolean dirty;
+    private long compactedAt = System.currentTimeMillis();
+
+    public ThrottlingJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_FLUSH_INTERVAL, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_INTERVAL);
+    }
+
+    /**
+     * @param directory          directory of the segments and snapshots, created if missing
+     * @param flushInterval      time in milliseconds between two writes of the queued calls
+     * @param segmentSize        size in bytes of a segment
+     * @param compactionInterval time in milliseconds between two compactions, 0 to never compact
+     */
+    public ThrottlingJournal(Path directory, long flushInterval, int segmentSize, long compactionInterval) throws IOException {
+        if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("segmentSize should hold at least one record");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.compactionInterval = compactionInterval;
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "throttling-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.execute(this::replay);
+        writer.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a call of a gauge, written by the next flush.
+     *
+     * @param id      {@link ThrottlingKey#id()} of the gauge, UTF-8 encoded
+     * @param window  longest window of the gauge in milliseconds
+     * @param permits permits of the call, negative for a compensating entry
+     */
+    void append(byte[] id, long window, long timestamp, int permits) {
+        if (!closed) {
+            queue.offer(new Record(id, window, timestamp, permits));
+        }
+    }
+
+    /**
+     * Appends the unexpired calls of the previous runs of the key to the gauge, if any. Never blocks the calling thread:
+     * nothing is restored until the journal is replayed.
+     *
+     * @return true if the gauge was found in the journal
+     */
+    public boolean restore(ThrottlingKey key, ThrottlingGauge gauge) {
+        Map<String, long[]> calls = replayed.getNow(Collections.emptyMap());
+        long[] keyCalls = calls.isEmpty() ? null : calls.remove(key.id());
+        if (keyCalls == null) {
+            return false;
+        }
+        long threshold = System.currentTimeMillis() - gauge.getWindow();
+        for (int i = 0; i < keyCalls.length; i += 2) {
+            if (keyCalls[i] >= threshold) {
+                gauge.restore(keyCalls[i], (int) keyCalls[i + 1]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of gauges of the previous runs not restored yet, 0 until the journal is replayed
+     */
+    public int size() {
+        return replayed.getNow(Collections.emptyMap()).size();
+    }
+
+    /**
+     * @return true once the journal is replayed, or found unreadable
+     */
+    public boolean isReplayed() {
+        return replayed.isDone();
+    }
+
+    private void replay() {
+        Map<String, Calls> calls = new HashMap<>();
+        try {
+            sequence = read(calls, Long.MAX_VALUE);
+        } catch (IOException | RuntimeException e) {
+            calls.clear();
+            if (logger.isWarnEnabled()) {
+                logger.warn("cannot replay throttling journal " + directory, e);
+            }
+        }
+        long now = System.currentTimeMillis();
+        Map<String, long[]> live = new ConcurrentHashMap<>();
+        calls.forEach((id, gaugeCalls) -> {
+            long[] unexpired = gaugeCalls.unexpired(now);
+            if (unexpired.length > 0) {
+                live.put(id, unexpired);
+            }
+        });
+        if (logger.isInfoEnabled()) {
+            logger.info("Throttling journal replayed, " + live.size() + " gauges still live");
+        }
+        replayed.complete(live);
+    }
+
+    /**
+     * Writes the queued calls and forces them to the disk at once, then compacts the journal when due.
+     * Runs on the writer thread.
+     */
+    private void flush() {
+        try {
+            Record record;
+            while ((record = queue.poll()) != null) {
+                write(record);
+            }
+            if (dirty) {
+                segment.force();
+                dirty = false;
+            }
+            if (compactionInterval > 0 && System.currentTimeMillis() - compactedAt >= compactionInterval) {
+                compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("cannot write throttling journal " + directory, e);
+            }
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        int size = RECORD_SIZE + record.id.length;
+        if (size > segmentSize - SEGMENT_HEADER_SIZE) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("call of " + new String(record.id, StandardCharsets.UTF_8) + " exceeds a journal segment, skipped");
+            }
+            return;
+        }
+        if (segment == null || segment.remaining() < size) {
+            rotate();
+        }
+        int start = segment.position();
+        segment.putInt(record.id.length).put(record.id).putLong(record.window).putLong(record.timestamp).putInt(record.permits);
+        segment.putInt(checksum(segment, start, segment.position()));
+        dirty = true;
+    }
+
+    /**
+     * Seals the current segment, if any, and maps the next one.
+     */
+    private void rotate() throws IOException {
+        if (segment != null && dirty) {
+            segment.force();
+            dirty = false;
+        }
+        segment = null;
+        Path file;
+        do {
+            // past the segments of a journal which could not be replayed, if any
+            file = directory.resolve(name(++sequence, SEGMENT_SUFFIX));
+        } while (Files.exists(file));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer next = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            next.putInt(MAGIC).putInt(VERSION);
+            segment = next;
+        }
+    }
+
+    /**
+     * Folds the latest snapshot and the segments written since into a new snapshot, then deletes them.
+     * The current segment is sealed, the next call opens a new one.
+     */
+    private void compact() throws IOException {
+        compactedAt = System.currentTimeMillis();
+        segment = null;
+        long upTo = sequence;
+        SortedMap<Long, Path> snapshots = files(SNAPSHOT_SUFFIX);
+        long compacted = snapshots.isEmpty() ? 0 : snapshots.lastKey();
+        if (!files(SEGMENT_SUFFIX).subMap(compacted + 1, upTo + 1).isEmpty()) {
+            Map<String, Calls> calls = new HashMap<>();
+            read(calls, upTo);
+            List<String> ids = new ArrayList<>();
+            List<long[]> unexpired = new ArrayList<>();
+            List<Long> windows = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            calls.forEach((id, gaugeCalls) -> {
+                long[] live = gaugeCalls.unexpired(now);
+                if (live.length > 0) {
+                    ids.add(id);
+                    unexpired.add(live);
+                    windows.add(gaugeCalls.window);
+                }
+            });
+            ThrottlingSnapshot.write(directory.resolve(name(upTo, SNAPSHOT_SUFFIX)), ids, unexpired, windows);
+            compacted = upTo;
+        }
+        // files covered by the latest snapshot, left behind by a crash at worst
+        for (Path file : files(SNAPSHOT_SUFFIX).headMap(compacted).values()) {
+            Files.deleteIfExists(file);
+        }
+        for (Path file : files(SEGMENT_SUFFIX).headMap(compacted + 1).values()) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Reads the latest snapshot and the segments written after it, up to the given one.
+     *
+     * @return sequence of the last segment read, or of the snapshot
+     */
+    private long read(Map<String, Calls> calls, long upTo) throws IOException {
+        long bound = upTo == Long.MAX_VALUE ? upTo : upTo + 1;
+        SortedMap<Long, Path> snapshots = files(SNAPSHOT_SUFFIX).headMap(bound);
+        long last = 0;
+        if (!snapshots.isEmpty()) {
+            last = snapshots.lastKey();
+            ThrottlingSnapshot.read(snapshots.get(last), (id, window, gaugeCalls) -> {
+                Calls merged = calls.computeIfAbsent(id, k -> new Calls(window));
+                for (int i = 0; i < gaugeCalls.length; i += 2) {
+                    merged.add(gaugeCalls[i], gaugeCalls[i + 1]);
+                }
+            });
+        }
+        for (Map.Entry<Long, Path> file : files(SEGMENT_SUFFIX).subMap(last + 1, bound).entrySet()) {
+            readSegment(file.getValue(), calls);
+            last = file.getKey();
+        }
+        return last;
+    }
+
+    private void readSegment(Path file, Map<String, Calls> calls) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < SEGMENT_HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("not a throttling journal segment " + file + ", skipped");
+                }
+                return;
+            }
+            while (in.remaining() >= RECORD_SIZE) {
+                int start = in.position();
+                int length = in.getInt();
+                if (length <= 0 || in.remaining() < length + RECORD_SIZE - 4) {
+                    // end of the segment
+                    return;
+                }
+                byte[] id = new byte[length];
+                in.get(id);
+                long window = in.getLong();
+                long timestamp = in.getLong();
+                int permits = in.getInt();
+                if (in.getInt() != checksum(in, start, in.position() - 4)) {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("torn record in throttling journal " + file + " at " + start + ", rest of the segment skipped");
+                    }
+                    return;
+                }
+                calls.computeIfAbsent(new String(id, StandardCharsets.UTF_8), k -> new Calls(window)).add(timestamp, permits);
+            }
+        }
+    }
+
+    private int checksum(ByteBuffer buffer, int from, int to) {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(to).position(from);
+        checksum.reset();
+        checksum.update(record);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * @return segments or snapshots of the directory by sequence
+     */
+    private SortedMap<Long, Path> files(String suffix) throws IOException {
+        SortedMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + suffix)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - suffix.length())), file);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String name(long sequence, String suffix) {
+        return String.format("%s%019d%s", PREFIX, sequence, suffix);
+    }
+
+    /**
+     * Writes the queued calls and stops the writer thread, calls appended afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            // the segment is owned by the writer, the last flush runs there after the one in progress, if any
+            writer.execute(() -> {
+                flush();
+                segment = null;
+            });
+        } catch (RejectedExecutionException e) {
+            // closed already
+            return;
+        }
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(1, TimeUnit.SECONDS) && logger.isWarnEnabled()) {
+                logger.warn("throttling journal " + directory + " still flushing after close");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Record {
+
+        final byte[] id;
+        final long window;
+        final long timestamp;
+        final int permits;
+
+        Record(byte[] id, long window, long timestamp, int permits) {
+            this.id = id;
+            this.window = window;
+            this.timestamp = timestamp;
+            this.permits = permits;
+        }
+    }
+
+    /**
+     * Calls of a gauge read back from the journal, kept ordered by time. Calls of the same time keep the order they were
+     * read in, so a compensating entry stays after its call.
+     */
+    private static final class Calls {
+
+        long window;
+        long[] calls = new long[8];
+        int size;
+
+        Calls(long window) {
+            this.window = window;
+        }
+
+        void add(long timestamp, long permits) {
+            if (size == calls.length) {
+                long[] grown = new long[size * 2];
+                System.arraycopy(calls, 0, grown, 0, size);
+                calls = grown;
+            }
+            // calls are mostly appended in order, queued by concurrent callers at worst
+            int i = size;
+            while (i > 0 && calls[i - 2] > timestamp) {
+                i -= 2;
+            }
+            System.arraycopy(calls, i, calls, i + 2, size - i);
+            calls[i] = timestamp;
+            calls[i + 1] = permits;
+            size += 2;
+        }
+
+        /**
+         * @return the calls of the longest window as pairs of timestamp and permits, empty if all of them expired
+         */
+        long[] unexpired(long now) {
+            int from = 0;
+            while (from < size && calls[from] < now - window) {
+                from += 2;
+            }
+            long[] unexpired = new long[size - from];
+            System.arraycopy(calls, from, unexpired, 0, unexpired.length);
+            return unexpired;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.weddini.throttling;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -12,29 +15,121 @@ import java.util.concurrent.TimeUnit;
 public class ThrottlingKey {
 
     private final Method method;
-    private final int limit;
+    private final int[] limits;
     private final ThrottlingType type;
-    private final TimeUnit timeUnit;
+    private final TimeUnit[] timeUnits;
+    private final ThrottlingMode mode;
+    private final int level;
     private final String evaluatedValue;
+    private final String partition;
+    private final int partitionCapacity;
+    // keys are hashed on every lookup, see com.weddini.throttling.cache.BlockedKeys
+    private final int hash;
 
-    private ThrottlingKey(Method method, int limit, ThrottlingType type, TimeUnit timeUnit, String evaluatedValue) {
+    private ThrottlingKey(Method method, int[] limits, ThrottlingType type, TimeUnit[] timeUnits, ThrottlingMode mode, int level, String evaluatedValue,
+                          String partition, int partitionCapacity) {
         this.method = method;
-        this.limit = limit;
+        this.limits = limits;
         this.type = type;
-        this.timeUnit = timeUnit;
+        this.timeUnits = timeUnits;
+        this.mode = mode;
+        this.level = level;
         this.evaluatedValue = evaluatedValue;
+        this.partition = partition;
+        this.partitionCapacity = partitionCapacity;
+        this.hash = computeHash();
     }
 
     public static Builder builder() {
         return new Builder();
     }
 
+    /**
+     * Groups {@link Throttling} annotations of a method into levels of hierarchical limits.
+     * Annotations sharing the throttling context (type, expression, header and cookie name) are stacked limits
+     * of the same level, e.g. per user, per tenant and global levels. Annotations of a different mode or cache
+     * partition form a level of their own, as a gauge enforces a single mode and lives in a single partition.
+     *
+     * @return annotations of each level, in the order of declaration
+     */
+    public static List<Throttling[]> levels(Throttling[] annotations) {
+        List<Throttling[]> levels = new ArrayList<>(1);
+        boolean[] grouped = new boolean[annotations.length];
+        for (int i = 0; i < annotations.length; i++) {
+            if (grouped[i]) {
+                continue;
+            }
+            List<Throttling> level = new ArrayList<>(1);
+            for (int j = i; j < annotations.length; j++) {
+                if (!grouped[j] && sameContext(annotations[i], annotations[j])) {
+                    grouped[j] = true;
+                    level.add(annotations[j]);
+                }
+            }
+            levels.add(level.toArray(new Throttling[level.size()]));
+        }
+        return levels;
+    }
+
+    /**
+     * @return keys of the levels of hierarchical limits, one per evaluated value of a level
+     */
+    public static List<ThrottlingKey> keys(Method method, List<Throttling[]> levels, List<String> evaluatedValues) {
+        List<ThrottlingKey> keys = new ArrayList<>(levels.size());
+        for (int i = 0; i < levels.size(); i++) {
+            keys.add(builder()
+                    .method(method)
+                    .annotations(levels.get(i))
+                    .level(i)
+                    .evaluatedValue(evaluatedValues.get(i))
+                    .build());
+        }
+        return keys;
+    }
+
+    /**
+     * @return true if any of the levels holds a permit for the duration of a call {@see ThrottlingMode#holdsPermit()}
+     */
+    public static boolean holdsPermit(List<ThrottlingKey> keys) {
+        for (ThrottlingKey key : keys) {
+            if (key.getMode().holdsPermit()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameContext(Throttling a, Throttling b) {
+        return a.type() == b.type()
+                && a.expression().equals(b.expression())
+                && a.headerName().equals(b.headerName())
+                && a.cookieName().equals(b.cookieName())
+                && a.mode() == b.mode()
+                && a.partition().equals(b.partition())
+                && a.partitionCapacity() == b.partitionCapacity();
+    }
+
     public Method getMethod() {
         return method;
     }
 
     public int getLimit() {
-        return limit;
+        return limits[0];
+    }
+
+    /**
+     * @return the simple name of the class and the name of the method, e.g. {@code ReportController#export},
+     * naming the method in limit overrides and resets
+     */
+    public String getGroup() {
+        return method.getDeclaringClass().getSimpleName() + "#" + method.getName();
+    }
+
+    /**
+     * @return limits of all the {@link Throttling} annotations of the method
+     */
+    public int[] getLimits() {
+        return limits.clone();
     }
 
     public ThrottlingType getType() {
@@ -42,13 +137,70 @@ public class ThrottlingKey {
     }
 
     public TimeUnit getTimeUnit() {
-        return timeUnit;
+        return timeUnits[0];
+    }
+
+    /**
+     * @return time units of all the {@link Throttling} annotations of the method
+     */
+    public TimeUnit[] getTimeUnits() {
+        return timeUnits.clone();
+    }
+
+    public ThrottlingMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return index of the level of hierarchical limits, see {@link #levels(Throttling[])}
+     */
+    public int getLevel() {
+        return level;
     }
 
     public String getEvaluatedValue() {
         return evaluatedValue;
     }
 
+    /**
+     * @return a copy of the key enforcing a single limit in place of the limits of the annotations,
+     * e.g. the limit of the evaluated value overridden by {@link com.weddini.throttling.support.LimitOverrides}
+     */
+    public ThrottlingKey withLimit(int limit, TimeUnit timeUnit) {
+        return new ThrottlingKey(method, new int[]{limit}, type, new TimeUnit[]{timeUnit}, mode, level, evaluatedValue,
+                partition, partitionCapacity);
+    }
+
+    /**
+     * @return identity of the key as a string, the same across restarts and replicas,
+     * e.g. {@code com.acme.ReportController#export(java.lang.String,int):0:acme}
+     */
+    String id() {
+        StringBuilder id = new StringBuilder(method.getDeclaringClass().getName()).append('#').append(method.getName()).append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                id.append(',');
+            }
+            id.append(parameterTypes[i].getTypeName());
+        }
+        return id.append("):").append(level).append(':').append(evaluatedValue != null ? evaluatedValue : "").toString();
+    }
+
+    /**
+     * @return name of the cache partition holding the gauge, empty for the shared cache
+     */
+    public String getPartition() {
+        return partition;
+    }
+
+    /**
+     * @return capacity of the cache partition declared by {@link Throttling#partitionCapacity()}, 0 if not declared
+     */
+    public int getPartitionCapacity() {
+        return partitionCapacity;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -56,19 +208,28 @@ public class ThrottlingKey {
 
         ThrottlingKey that = (ThrottlingKey) o;
 
-        if (limit != that.limit) return false;
+        if (hash != that.hash) return false;
+        if (!Arrays.equals(limits, that.limits)) return false;
         if (!method.equals(that.method)) return false;
         if (type != that.type) return false;
-        if (timeUnit != that.timeUnit) return false;
+        if (!Arrays.equals(timeUnits, that.timeUnits)) return false;
+        if (mode != that.mode) return false;
+        if (level != that.level) return false;
         return evaluatedValue != null ? evaluatedValue.equals(that.evaluatedValue) : that.evaluatedValue == null;
     }
 
     @Override
     public int hashCode() {
+        return hash;
+    }
+
+    private int computeHash() {
         int result = method.hashCode();
-        result = 31 * result + limit;
+        result = 31 * result + Arrays.hashCode(limits);
         result = 31 * result + type.hashCode();
-        result = 31 * result + timeUnit.hashCode();
+        result = 31 * result + Arrays.hashCode(timeUnits);
+        result = 31 * result + (mode != null ? mode.hashCode() : 0);
+        result = 31 * result + level;
         result = 31 * result + (evaluatedValue != null ? evaluatedValue.hashCode() : 0);
         return result;
     }
@@ -77,19 +238,25 @@ public class ThrottlingKey {
     public String toString() {
         return "ThrottlingKey{" +
                 "method=" + method +
-                ", limit=" + limit +
+                ", limits=" + Arrays.toString(limits) +
                 ", type=" + type +
-                ", timeUnit=" + timeUnit +
+                ", timeUnits=" + Arrays.toString(timeUnits) +
+                ", mode=" + mode +
+                ", level=" + level +
                 ", evaluatedValue='" + evaluatedValue + '\'' +
                 '}';
     }
 
     public static class Builder {
         private Method method;
-        private int limit;
+        private int[] limits;
         private ThrottlingType type;
-        private TimeUnit timeUnit;
+        private TimeUnit[] timeUnits;
+        private ThrottlingMode mode;
+        private int level;
         private String evaluatedValue;
+        private String partition = "";
+        private int partitionCapacity;
 
         public Builder method(Method method) {
             this.method = method;
@@ -97,9 +264,28 @@ public class ThrottlingKey {
         }
 
         public Builder annotation(Throttling throttling) {
-            this.limit = throttling.limit();
-            this.type = throttling.type();
-            this.timeUnit = throttling.timeUnit();
+            return annotations(throttling);
+        }
+
+        /**
+         * Stacked limits of a level, sharing type, mode and partition {@see #levels(Throttling[])}.
+         */
+        public Builder annotations(Throttling... throttlings) {
+            this.limits = new int[throttlings.length];
+            this.timeUnits = new TimeUnit[throttlings.length];
+            for (int i = 0; i < throttlings.length; i++) {
+                this.limits[i] = throttlings[i].limit();
+                this.timeUnits[i] = throttlings[i].timeUnit();
+            }
+            this.type = throttlings[0].type();
+            this.mode = throttlings[0].mode();
+            this.partition = throttlings[0].partition();
+            this.partitionCapacity = throttlings[0].partitionCapacity();
+            return this;
+        }
+
+        public Builder level(int level) {
+            this.level = level;
             return this;
         }
 
@@ -109,7 +295,7 @@ public class ThrottlingKey {
         }
 
         public ThrottlingKey build() {
-            return new ThrottlingKey(method, limit, type, timeUnit, evaluatedValue);
+            return new ThrottlingKey(method, limits, type, timeUnits, mode, level, evaluatedValue, partition, partitionCapacity);
         }
     }
 }
@@ -0,0 +1,44 @@
+package com.weddini.throttling;
+
+/**
+ * Enumeration of supported throttling modes.
+
+ * <p>Used to decide how {@link Throttling#limit()} is enforced.
+ */
+public enum ThrottlingMode {
+
+    /**
+     * At most {@link Throttling#limit()} calls per {@link Throttling#timeUnit()}
+     */
+    RATE,
+
+    /**
+     * At most {@link Throttling#limit()} calls executing at the same time,
+     * {@link Throttling#timeUnit()} is ignored
+     */
+    CONCURRENCY,
+
+    /**
+     * Concurrency limit starting at {@link Throttling#limit()} and following the measured latency of the method,
+     * {@link Throttling#timeUnit()} is ignored
+     */
+    ADAPTIVE,
+
+    /**
+     * At most {@link Throttling#limit()} calls per {@link Throttling#timeUnit()}, counted in a fixed-size
+     * Count-Min Sketch shared by all the values of the method instead of a gauge per value.
+     * For values of unbounded cardinality, e.g. URL and IP address, which would not fit the cache.
+     * Counts may be overestimated but never underestimated, so a value may be rejected early
+     * but never exceeds the limit, see {@link com.weddini.throttling.support.CountMinSketch}.
+     * Calls are never delayed, {@link Throttling#maxWait()} is ignored
+     */
+    APPROXIMATE;
+
+    /**
+     * @return true if a call holds its permit until it completes
+     */
+    public boolean holdsPermit() {
+        return this == CONCURRENCY || this == ADAPTIVE;
+    }
+
+}
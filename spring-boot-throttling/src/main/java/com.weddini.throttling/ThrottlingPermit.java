@@ -0,0 +1,23 @@
+package com.weddini.throttling;
+
+/**
+ * Permits held by a call for its duration {@see ThrottlingMode#holdsPermit()}, returned to the very gauges which
+ * granted them once the call completes, even if the gauges were evicted, reset or overridden in the meantime.
+ */
+@FunctionalInterface
+public interface ThrottlingPermit {
+
+    /**
+     * Permit of a call which holds none.
+     */
+    ThrottlingPermit NONE = elapsedNanos -> {
+    };
+
+    /**
+     * Returns the permits of the completed call.
+     *
+     * @param elapsedNanos duration of the completed call
+     */
+    void release(long elapsedNanos);
+
+}
@@ -0,0 +1,231 @@
+package com.weddini.throttling;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary snapshot of the sliding logs of {@link ThrottlingGauge}s, so their calls outlive a restart
+ * of the application.
+ *
+ * <p>{@link #write(Path, Iterable)} maps the file in memory and writes, per gauge, its key, the time its newest call
+ * expires at and its calls as pairs of timestamp and permits. A snapshot is read back lazily: the file is indexed
+ * in the background, skipping gauges whose newest call already expired, and the calls of a gauge are only read once
+ * its key is first used by {@link #restore(ThrottlingKey, ThrottlingGauge)}. Calls are never waited for: a gauge created
+ * before the file is indexed starts empty. The file is deleted once indexed, so a snapshot is restored by a single run.
+ */
+public class ThrottlingSnapshot {
+
+    private static final int MAGIC = 0x54485253;
+    private static final int VERSION = 1;
+    // magic, version, time of the snapshot, number of gauges
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+    // timestamp and permits
+    private static final int CALL_SIZE = 8 + 4;
+
+    private static final Log logger = LogFactory.getLog(ThrottlingSnapshot.class);
+
+    // offset of the calls of each gauge by key, completed once the file is indexed
+    private final CompletableFuture<Map<String, Integer>> index = new CompletableFuture<>();
+    private volatile ByteBuffer buffer;
+
+    /**
+     * Indexes the snapshot in the background, a missing file is an empty snapshot.
+     */
+    public ThrottlingSnapshot(Path file) {
+        Thread loader = new Thread(() -> load(file), "throttling-snapshot");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Writes the calls of the gauges to the file, replaced at once.
+     *
+     * @return number of gauges written
+     */
+    public static int write(Path file, Iterable<Map.Entry<ThrottlingKey, ThrottlingGauge>> gauges) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<long[]> calls = new ArrayList<>();
+        List<Long> windows = new ArrayList<>();
+        for (Map.Entry<ThrottlingKey, ThrottlingGauge> gauge : gauges) {
+            long[] gaugeCalls = gauge.getValue().calls();
+            if (gaugeCalls.length > 0) {
+                keys.add(gauge.getKey().id());
+                calls.add(gaugeCalls);
+                windows.add(gauge.getValue().getWindow());
+            }
+        }
+        return write(file, keys, calls, windows);
+    }
+
+    /**
+     * Writes the calls of gauges identified by {@link ThrottlingKey#id()}, none of them empty.
+     *
+     * @param calls   calls of each gauge ordered by time, as pairs of timestamp and permits
+     * @param windows longest window of each gauge in milliseconds
+     */
+    static int write(Path file, List<String> ids, List<long[]> calls, List<Long> windows) throws IOException {
+        long now = System.currentTimeMillis();
+        List<byte[]> keys = new ArrayList<>(ids.size());
+        long size = HEADER_SIZE;
+        for (int i = 0; i < ids.size(); i++) {
+            byte[] key = ids.get(i).getBytes(StandardCharsets.UTF_8);
+            keys.add(key);
+            size += 4 + key.length + 8 + 4 + (long) calls.get(i).length / 2 * CALL_SIZE;
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.putInt(MAGIC).putInt(VERSION).putLong(now).putInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                long[] gaugeCalls = calls.get(i);
+                long expiresAt = gaugeCalls[gaugeCalls.length - 2] + windows.get(i);
+                out.putInt(keys.get(i).length).put(keys.get(i)).putLong(expiresAt).putInt(gaugeCalls.length / 2);
+                for (int j = 0; j < gaugeCalls.length; j += 2) {
+                    out.putLong(gaugeCalls[j]).putInt((int) gaugeCalls[j + 1]);
+                }
+            }
+            out.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return keys.size();
+    }
+
+    /**
+     * Reads all the gauges of the file at once, expired gauges included.
+     *
+     * @param reader receives the id of each gauge, the longest window and its calls as pairs of timestamp and permits
+     */
+    static void read(Path file, Reader reader) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = header(in);
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[in.getInt()];
+                in.get(key);
+                long expiresAt = in.getLong();
+                long[] calls = new long[in.getInt() * 2];
+                for (int j = 0; j < calls.length; j += 2) {
+                    calls[j] = in.getLong();
+                    calls[j + 1] = in.getInt();
+                }
+                reader.read(new String(key, StandardCharsets.UTF_8), expiresAt - calls[calls.length - 2], calls);
+            }
+        }
+    }
+
+    /**
+     * Checks the header and moves past it.
+     *
+     * @return number of gauges of the snapshot
+     */
+    private static int header(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException("not a throttling snapshot");
+        }
+        in.getLong();
+        return in.getInt();
+    }
+
+    private void load(Path file) {
+        Map<String, Integer> offsets = new ConcurrentHashMap<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = header(in);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[in.getInt()];
+                in.get(key);
+                long expiresAt = in.getLong();
+                int offset = in.position();
+                int calls = in.getInt();
+                if (expiresAt > now) {
+                    offsets.put(new String(key, StandardCharsets.UTF_8), offset);
+                }
+                in.position(in.position() + calls * CALL_SIZE);
+            }
+            buffer = in;
+            Files.delete(file);
+            if (logger.isInfoEnabled()) {
+                logger.info("Throttling snapshot of " + count + " gauges loaded, " + offsets.size() + " of them still live");
+            }
+        } catch (NoSuchFileException e) {
+            // nothing to restore
+        } catch (IOException | RuntimeException e) {
+            offsets.clear();
+            if (logger.isWarnEnabled()) {
+                logger.warn("cannot load throttling snapshot " + file, e);
+            }
+        }
+        index.complete(offsets);
+    }
+
+    /**
+     * Appends the unexpired calls of the snapshot of the key to the gauge, if any. Never blocks the calling thread:
+     * nothing is restored until the file is indexed.
+     *
+     * @return true if the gauge was found in the snapshot
+     */
+    public boolean restore(ThrottlingKey key, ThrottlingGauge gauge) {
+        Map<String, Integer> offsets = index.getNow(Collections.emptyMap());
+        // read before the key is taken, the buffer is only released once all the keys are taken
+        ByteBuffer in = buffer;
+        Integer offset = offsets.isEmpty() ? null : offsets.remove(key.id());
+        if (offset == null) {
+            return false;
+        }
+        long threshold = System.currentTimeMillis() - gauge.getWindow();
+        int calls = in.getInt(offset);
+        for (int i = 0; i < calls; i++) {
+            int position = offset + 4 + i * CALL_SIZE;
+            long timestamp = in.getLong(position);
+            if (timestamp >= threshold) {
+                gauge.restore(timestamp, in.getInt(position + 8));
+            }
+        }
+        if (offsets.isEmpty()) {
+            // every gauge was restored, the mapping is released with the buffer
+            buffer = null;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of gauges of the snapshot not restored yet, 0 until the file is indexed
+     */
+    public int size() {
+        return index.getNow(Collections.emptyMap()).size();
+    }
+
+    /**
+     * @return true once the file is indexed, or found missing or unreadable
+     */
+    public boolean isIndexed() {
+        return index.isDone();
+    }
+
+    /**
+     * Receives the gauges read by {@link #read(Path, Reader)}.
+     */
+    interface Reader {
+        void read(String id, long window, long[] calls);
+    }
+}
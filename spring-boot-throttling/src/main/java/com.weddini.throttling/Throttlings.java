@@ -0,0 +1,25 @@
+package com.weddini.throttling;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Container annotation for several {@link Throttling} limits on a method.
+ *
+ * <p>Limits sharing the throttling context are enforced at once by a single gauge, limits with a different
+ * context form levels of hierarchical limits {@see com.weddini.throttling.ThrottlingKey#levels(Throttling[])}.
+ * Cost and max wait time of the call are taken from the first {@link Throttling}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD})
+@Inherited
+@Documented
+public @interface Throttlings {
+
+    Throttling[] value();
+
+}
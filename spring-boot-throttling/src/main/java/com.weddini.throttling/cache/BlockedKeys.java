@@ -0,0 +1,76 @@
+package com.weddini.throttling.cache;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small lock-free table of keys known to be rejected until a point in time.
+ *
+ * <p>Slots are addressed by the hash code of the key, which is expected to be precomputed.
+ * A colliding key simply replaces the previous one, so the table never grows and never blocks:
+ * a lookup is a single volatile read of the slot.
+ *
+ * @param <K> The type of the keys
+ */
+public class BlockedKeys<K> {
+
+    private static final int MAXIMUM_CAPACITY = 1 << 16;
+
+    private final AtomicReferenceArray<Blocked<K>> table;
+    private final int mask;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public BlockedKeys(int capacity) {
+        int size = 1;
+        while (size < Math.min(Math.max(capacity, 1), MAXIMUM_CAPACITY)) {
+            size <<= 1;
+        }
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param key the key to look up
+     * @param now the current time in milliseconds
+     * @return the time in milliseconds the key is blocked until, or 0 if the key is not known to be blocked
+     */
+    public long blockedUntil(K key, long now) {
+        Blocked<K> blocked = table.get(slot(key));
+        if (blocked == null || blocked.until <= now || !blocked.key.equals(key)) {
+            return 0;
+        }
+        return blocked.until;
+    }
+
+    /**
+     * @param key   the key rejected until the given time
+     * @param until the time in milliseconds calls with the key are rejected until
+     */
+    public void block(K key, long until) {
+        table.set(slot(key), new Blocked<>(key, until));
+    }
+
+    public void unblock(K key) {
+        int slot = slot(key);
+        Blocked<K> blocked = table.get(slot);
+        if (blocked != null && blocked.key.equals(key)) {
+            table.compareAndSet(slot, blocked, null);
+        }
+    }
+
+    private int slot(K key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static class Blocked<K> {
+        final K key;
+        final long until;
+
+        Blocked(K key, long until) {
+            this.key = key;
+            this.until = until;
+        }
+    }
+}
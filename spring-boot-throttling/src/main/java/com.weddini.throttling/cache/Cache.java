@@ -1,18 +1,25 @@
 package com.weddini.throttling.cache;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.ToLongBiFunction;
 
@@ -43,16 +50,22 @@ public class Cache<K, V> {
     // the weight of the entries in the cache
     private long weight = 0;
 
-    // the maximum weight that this cache supports
-    private long maximumWeight = -1;
+    // the maximum weight that this cache supports, changed at runtime by resize
+    private volatile long maximumWeight = -1;
 
     // the weigher of entries
     private ToLongBiFunction<K, V> weigher = (k, v) -> 1;
 
+    // values kept out of size-based and time-based eviction while the predicate holds
+    private Predicate<V> pinned = value -> false;
+
     // the removal callback
     private RemovalListener<K, V> removalListener = notification -> {
     };
 
+    // secondary indexes of the entries by name, guarded by the LRU lock
+    private final Map<String, Index<K, V>> indexes = new HashMap<>();
+
     // use CacheBuilder to construct
     Cache() {
     }
@@ -90,6 +103,15 @@ public class Cache<K, V> {
         this.removalListener = removalListener;
     }
 
+    void setPinned(Predicate<V> pinned) {
+        Objects.requireNonNull(pinned);
+        this.pinned = pinned;
+    }
+
+    void addIndex(String name, Function<K, ?> extractor) {
+        indexes.put(name, new Index<>(extractor));
+    }
+
     /**
      * The relative time used to track time-based evictions.
      *
@@ -259,6 +281,8 @@ public class Cache<K, V> {
     }
 
     private static final int NUMBER_OF_SEGMENTS = 256;
+    // max number of entries evicted under a single acquisition of the LRU lock
+    private static final int EVICTION_BATCH = 64;
     @SuppressWarnings("unchecked")
     private final CacheSegment<K, V>[] segments = new CacheSegment[NUMBER_OF_SEGMENTS];
 
@@ -370,6 +394,41 @@ public class Cache<K, V> {
         return value;
     }
 
+    /**
+     * Batch variant of {@link #computeIfAbsent(Object, CacheLoader)}, present entries are promoted
+     * in the LRU list under a single acquisition of the LRU lock.
+     *
+     * @param keys   the keys whose associated values are to be returned or computed for if non-existent
+     * @param loader the function to compute a value given a key
+     * @return the current (existing or computed) non-null values associated with the keys, in the order of the keys
+     * @throws ExecutionException thrown if loader throws an exception or returns a null value
+     */
+    public List<V> computeAllIfAbsent(List<K> keys, CacheLoader<K, V> loader) throws ExecutionException {
+        long now = now();
+        List<Entry<K, V>> entries = new ArrayList<>(keys.size());
+        List<Entry<K, V>> expired = new ArrayList<>(0);
+        for (K key : keys) {
+            entries.add(getCacheSegment(key).get(key, now, e -> isExpired(e, now), expired::add));
+        }
+
+        boolean[] promoted = new boolean[entries.size()];
+        try (ReleasableLock ignored = lruLock.acquire()) {
+            for (Entry<K, V> entry : expired) {
+                evictEntry(entry);
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                Entry<K, V> entry = entries.get(i);
+                promoted[i] = entry != null && promote(entry, now);
+            }
+        }
+
+        List<V> values = new ArrayList<>(keys.size());
+        for (int i = 0; i < entries.size(); i++) {
+            values.add(promoted[i] ? entries.get(i).value : computeIfAbsent(keys.get(i), loader));
+        }
+        return values;
+    }
+
     /**
      * @param key   key with which the specified value is to be associated
      * @param value value to be associated with the specified key
@@ -386,6 +445,7 @@ public class Cache<K, V> {
         try (ReleasableLock ignored = lruLock.acquire()) {
             if (tuple.v2() != null && tuple.v2().state == State.EXISTING) {
                 if (unlink(tuple.v2())) {
+                    unindex(tuple.v2());
                     replaced = true;
                 }
             }
@@ -403,13 +463,60 @@ public class Cache<K, V> {
      * @param key the key whose mapping is to be invalidated from the cache
      */
     public void invalidate(K key) {
+        remove(key);
+    }
+
+    /**
+     * @return true if an entry of the key was invalidated
+     */
+    private boolean remove(K key) {
         CacheSegment<K, V> segment = getCacheSegment(key);
         Entry<K, V> entry = segment.remove(key);
         if (entry != null) {
             try (ReleasableLock ignored = lruLock.acquire()) {
                 delete(entry, RemovalNotification.RemovalReason.INVALIDATED);
             }
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Invalidate the entries whose key derives the value in the given index, see
+     * {@link CacheBuilder#index(String, Function)}. A removal notification will be issued for invalidated entries with
+     * {@link com.weddini.throttling.cache.RemovalNotification.RemovalReason} INVALIDATED.
+     * <p>
+     * Costs time proportional to the number of matching entries: they are looked up in the index under the LRU lock,
+     * then invalidated one at a time like {@link #invalidate(Object)}, so other keys are never blocked for longer than
+     * a single invalidation. Entries added meanwhile may be left in the cache.
+     *
+     * @param index the name of the index
+     * @param value the indexed value of the entries to invalidate
+     * @return the keys of the invalidated entries
+     */
+    public List<K> invalidateAll(String index, Object value) {
+        Index<K, V> lookup = indexes.get(index);
+        if (lookup == null) {
+            throw new IllegalArgumentException("no index named '" + index + "'");
+        }
+        List<K> matches;
+        try (ReleasableLock ignored = lruLock.acquire()) {
+            Set<Entry<K, V>> entries = lookup.entries.get(value);
+            if (entries == null) {
+                return Collections.emptyList();
+            }
+            matches = new ArrayList<>(entries.size());
+            for (Entry<K, V> entry : entries) {
+                matches.add(entry.key);
+            }
+        }
+        List<K> invalidated = new ArrayList<>(matches.size());
+        for (K key : matches) {
+            if (remove(key)) {
+                invalidated.add(key);
+            }
+        }
+        return invalidated;
     }
 
     /**
@@ -436,6 +543,7 @@ public class Cache<K, V> {
                 head = tail = null;
                 count = 0;
                 weight = 0;
+                indexes.values().forEach(index -> index.entries.clear());
             }
         } finally {
             for (int i = NUMBER_OF_SEGMENTS - 1; i >= 0; i--) {
@@ -455,9 +563,16 @@ public class Cache<K, V> {
      */
     public void refresh() {
         long now = now();
-        try (ReleasableLock ignored = lruLock.acquire()) {
-            evict(now);
-        }
+        boolean exceeded;
+        do {
+            try (ReleasableLock ignored = lruLock.acquire()) {
+                exceeded = evict(now);
+            }
+            if (exceeded) {
+                // let the calls waiting for the LRU lock take it before the next batch
+                Thread.yield();
+            }
+        } while (exceeded);
     }
 
     /**
@@ -478,6 +593,31 @@ public class Cache<K, V> {
         return weight;
     }
 
+    /**
+     * The maximum weight of the entries in the cache.
+     *
+     * @return the maximum weight of the entries in the cache, -1 if unbounded
+     */
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * Changes the maximum weight of the cache at runtime. Once shrunk, the entries over the new weight are evicted
+     * from the tail of the LRU list in batches of at most {@value #EVICTION_BATCH} entries, releasing the LRU lock
+     * in between, so that calls to the cache are never held behind the whole eviction. Calls to the cache meanwhile
+     * evict at most a batch each.
+     *
+     * @param maximumWeight the new maximum weight
+     */
+    public void resize(long maximumWeight) {
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("maximumWeight < 0");
+        }
+        this.maximumWeight = maximumWeight;
+        refresh();
+    }
+
     /**
      * An LRU sequencing of the keys in the cache that supports removal. This sequence is not protected from mutations
      * to the cache (except for {@link Iterator#remove()}. The result of iteration under any other mutation is
@@ -528,6 +668,20 @@ public class Cache<K, V> {
         };
     }
 
+    /**
+     * Performs an action for each entry of the cache in LRU order, under the LRU lock. The action should not call
+     * the cache.
+     *
+     * @param action the action to perform on the key and the value of each entry
+     */
+    public void forEach(BiConsumer<K, V> action) {
+        try (ReleasableLock ignored = lruLock.acquire()) {
+            for (Entry<K, V> entry = head; entry != null; entry = entry.after) {
+                action.accept(entry.key, entry.value);
+            }
+        }
+    }
+
     private class CacheIterator implements Iterator<Entry<K, V>> {
         private Entry<K, V> current;
         private Entry<K, V> next;
@@ -617,6 +771,7 @@ public class Cache<K, V> {
                     break;
                 case NEW:
                     linkAtHead(entry);
+                    index(entry);
                     break;
             }
             if (promoted) {
@@ -626,12 +781,29 @@ public class Cache<K, V> {
         return promoted;
     }
 
-    private void evict(long now) {
+    /**
+     * Visits at most {@value #EVICTION_BATCH} entries from the tail, a shrunk cache is brought back to its maximum weight
+     * over several calls. Pinned entries are moved to the head instead of being evicted, so the cache may exceed its
+     * maximum weight by the weight of the pinned entries.
+     *
+     * @return true if entries were evicted and more are left to evict
+     */
+    private boolean evict(long now) {
         assert lruLock.isHeldByCurrentThread();
 
-        while (tail != null && shouldPrune(tail, now)) {
-            evictEntry(tail);
+        int evicted = 0;
+        for (int visited = 0; tail != null && shouldPrune(tail, now); visited++) {
+            if (visited == EVICTION_BATCH) {
+                return evicted > 0;
+            }
+            if (pinned.test(tail.value)) {
+                relinkAtHead(tail);
+            } else {
+                evictEntry(tail);
+                evicted++;
+            }
         }
+        return false;
     }
 
     private void evictEntry(Entry<K, V> entry) {
@@ -648,10 +820,48 @@ public class Cache<K, V> {
         assert lruLock.isHeldByCurrentThread();
 
         if (unlink(entry)) {
+            unindex(entry);
             removalListener.onRemoval(new RemovalNotification<>(entry.key, entry.value, removalReason));
         }
     }
 
+    // entries are indexed once linked and unindexed once unlinked for good, not when promoted
+    private void index(Entry<K, V> entry) {
+        assert lruLock.isHeldByCurrentThread();
+
+        for (Index<K, V> index : indexes.values()) {
+            index.entries.computeIfAbsent(index.extractor.apply(entry.key),
+                    value -> Collections.newSetFromMap(new IdentityHashMap<>())).add(entry);
+        }
+    }
+
+    private void unindex(Entry<K, V> entry) {
+        assert lruLock.isHeldByCurrentThread();
+
+        for (Index<K, V> index : indexes.values()) {
+            Object value = index.extractor.apply(entry.key);
+            Set<Entry<K, V>> entries = index.entries.get(value);
+            if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+                index.entries.remove(value);
+            }
+        }
+    }
+
+    /**
+     * A secondary index of the linked entries by a value derived from their key.
+     *
+     * @param <K> the type of the keys
+     * @param <V> the type of the values
+     */
+    private static class Index<K, V> {
+        final Function<K, ?> extractor;
+        final Map<Object, Set<Entry<K, V>>> entries = new HashMap<>();
+
+        Index(Function<K, ?> extractor) {
+            this.extractor = extractor;
+        }
+    }
+
     private boolean shouldPrune(Entry<K, V> entry, long now) {
         return exceedsWeight() || isExpired(entry, now);
     }
@@ -661,8 +871,8 @@ public class Cache<K, V> {
     }
 
     private boolean isExpired(Entry<K, V> entry, long now) {
-        return (entriesExpireAfterAccess && now - entry.accessTime > expireAfterAccessNanos) ||
-                (entriesExpireAfterWrite && now - entry.writeTime > expireAfterWriteNanos);
+        return ((entriesExpireAfterAccess && now - entry.accessTime > expireAfterAccessNanos) ||
+                (entriesExpireAfterWrite && now - entry.writeTime > expireAfterWriteNanos)) && !pinned.test(entry.value);
     }
 
     private boolean unlink(Entry<K, V> entry) {
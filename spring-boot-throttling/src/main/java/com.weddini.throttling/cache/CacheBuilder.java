@@ -1,6 +1,10 @@
 package com.weddini.throttling.cache;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.ToLongBiFunction;
 
 public class CacheBuilder<K, V> {
@@ -10,6 +14,8 @@ public class CacheBuilder<K, V> {
     private long expireAfterWriteNanos = -1;
     private ToLongBiFunction<K, V> weigher;
     private RemovalListener<K, V> removalListener;
+    private Predicate<V> pinned;
+    private final Map<String, Function<K, ?>> indexes = new LinkedHashMap<>();
 
     public static <K, V> CacheBuilder<K, V> builder() {
         return new CacheBuilder<>();
@@ -56,6 +62,32 @@ public class CacheBuilder<K, V> {
         return this;
     }
 
+    /**
+     * Keeps the entries whose value matches the predicate out of size-based and time-based eviction, e.g. values in use.
+     * Pinned entries are still removed by invalidation.
+     *
+     * @param pinned the predicate, evaluated by every eviction and expiration check, so it should be cheap and thread-safe
+     */
+    public CacheBuilder<K, V> pinned(Predicate<V> pinned) {
+        Objects.requireNonNull(pinned);
+        this.pinned = pinned;
+        return this;
+    }
+
+    /**
+     * Adds a secondary index of the entries by a value derived from their key,
+     * see {@link Cache#invalidateAll(String, Object)}.
+     *
+     * @param name      the name of the index
+     * @param extractor the function deriving the indexed value from a key
+     */
+    public CacheBuilder<K, V> index(String name, Function<K, ?> extractor) {
+        Objects.requireNonNull(name);
+        Objects.requireNonNull(extractor);
+        this.indexes.put(name, extractor);
+        return this;
+    }
+
     public Cache<K, V> build() {
         Cache<K, V> cache = new Cache<>();
         if (maximumWeight != -1) {
@@ -73,6 +105,10 @@ public class CacheBuilder<K, V> {
         if (removalListener != null) {
             cache.setRemovalListener(removalListener);
         }
+        if (pinned != null) {
+            cache.setPinned(pinned);
+        }
+        indexes.forEach(cache::addIndex);
         return cache;
     }
 }
@@ -2,11 +2,45 @@ package com.weddini.throttling.service;
 
 import com.weddini.throttling.Throttling;
 
+import javax.servlet.http.HttpServletRequest;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public interface ThrottlingEvaluator {
 
     String evaluate(Throttling throttlingConfig, Object bean, Class clazz, Method method, Object[] args);
 
+    /**
+     * Evaluates the throttling context of each level of hierarchical limits
+     * {@see com.weddini.throttling.ThrottlingKey#levels(Throttling[])}.
+     *
+     * @param levels configuration of each level
+     * @return evaluated values in the order of the levels
+     */
+    default List<String> evaluate(List<Throttling[]> levels, Object bean, Class clazz, Method method, Object[] args) {
+        List<String> values = new ArrayList<>(levels.size());
+        for (Throttling[] level : levels) {
+            values.add(evaluate(level[0], bean, clazz, method, args));
+        }
+        return values;
+    }
+
+    /**
+     * @return number of permits the call costs {@see Throttling#cost()}
+     */
+    default int evaluateCost(Throttling throttlingConfig, Object bean, Class clazz, Method method, Object[] args) {
+        return 1;
+    }
+
+    /**
+     * Evaluates the cost of a request to a controller, whose arguments are not resolved yet when it is throttled.
+     *
+     * @return number of permits the request costs {@see Throttling#cost()}
+     */
+    default int evaluateCost(Throttling throttlingConfig, Object bean, Class clazz, Method method, HttpServletRequest request) {
+        return 1;
+    }
+
 }
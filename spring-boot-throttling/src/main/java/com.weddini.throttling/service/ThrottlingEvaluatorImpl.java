@@ -1,6 +1,7 @@
 package com.weddini.throttling.service;
 
 import com.weddini.throttling.Throttling;
+import com.weddini.throttling.support.AddressMask;
 import com.weddini.throttling.support.SpElEvaluator;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -11,7 +12,10 @@ import org.springframework.web.context.request.ServletRequestAttributes;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static com.weddini.throttling.ThrottlingType.SpEL;
 
@@ -21,16 +25,64 @@ public class ThrottlingEvaluatorImpl implements ThrottlingEvaluator {
     private final Log logger = LogFactory.getLog(getClass());
 
     private final SpElEvaluator spElEvaluator;
+    private final AddressMask addressMask;
 
     public ThrottlingEvaluatorImpl() {
+        this(AddressMask.NONE);
+    }
+
+    /**
+     * @param addressMask networks remote addresses are aggregated into
+     */
+    public ThrottlingEvaluatorImpl(AddressMask addressMask) {
         this.spElEvaluator = new SpElEvaluator();
+        this.addressMask = addressMask;
     }
 
     @Override
     public String evaluate(Throttling throttlingConfig, Object bean, Class clazz, Method method, Object[] args) {
+        return evaluate(throttlingConfig, bean, clazz, method, args, isSpEL(throttlingConfig) ? null : currentRequest());
+    }
+
+    /**
+     * Resolves the current request once for all the levels.
+     */
+    @Override
+    public List<String> evaluate(List<Throttling[]> levels, Object bean, Class clazz, Method method, Object[] args) {
+        List<String> values = new ArrayList<>(levels.size());
+        HttpServletRequest servletRequest = null;
+        boolean resolved = false;
+        for (Throttling[] level : levels) {
+            if (!resolved && !isSpEL(level[0])) {
+                servletRequest = currentRequest();
+                resolved = true;
+            }
+            values.add(evaluate(level[0], bean, clazz, method, args, servletRequest));
+        }
+        return values;
+    }
+
+    private static boolean isSpEL(Throttling throttlingConfig) {
+        return throttlingConfig.type().equals(SpEL) && !StringUtils.isEmpty(throttlingConfig.expression());
+    }
+
+    private HttpServletRequest currentRequest() {
+        try {
+            return ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getRequest();
+        } catch (IllegalStateException e) {
+            if (logger.isErrorEnabled()) {
+                logger.error("no RequestAttributes object is bound to the current thread, " +
+                        "please check @Throttling configuration.", e);
+            }
+        }
+        return null;
+    }
+
+    private String evaluate(Throttling throttlingConfig, Object bean, Class clazz, Method method, Object[] args,
+                            HttpServletRequest servletRequest) {
         String value = null;
 
-        if (throttlingConfig.type().equals(SpEL) && !StringUtils.isEmpty(throttlingConfig.expression())) {
+        if (isSpEL(throttlingConfig)) {
             try {
                 value = spElEvaluator.evaluate(throttlingConfig.expression(), bean, args, clazz, method);
             } catch (Throwable t) {
@@ -42,16 +94,6 @@ public class ThrottlingEvaluatorImpl implements ThrottlingEvaluator {
 
         } else {
 
-            HttpServletRequest servletRequest = null;
-            try {
-                servletRequest = ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getRequest();
-            } catch (IllegalStateException e) {
-                if (logger.isErrorEnabled()) {
-                    logger.error("no RequestAttributes object is bound to the current thread, " +
-                            "please check @Throttling configuration.", e);
-                }
-            }
-
             if (servletRequest == null) {
                 if (logger.isErrorEnabled()) {
                     logger.error("cannot find HttpServletRequest in RequestContextHolder while processing " +
@@ -98,7 +140,7 @@ public class ThrottlingEvaluatorImpl implements ThrottlingEvaluator {
                         break;
 
                     case RemoteAddr:
-                        value = servletRequest.getRemoteAddr();
+                        value = addressMask.mask(servletRequest.getRemoteAddr());
                         break;
                 }
             }
@@ -106,4 +148,34 @@ public class ThrottlingEvaluatorImpl implements ThrottlingEvaluator {
 
         return value;
     }
+
+    @Override
+    public int evaluateCost(Throttling throttlingConfig, Object bean, Class clazz, Method method, Object[] args) {
+        try {
+            return spElEvaluator.evaluateCost(throttlingConfig.cost(), bean, args, clazz, method);
+        } catch (Throwable t) {
+            if (logger.isErrorEnabled()) {
+                logger.error("exception occurred while evaluating cost = '" +
+                        throttlingConfig.cost() + "', please check @Throttling configuration.", t);
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Expressions are evaluated against the request, available as {@code #request}, e.g. {@code #request.contentLength / 1024}.
+     */
+    @Override
+    public int evaluateCost(Throttling throttlingConfig, Object bean, Class clazz, Method method, HttpServletRequest request) {
+        try {
+            return spElEvaluator.evaluateCost(throttlingConfig.cost(), bean,
+                    Collections.singletonMap("request", request), clazz, method);
+        } catch (Throwable t) {
+            if (logger.isErrorEnabled()) {
+                logger.error("exception occurred while evaluating cost = '" +
+                        throttlingConfig.cost() + "', please check @Throttling configuration.", t);
+            }
+        }
+        return 1;
+    }
 }
@@ -1,10 +1,270 @@
 package com.weddini.throttling.service;
 
+import com.weddini.throttling.ThrottlingDecision;
+import com.weddini.throttling.ThrottlingJournal;
 import com.weddini.throttling.ThrottlingKey;
+import com.weddini.throttling.ThrottlingPermit;
+import com.weddini.throttling.support.HeavyHitters;
+import com.weddini.throttling.support.LimitOverrides;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 
 public interface ThrottlingService {
 
     boolean throttle(ThrottlingKey key, String evaluatedValue);
 
+    /**
+     * Takes several permits at once {@see com.weddini.throttling.Throttling#cost()}.
+     * Implementations not supporting weighted permits take a single one.
+     */
+    default boolean throttle(ThrottlingKey key, String evaluatedValue, int permits) {
+        return throttle(key, evaluatedValue);
+    }
+
+    /**
+     * Reserves a permit available within {@code maxWait} milliseconds.
+     *
+     * @return time in milliseconds to wait before proceeding with the call, or -1 if the call is not allowed
+     */
+    default long reserve(ThrottlingKey key, String evaluatedValue, long maxWait) {
+        return throttle(key, evaluatedValue) ? 0 : -1;
+    }
+
+    /**
+     * Reserves several permits available within {@code maxWait} milliseconds.
+     * Implementations not supporting weighted permits reserve a single one.
+     */
+    default long reserve(ThrottlingKey key, String evaluatedValue, long maxWait, int permits) {
+        return reserve(key, evaluatedValue, maxWait);
+    }
+
+    /**
+     * Reserves permits from every level of hierarchical limits, e.g. per user, per tenant and global
+     * {@see com.weddini.throttling.ThrottlingKey#levels(com.weddini.throttling.Throttling[])}.
+     * Either every level takes the permits or none of them, permits taken by the preceding levels
+     * are rolled back once a level rejects the call.
+     *
+     * @param keys keys of the levels
+     * @return time in milliseconds to wait before proceeding with the call, or -1 if the call is not allowed
+     */
+    default long reserve(List<ThrottlingKey> keys, long maxWait, int permits) {
+        long delay = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            ThrottlingKey key = keys.get(i);
+            long levelDelay = reserve(key, key.getEvaluatedValue(), maxWait, permits);
+            if (levelDelay < 0) {
+                for (int j = i - 1; j >= 0; j--) {
+                    rollback(keys.get(j), permits);
+                }
+                return -1;
+            }
+            delay = Math.max(delay, levelDelay);
+        }
+        return delay;
+    }
+
+    /**
+     * Reserves permits from every level of hierarchical limits, see {@link #reserve(List, long, int)},
+     * and describes the outcome by the level with the least remaining permits, or by the level rejecting the call.
+     * Implementations not exposing the gauge state only tell whether the call is allowed.
+     *
+     * <p>An allowed call holding permits for its duration {@see com.weddini.throttling.ThrottlingMode#holdsPermit()}
+     * returns them with {@link ThrottlingDecision#getPermit()} once it completes.
+     */
+    default ThrottlingDecision decide(List<ThrottlingKey> keys, long maxWait, int permits) {
+        long delay = reserve(keys, maxWait, permits);
+        ThrottlingPermit permit = delay >= 0 && ThrottlingKey.holdsPermit(keys) ?
+                elapsedNanos -> release(keys, elapsedNanos) : ThrottlingPermit.NONE;
+        return new ThrottlingDecision(delay >= 0, delay, keys.get(0).getLimit(), -1, Long.MAX_VALUE, permit);
+    }
+
+    /**
+     * Takes permits from every level of hierarchical limits, see {@link #reserve(List, long, int)}.
+     */
+    default boolean throttle(List<ThrottlingKey> keys, int permits) {
+        return reserve(keys, 0, permits) == 0;
+    }
+
+    /**
+     * Gives back permits taken by a call which was rejected by another level of hierarchical limits.
+     */
+    default void rollback(ThrottlingKey key, int permits) {
+    }
+
+    /**
+     * Returns the permit of a completed call, used by modes holding a permit for the duration of a call
+     * {@see com.weddini.throttling.ThrottlingMode#holdsPermit()}. The permit is returned to the gauge of the key at the
+     * time of the release, prefer {@link ThrottlingDecision#getPermit()} which returns it to the gauge which granted it.
+     * The key is resolved against the limit overrides of the time of the release: once an override of the key is
+     * reloaded, a permit granted before is not found and stays held.
+     *
+     * @param elapsedNanos duration of the completed call
+     */
+    default void release(ThrottlingKey key, long elapsedNanos) {
+    }
+
+    /**
+     * Returns the permits of a completed call to every level of hierarchical limits.
+     */
+    default void release(List<ThrottlingKey> keys, long elapsedNanos) {
+        for (ThrottlingKey key : keys) {
+            release(key, elapsedNanos);
+        }
+    }
+
+    /**
+     * Blocks until a permit is available, or the timeout elapses.
+     *
+     * <p>Permits are reserved up front, so waiting callers proceed in the order they arrived.
+     * The thread is parked with {@link LockSupport}, which neither pins virtual threads nor spins.
+     *
+     * @return true if the permit was acquired, false if it is not available within the timeout
+     * @throws InterruptedException if the thread is interrupted while waiting, the reserved permit is not released
+     */
+    default boolean acquire(ThrottlingKey key, String evaluatedValue, long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(key, evaluatedValue, 1, timeout, unit);
+    }
+
+    /**
+     * Blocks until several permits are available, or the timeout elapses, see {@link #acquire(ThrottlingKey, String, long, TimeUnit)}.
+     */
+    default boolean acquire(ThrottlingKey key, String evaluatedValue, int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(Collections.singletonList(key), permits, timeout, unit);
+    }
+
+    /**
+     * Blocks until permits of every level of hierarchical limits are available, or the timeout elapses,
+     * see {@link #acquire(ThrottlingKey, String, long, TimeUnit)}.
+     */
+    default boolean acquire(List<ThrottlingKey> keys, int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        return acquirePermit(keys, permits, timeout, unit) != null;
+    }
+
+    /**
+     * Blocks until permits of every level of hierarchical limits are available, or the timeout elapses,
+     * see {@link #acquire(ThrottlingKey, String, long, TimeUnit)}.
+     *
+     * @return permits held by the call for its duration, to release once it completes, {@link ThrottlingPermit#NONE}
+     * if none, or null if the permits are not available within the timeout
+     * @throws InterruptedException if the thread is interrupted while waiting, permits held for the duration of the call
+     *                              are released, the reserved permits are not
+     */
+    default ThrottlingPermit acquirePermit(List<ThrottlingKey> keys, int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        ThrottlingDecision decision = decide(keys, Math.max(0, unit.toMillis(timeout)), permits);
+        if (!decision.isAllowed()) {
+            return null;
+        }
+        // the wait is never longer than the timeout, and the elapsed time is compared so it cannot overflow
+        long wait = Math.min(TimeUnit.MILLISECONDS.toNanos(decision.getDelay()), Math.max(0, unit.toNanos(timeout)));
+        long start = System.nanoTime();
+        for (long remaining = wait; remaining > 0; remaining = wait - (System.nanoTime() - start)) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                decision.getPermit().release(0);
+                throw new InterruptedException();
+            }
+        }
+        return decision.getPermit();
+    }
+
+    /**
+     * @param n max number of keys to return
+     * @return keys calling most often, by permits asked for, in bounded memory
+     */
+    default List<HeavyHitters.Hitter<ThrottlingKey>> getTopKeys(int n) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param n max number of keys to return
+     * @return keys rejected most often, by permits asked for, in bounded memory
+     */
+    default List<HeavyHitters.Hitter<ThrottlingKey>> getTopRejectedKeys(int n) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return true if a decision may wait for the network, e.g. on a shared store, so callers on an event loop are to
+     * decide on another thread
+     */
+    default boolean isBlocking() {
+        return false;
+    }
+
+    /**
+     * Enforces the overridden limits of evaluated values in place of the limits of the annotations. Keys of the calls
+     * carry the effective limits, so gauges of an override changed by a reload start anew.
+     * Implementations not supporting overrides ignore them.
+     */
+    default void setLimitOverrides(LimitOverrides limitOverrides) {
+    }
+
+    /**
+     * Resets the gauges of a method, e.g. of an endpoint, in time proportional to the number of its gauges.
+     * Limits decided by a shared store are not reset. Implementations without a cache reset nothing.
+     *
+     * @param group the method as named by {@link ThrottlingKey#getGroup()}
+     * @return number of gauges reset
+     */
+    default int resetMethod(String group) {
+        return 0;
+    }
+
+    /**
+     * Resets the gauges of an evaluated value across all the methods, e.g. of a user, in time proportional to the
+     * number of its gauges. Limits decided by a shared store are not reset. Implementations without a cache reset nothing.
+     *
+     * @return number of gauges reset
+     */
+    default int resetValue(String evaluatedValue) {
+        return 0;
+    }
+
+    /**
+     * Changes the capacity of the gauge cache at runtime, e.g. during an incident. Gauges over a shrunk capacity are
+     * evicted in bounded batches. Implementations without a cache ignore it.
+     *
+     * @param partition name of the cache partition, null or empty for the shared cache
+     */
+    default void resizeCache(String partition, int capacity) {
+    }
+
+    /**
+     * @param partition name of the cache partition, null or empty for the shared cache
+     * @return capacity of the gauge cache, -1 if unknown
+     */
+    default long getCacheCapacity(String partition) {
+        return -1;
+    }
+
+    /**
+     * Writes the state of the gauges to a snapshot file, e.g. on shutdown.
+     * Implementations not keeping the state in memory write nothing.
+     *
+     * @return number of gauges written
+     */
+    default int writeSnapshot(Path file) throws IOException {
+        return 0;
+    }
+
+    /**
+     * Restores the gauges of a snapshot file written by a previous run, each one on the first use of its key.
+     */
+    default void restoreSnapshot(Path file) {
+    }
+
+    /**
+     * Journals the calls of the gauges, so they are restored after a crash, and restores the calls of the previous runs
+     * on the first use of each key. The journal supersedes a snapshot, which is then not restored.
+     * Implementations not keeping the state in memory journal nothing.
+     */
+    default void setJournal(ThrottlingJournal journal) {
+    }
+
 }
@@ -1,46 +1,732 @@
 package com.weddini.throttling.service;
 
+import com.weddini.throttling.AdaptiveConcurrencyGauge;
+import com.weddini.throttling.AdaptiveLimit;
+import com.weddini.throttling.ApproximateThrottlingGauge;
+import com.weddini.throttling.ConcurrencyGauge;
+import com.weddini.throttling.JournaledThrottlingGauge;
+import com.weddini.throttling.LeasedThrottlingGauge;
+import com.weddini.throttling.StoreThrottlingGauge;
+import com.weddini.throttling.ThrottlingDecision;
 import com.weddini.throttling.ThrottlingGauge;
+import com.weddini.throttling.ThrottlingJournal;
 import com.weddini.throttling.ThrottlingKey;
+import com.weddini.throttling.ThrottlingMode;
+import com.weddini.throttling.ThrottlingPermit;
+import com.weddini.throttling.ThrottlingSnapshot;
+import com.weddini.throttling.cache.BlockedKeys;
 import com.weddini.throttling.cache.Cache;
 import com.weddini.throttling.cache.CacheBuilder;
 import com.weddini.throttling.cache.CacheLoader;
+import com.weddini.throttling.store.ThrottlingStore;
+import com.weddini.throttling.store.ThrottlingStoreException;
+import com.weddini.throttling.support.AccessList;
+import com.weddini.throttling.support.CountMinSketch;
+import com.weddini.throttling.support.HeavyHitters;
+import com.weddini.throttling.support.LimitOverrides;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 
 public class ThrottlingServiceImpl implements ThrottlingService {
 
+    private static final int HEAVY_HITTERS_CAPACITY = 256;
+    private static final int LEASE_THREADS = 2;
+    // about 80KB per window of an approximate level, overcounting by at most 0.3% of the calls of the window
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 1024;
+    private static final int SKETCH_SLICES = 4;
+    // secondary indexes of the gauge caches
+    private static final String METHOD_INDEX = "method";
+    private static final String VALUE_INDEX = "value";
+
     private final Log logger = LogFactory.getLog(getClass());
 
+    private final int cacheSize;
+    // shared by the methods without a partition
     private final Cache<ThrottlingKey, ThrottlingGauge> cache;
-    private final CacheLoader<ThrottlingKey, ThrottlingGauge> gaugeLoader = key -> new ThrottlingGauge(key.getTimeUnit(), key.getLimit());
+    // caches of named partitions, each with its own capacity and LRU lock
+    private final Map<String, Cache<ThrottlingKey, ThrottlingGauge>> partitions = new ConcurrentHashMap<>();
+    private final Map<String, Integer> partitionCapacities;
+    // shared by all the replicas, holds the rate limits instead of the local cache if not null
+    private final ThrottlingStore store;
+    // permits leased from the store at once, 0 to decide each call by the store
+    private final int leaseSize;
+    private final long leaseDuration;
+    // refills and returns leases, null if leasing is disabled
+    private final ScheduledExecutorService leaseExecutor;
+    // keys rejected until their next permit, checked before the cache
+    private final BlockedKeys<ThrottlingKey> blockedKeys;
+    private final AccessList accessList;
+    private final HeavyHitters<ThrottlingKey> calls = new HeavyHitters<>(HEAVY_HITTERS_CAPACITY);
+    private final HeavyHitters<ThrottlingKey> rejections = new HeavyHitters<>(HEAVY_HITTERS_CAPACITY);
+    private final Map<AdaptiveKey, AdaptiveLimit> adaptiveLimits = new ConcurrentHashMap<>();
+    // sketches of approximate levels, one per limit, shared by all the values of a level with the same windows
+    private final Map<SketchKey, CountMinSketch[]> sketches = new ConcurrentHashMap<>();
+    private final CacheLoader<ThrottlingKey, ThrottlingGauge> gaugeLoader = this::createGauge;
+    // gauges of the previous run restored on first use, null if none
+    private volatile ThrottlingSnapshot snapshot;
+    // journal of the calls of rate limits, null if none
+    private volatile ThrottlingJournal journal;
+    // limits of evaluated values overriding the annotations, null if none
+    private volatile LimitOverrides limitOverrides;
 
 
     public ThrottlingServiceImpl(int cacheSize) {
-        this.cache = CacheBuilder.<ThrottlingKey, ThrottlingGauge>builder()
-                .setMaximumWeight(cacheSize)
+        this(cacheSize, null);
+    }
+
+    /**
+     * @param accessList allowlist and denylist checked before any gauge, may be null
+     */
+    public ThrottlingServiceImpl(int cacheSize, AccessList accessList) {
+        this(cacheSize, accessList, Collections.emptyMap());
+    }
+
+    /**
+     * @param partitionCapacities capacities of cache partitions by name, override {@link com.weddini.throttling.Throttling#partitionCapacity()}
+     */
+    public ThrottlingServiceImpl(int cacheSize, AccessList accessList, Map<String, Integer> partitionCapacities) {
+        this(cacheSize, accessList, partitionCapacities, null);
+    }
+
+    /**
+     * @param store store of rate limits shared by all the replicas, may be null to enforce rate limits locally.
+     *              Concurrency and approximate limits are always enforced locally
+     */
+    public ThrottlingServiceImpl(int cacheSize, AccessList accessList, Map<String, Integer> partitionCapacities,
+                                 ThrottlingStore store) {
+        this(cacheSize, accessList, partitionCapacities, store, 0, 0);
+    }
+
+    /**
+     * @param leaseSize     number of permits of a key leased from the store at once and served locally,
+     *                      0 to decide each call by the store
+     * @param leaseDuration time in milliseconds unused leased permits are returned to the store after
+     */
+    public ThrottlingServiceImpl(int cacheSize, AccessList accessList, Map<String, Integer> partitionCapacities,
+                                 ThrottlingStore store, int leaseSize, long leaseDuration) {
+        this.store = store;
+        this.leaseSize = store != null ? leaseSize : 0;
+        this.leaseDuration = leaseDuration;
+        this.leaseExecutor = this.leaseSize > 0 ? Executors.newScheduledThreadPool(LEASE_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "throttling-lease");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        this.accessList = accessList;
+        this.cacheSize = cacheSize;
+        this.cache = createCache(cacheSize);
+        this.partitionCapacities = new ConcurrentHashMap<>(partitionCapacities);
+        this.blockedKeys = new BlockedKeys<>(cacheSize);
+    }
+
+    private static Cache<ThrottlingKey, ThrottlingGauge> createCache(int capacity) {
+        return CacheBuilder.<ThrottlingKey, ThrottlingGauge>builder()
+                .setMaximumWeight(capacity)
+                .index(METHOD_INDEX, ThrottlingKey::getGroup)
+                .index(VALUE_INDEX, ThrottlingKey::getEvaluatedValue)
+                // a concurrency gauge evicted with calls in flight would lose their permits
+                .pinned(ThrottlingGauge::holdsPermits)
+                .removalListener(notification -> {
+                    // unused permits of an evicted lease go back to the store
+                    if (notification.getValue() instanceof LeasedThrottlingGauge) {
+                        ((LeasedThrottlingGauge) notification.getValue()).returnLease();
+                    }
+                })
                 .build();
     }
 
+    /**
+     * @return the cache partition of the key, created on first use
+     */
+    private Cache<ThrottlingKey, ThrottlingGauge> cache(ThrottlingKey key) {
+        if (key.getPartition().isEmpty()) {
+            return cache;
+        }
+        Cache<ThrottlingKey, ThrottlingGauge> partition = partitions.get(key.getPartition());
+        if (partition != null) {
+            return partition;
+        }
+        return partitions.computeIfAbsent(key.getPartition(), name -> {
+            Integer capacity = partitionCapacities.get(name);
+            return createCache(capacity != null ? capacity
+                    : key.getPartitionCapacity() > 0 ? key.getPartitionCapacity() : cacheSize);
+        });
+    }
+
+    private ThrottlingGauge createGauge(ThrottlingKey key) {
+        switch (key.getMode()) {
+            case CONCURRENCY:
+                return new ConcurrencyGauge(key.getLimit());
+            case ADAPTIVE:
+                // the limit follows the latency of the method, shared by all keys of a level of the method
+                return new AdaptiveConcurrencyGauge(adaptiveLimits.computeIfAbsent(
+                        new AdaptiveKey(key.getMethod(), key.getLevel(), key.getLimit()),
+                        adaptiveKey -> new AdaptiveLimit(key.getLimit())));
+            default:
+                if (leaseSize > 0) {
+                    return new LeasedThrottlingGauge(store, key, leaseSize, leaseDuration, leaseExecutor);
+                }
+                ThrottlingJournal journaled = journal;
+                ThrottlingGauge gauge = journaled != null ? new JournaledThrottlingGauge(key, journaled)
+                        : new ThrottlingGauge(key.getTimeUnits(), key.getLimits());
+                ThrottlingSnapshot restored = snapshot;
+                if (journaled != null) {
+                    // the journal supersedes the snapshot, it holds the same calls
+                    journaled.restore(key, gauge);
+                } else if (restored != null) {
+                    restored.restore(key, gauge);
+                }
+                return gauge;
+        }
+    }
+
+    /**
+     * Gauges of levels sharing a partition are looked up at once. Gauges of approximate levels and of rate levels
+     * decided by the store are views of the shared state and bypass the cache, leases of the store are cached.
+     */
+    private List<ThrottlingGauge> gauges(List<ThrottlingKey> keys) throws ExecutionException {
+        if (!hasMode(keys, ThrottlingMode.APPROXIMATE) && (store == null || leaseSize > 0 || !hasMode(keys, ThrottlingMode.RATE))
+                && samePartition(keys)) {
+            return cache(keys.get(0)).computeAllIfAbsent(keys, gaugeLoader);
+        }
+        List<ThrottlingGauge> gauges = new ArrayList<>(keys.size());
+        for (ThrottlingKey key : keys) {
+            if (key.getMode() == ThrottlingMode.APPROXIMATE) {
+                gauges.add(new ApproximateThrottlingGauge(sketches(key), key.getLimits(), key.getEvaluatedValue()));
+            } else if (key.getMode() == ThrottlingMode.RATE && store != null && leaseSize == 0) {
+                gauges.add(new StoreThrottlingGauge(store, key));
+            } else {
+                gauges.add(cache(key).computeIfAbsent(key, gaugeLoader));
+            }
+        }
+        return gauges;
+    }
+
+    private static boolean samePartition(List<ThrottlingKey> keys) {
+        for (int i = 1; i < keys.size(); i++) {
+            if (!keys.get(i).getPartition().equals(keys.get(0).getPartition())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Values whose limits are overridden get the sketches of their own windows.
+     */
+    private CountMinSketch[] sketches(ThrottlingKey key) {
+        TimeUnit[] timeUnits = key.getTimeUnits();
+        return sketches.computeIfAbsent(new SketchKey(key.getMethod(), key.getLevel(), timeUnits), sketchKey -> {
+            CountMinSketch[] levelSketches = new CountMinSketch[timeUnits.length];
+            for (int i = 0; i < timeUnits.length; i++) {
+                levelSketches[i] = new CountMinSketch(timeUnits[i].toMillis(1), SKETCH_DEPTH, SKETCH_WIDTH, SKETCH_SLICES);
+            }
+            return levelSketches;
+        });
+    }
+
+    private static boolean hasMode(List<ThrottlingKey> keys, ThrottlingMode mode) {
+        for (ThrottlingKey key : keys) {
+            if (key.getMode() == mode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean throttle(ThrottlingKey key, String evaluatedValue) {
+        return throttle(key, evaluatedValue, 1);
+    }
+
+    @Override
+    public boolean throttle(ThrottlingKey key, String evaluatedValue, int permits) {
+        return reserve(key, evaluatedValue, 0, permits) == 0;
+    }
+
+    @Override
+    public long reserve(ThrottlingKey key, String evaluatedValue, long maxWait) {
+        return reserve(key, evaluatedValue, maxWait, 1);
+    }
+
+    @Override
+    public long reserve(ThrottlingKey key, String evaluatedValue, long maxWait, int permits) {
+        return reserve(Collections.singletonList(key), maxWait, permits);
+    }
 
+    /**
+     * Looks up the gauges of all the levels at once and rolls back the preceding levels once a level rejects the call.
+     */
+    @Override
+    public long reserve(List<ThrottlingKey> declaredKeys, long maxWait, int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits <= 0");
+        }
+        if (declaredKeys.isEmpty()) {
+            throw new IllegalArgumentException("empty keys");
+        }
+
+        List<ThrottlingKey> keys = access(effective(declaredKeys), permits);
+        if (keys == null || keys.isEmpty()) {
+            return keys != null ? 0 : -1;
+        }
+
+        calls.offer(keys.get(0), permits);
+        long now = System.currentTimeMillis();
+        if (blockedLevel(keys, now, maxWait, permits) >= 0) {
+            return -1;
+        }
+
+        List<ThrottlingGauge> gauges = null;
+        long[] timestamps = new long[keys.size()];
+        int i = 0;
         try {
 
-            ThrottlingGauge gauge = cache.computeIfAbsent(key, gaugeLoader);
-            gauge.removeEldest();
-            return gauge.throttle();
+            gauges = gauges(keys);
+            long delay = 0;
+            for (; i < gauges.size(); i++) {
+                ThrottlingGauge gauge = gauges.get(i);
+                gauge.removeEldest();
+                long levelDelay = gauge.reserve(now, maxWait, permits);
+                for (ThrottlingGauge attached; levelDelay >= 0
+                        && (attached = attach(keys.get(i), gauge, now + levelDelay, permits)) != gauge; ) {
+                    gauge = attached;
+                    gauges.set(i, gauge);
+                    levelDelay = gauge.reserve(now, maxWait, permits);
+                }
+                if (levelDelay < 0) {
+                    reject(keys.get(i), gauge, permits);
+                    rollback(keys, gauges, timestamps, i, permits);
+                    return -1;
+                }
+                timestamps[i] = now + levelDelay;
+                delay = Math.max(delay, levelDelay);
+            }
+            return delay;
 
-        } catch (ExecutionException e) {
+        } catch (ExecutionException | ThrottlingStoreException e) {
             if (logger.isErrorEnabled()) {
                 logger.error("exception occurred while calculating throttle value", e);
             }
+            // the call proceeds without the permits of the levels which granted it, nothing would release them
+            if (gauges != null) {
+                rollback(keys, gauges, timestamps, i, permits);
+            }
         }
 
-        return true;
+        return 0;
+    }
+
+    @Override
+    public ThrottlingDecision decide(List<ThrottlingKey> declaredKeys, long maxWait, int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits <= 0");
+        }
+        if (declaredKeys.isEmpty()) {
+            throw new IllegalArgumentException("empty keys");
+        }
+
+        List<ThrottlingKey> effectiveKeys = effective(declaredKeys);
+        List<ThrottlingKey> keys = access(effectiveKeys, permits);
+        if (keys == null || keys.isEmpty()) {
+            boolean allowed = keys != null;
+            return new ThrottlingDecision(allowed, allowed ? 0 : -1, effectiveKeys.get(0).getLimit(), allowed ? -1 : 0, Long.MAX_VALUE);
+        }
+
+        calls.offer(keys.get(0), permits);
+        long now = System.currentTimeMillis();
+        int blockedLevel = blockedLevel(keys, now, maxWait, permits);
+        if (blockedLevel >= 0) {
+            ThrottlingKey key = keys.get(blockedLevel);
+            return new ThrottlingDecision(false, -1, key.getLimit(), 0, blockedKeys.blockedUntil(key, now));
+        }
+
+        List<ThrottlingGauge> gauges = null;
+        long[] timestamps = new long[keys.size()];
+        int i = 0;
+        try {
+
+            gauges = gauges(keys);
+            ThrottlingDecision tightest = null;
+            long delay = 0;
+            for (; i < gauges.size(); i++) {
+                ThrottlingGauge gauge = gauges.get(i);
+                gauge.removeEldest();
+                ThrottlingDecision decision = gauge.decide(now, maxWait, permits);
+                for (ThrottlingGauge attached; decision.isAllowed()
+                        && (attached = attach(keys.get(i), gauge, now + decision.getDelay(), permits)) != gauge; ) {
+                    gauge = attached;
+                    gauges.set(i, gauge);
+                    decision = gauge.decide(now, maxWait, permits);
+                }
+                if (!decision.isAllowed()) {
+                    reject(keys.get(i), gauge, permits);
+                    rollback(keys, gauges, timestamps, i, permits);
+                    return decision;
+                }
+                timestamps[i] = now + decision.getDelay();
+                if (tightest == null || decision.getRemaining() < tightest.getRemaining()) {
+                    tightest = decision;
+                }
+                delay = Math.max(delay, decision.getDelay());
+            }
+            ThrottlingPermit permit = permit(keys, gauges);
+            return delay == tightest.getDelay() && permit == ThrottlingPermit.NONE ? tightest : new ThrottlingDecision(true, delay,
+                    tightest.getLimit(), tightest.getRemaining(), tightest.getResetAt(), permit);
+
+        } catch (ExecutionException | ThrottlingStoreException e) {
+            if (logger.isErrorEnabled()) {
+                logger.error("exception occurred while calculating throttle value", e);
+            }
+            // the call proceeds without the permits of the levels which granted it, nothing would release them
+            if (gauges != null) {
+                rollback(keys, gauges, timestamps, i, permits);
+            }
+        }
+
+        return new ThrottlingDecision(true, 0, keys.get(0).getLimit(), -1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Gauges holding permits are kept in the cache, but a gauge may have been evicted between its lookup and the permit
+     * it granted. The gauge is then cached again, holding the permit, unless another gauge of the key was cached
+     * meanwhile, in which case the permit is rolled back and is to be taken from that gauge, so later calls count it.
+     *
+     * @param timestamp time the call is logged at by the gauge
+     * @return the gauge if it holds the permit in the cache, or the cached gauge to take the permit from
+     */
+    private ThrottlingGauge attach(ThrottlingKey key, ThrottlingGauge gauge, long timestamp, int permits) throws ExecutionException {
+        if (!key.getMode().holdsPermit() || cache(key).get(key) == gauge) {
+            return gauge;
+        }
+        ThrottlingGauge cached = cache(key).computeIfAbsent(key, absent -> gauge);
+        if (cached != gauge) {
+            gauge.rollback(timestamp, permits);
+        }
+        return cached;
+    }
+
+    /**
+     * @return the permits held by the call, released to the gauges which granted them
+     */
+    private static ThrottlingPermit permit(List<ThrottlingKey> keys, List<ThrottlingGauge> gauges) {
+        if (!ThrottlingKey.holdsPermit(keys)) {
+            return ThrottlingPermit.NONE;
+        }
+        List<ThrottlingGauge> held = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i).getMode().holdsPermit()) {
+                held.add(gauges.get(i));
+            }
+        }
+        return elapsedNanos -> {
+            for (ThrottlingGauge gauge : held) {
+                gauge.release(elapsedNanos);
+            }
+        };
+    }
+
+    /**
+     * @return the keys with the overridden limits of their evaluated values, the keys themselves if none is overridden
+     */
+    private List<ThrottlingKey> effective(List<ThrottlingKey> keys) {
+        LimitOverrides overrides = limitOverrides;
+        if (overrides == null || overrides.size() == 0) {
+            return keys;
+        }
+        List<ThrottlingKey> effective = null;
+        for (int i = 0; i < keys.size(); i++) {
+            ThrottlingKey key = overrides.apply(keys.get(i));
+            if (key != keys.get(i)) {
+                if (effective == null) {
+                    effective = new ArrayList<>(keys);
+                }
+                effective.set(i, key);
+            }
+        }
+        return effective != null ? effective : keys;
+    }
+
+    private ThrottlingKey effective(ThrottlingKey key) {
+        LimitOverrides overrides = limitOverrides;
+        return overrides != null ? overrides.apply(key) : key;
+    }
+
+    /**
+     * Pre-gauge filter stage. Denied values are rejected on any level. Levels of allowed values skip the cache and
+     * the gauges, unless the level holds permits for the duration of a call, those are counted to protect the capacity
+     * of the service. The other levels are throttled as usual, e.g. an allowed user is still limited per tenant.
+     *
+     * @return the keys of the levels to throttle, the keys themselves if none is skipped, empty to allow the call
+     * without throttling, or null to reject it
+     */
+    private List<ThrottlingKey> access(List<ThrottlingKey> keys, int permits) {
+        if (accessList == null) {
+            return keys;
+        }
+        List<ThrottlingKey> throttled = keys;
+        for (int i = 0; i < keys.size(); i++) {
+            ThrottlingKey key = keys.get(i);
+            if (accessList.isDenied(key.getEvaluatedValue())) {
+                rejections.offer(key, permits);
+                return null;
+            }
+            if (accessList.isAllowed(key.getEvaluatedValue()) && !key.getMode().holdsPermit()) {
+                if (throttled == keys) {
+                    throttled = new ArrayList<>(keys.subList(0, i));
+                }
+            } else if (throttled != keys) {
+                throttled.add(key);
+            }
+        }
+        return throttled;
+    }
+
+    /**
+     * Repeated calls of a blocked key are rejected with a single volatile read, touching neither the cache nor the gauge.
+     *
+     * @return index of the level blocked beyond {@code maxWait}, or -1 if none of them is
+     */
+    private int blockedLevel(List<ThrottlingKey> keys, long now, long maxWait, int permits) {
+        for (int i = 0; i < keys.size(); i++) {
+            long until = blockedKeys.blockedUntil(keys.get(i), now);
+            if (until != 0 && until - now > maxWait) {
+                rejections.offer(keys.get(i), permits);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remembers the next permit time of a rejected key. Permits of the sliding log and of the sketch are only
+     * returned by time, so calls of any cost are rejected until then. Concurrency permits are returned by completed calls, so
+     * those keys are never blocked.
+     */
+    private void reject(ThrottlingKey key, ThrottlingGauge gauge, int permits) {
+        rejections.offer(key, permits);
+        if (!key.getMode().holdsPermit()) {
+            blockedKeys.block(key, gauge.nextPermitTime());
+        }
+    }
+
+    /**
+     * @param timestamps times the call is logged at by the gauges of the preceding levels
+     */
+    private void rollback(List<ThrottlingKey> keys, List<ThrottlingGauge> gauges, long[] timestamps, int rejectedLevel, int permits) {
+        for (int j = rejectedLevel - 1; j >= 0; j--) {
+            try {
+                gauges.get(j).rollback(timestamps[j], permits);
+            } catch (ThrottlingStoreException e) {
+                // the permits expire with the window of the store, the other levels are still rolled back
+                if (logger.isWarnEnabled()) {
+                    logger.warn("cannot roll back throttling permits of " + keys.get(j), e);
+                }
+            }
+            blockedKeys.unblock(keys.get(j));
+        }
+    }
+
+    @Override
+    public void rollback(ThrottlingKey declaredKey, int permits) {
+        ThrottlingKey key = effective(declaredKey);
+        ThrottlingGauge gauge = cache(key).get(key);
+        if (gauge != null) {
+            gauge.rollback(permits);
+            blockedKeys.unblock(key);
+        }
+    }
+
+    @Override
+    public void release(ThrottlingKey declaredKey, long elapsedNanos) {
+        ThrottlingKey key = effective(declaredKey);
+        ThrottlingGauge gauge = cache(key).get(key);
+        if (gauge != null) {
+            gauge.release(elapsedNanos);
+        }
+    }
+
+    @Override
+    public void setLimitOverrides(LimitOverrides limitOverrides) {
+        this.limitOverrides = limitOverrides;
+    }
+
+    @Override
+    public int resetMethod(String group) {
+        return reset(METHOD_INDEX, group);
+    }
+
+    @Override
+    public int resetValue(String evaluatedValue) {
+        return reset(VALUE_INDEX, evaluatedValue);
+    }
+
+    /**
+     * Invalidates the matching gauges of the shared cache and of every partition, and unblocks their keys.
+     */
+    private int reset(String index, String value) {
+        int reset = 0;
+        List<Cache<ThrottlingKey, ThrottlingGauge>> caches = new ArrayList<>(partitions.values());
+        caches.add(cache);
+        for (Cache<ThrottlingKey, ThrottlingGauge> gauges : caches) {
+            for (ThrottlingKey key : gauges.invalidateAll(index, value)) {
+                blockedKeys.unblock(key);
+                reset++;
+            }
+        }
+        return reset;
+    }
+
+    /**
+     * The capacity of a partition not created yet applies once it is created.
+     */
+    @Override
+    public void resizeCache(String partition, int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity < 0");
+        }
+        if (partition == null || partition.isEmpty()) {
+            cache.resize(capacity);
+            return;
+        }
+        partitionCapacities.put(partition, capacity);
+        // waits for a partition being created with the previous capacity, if any
+        Cache<ThrottlingKey, ThrottlingGauge> existing = partitions.computeIfPresent(partition, (name, created) -> created);
+        if (existing != null) {
+            existing.resize(capacity);
+        }
+    }
+
+    /**
+     * Decisions wait for the store, even with leases, when a lease is taken or returned.
+     */
+    @Override
+    public boolean isBlocking() {
+        return store != null;
+    }
+
+    @Override
+    public long getCacheCapacity(String partition) {
+        if (partition == null || partition.isEmpty()) {
+            return cache.maximumWeight();
+        }
+        Cache<ThrottlingKey, ThrottlingGauge> existing = partitions.get(partition);
+        if (existing != null) {
+            return existing.maximumWeight();
+        }
+        Integer capacity = partitionCapacities.get(partition);
+        return capacity != null ? capacity : -1;
+    }
+
+    @Override
+    public List<HeavyHitters.Hitter<ThrottlingKey>> getTopKeys(int n) {
+        return calls.top(n);
+    }
+
+    @Override
+    public List<HeavyHitters.Hitter<ThrottlingKey>> getTopRejectedKeys(int n) {
+        return rejections.top(n);
+    }
+
+    /**
+     * Only rate limits kept in the local cache are written, permits of concurrency limits are held by calls
+     * which do not survive a restart.
+     */
+    @Override
+    public int writeSnapshot(Path file) throws IOException {
+        List<Map.Entry<ThrottlingKey, ThrottlingGauge>> gauges = new ArrayList<>();
+        BiConsumer<ThrottlingKey, ThrottlingGauge> collect = (key, gauge) -> {
+            if (gauge.getClass() == ThrottlingGauge.class || gauge.getClass() == JournaledThrottlingGauge.class) {
+                gauges.add(new AbstractMap.SimpleImmutableEntry<>(key, gauge));
+            }
+        };
+        cache.forEach(collect);
+        for (Cache<ThrottlingKey, ThrottlingGauge> partition : partitions.values()) {
+            partition.forEach(collect);
+        }
+        return ThrottlingSnapshot.write(file, gauges);
+    }
+
+    @Override
+    public void restoreSnapshot(Path file) {
+        snapshot = new ThrottlingSnapshot(file);
+    }
+
+    /**
+     * Applies to the gauges created afterwards, gauges already cached are not journaled. Gauges are then restored from
+     * the journal only, never from a snapshot.
+     */
+    @Override
+    public void setJournal(ThrottlingJournal journal) {
+        this.journal = journal;
+    }
+
+    private static final class SketchKey {
+        private final Method method;
+        private final int level;
+        private final TimeUnit[] timeUnits;
+
+        SketchKey(Method method, int level, TimeUnit[] timeUnits) {
+            this.method = method;
+            this.level = level;
+            this.timeUnits = timeUnits;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SketchKey)) return false;
+            SketchKey that = (SketchKey) o;
+            return level == that.level && method.equals(that.method) && Arrays.equals(timeUnits, that.timeUnits);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * method.hashCode() + level) + Arrays.hashCode(timeUnits);
+        }
+    }
+
+    private static final class AdaptiveKey {
+        private final Method method;
+        private final int level;
+        private final int limit;
+
+        AdaptiveKey(Method method, int level, int limit) {
+            this.method = method;
+            this.level = level;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof AdaptiveKey)) return false;
+            AdaptiveKey that = (AdaptiveKey) o;
+            return level == that.level && limit == that.limit && method.equals(that.method);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * method.hashCode() + level) + limit;
+        }
     }
 
 }
@@ -0,0 +1,26 @@
+package com.weddini.throttling.store;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+/**
+ * Transport of the counter batches exchanged by the nodes of a {@link ReplicatedThrottlingStore}.
+ *
+ * <p>Delivery may be lossy, duplicated or out of order: a batch carries the whole count of the sending node per key
+ * and window, so a lost batch is superseded by the next one and a duplicated one is merged away.
+ */
+public interface CounterTransport extends Closeable {
+
+    /**
+     * Sends a batch to all the peers, without waiting for them.
+     */
+    void send(byte[] batch);
+
+    /**
+     * @param receiver called with each batch received from a peer
+     */
+    void receive(Consumer<byte[]> receiver);
+
+    @Override
+    void close();
+}
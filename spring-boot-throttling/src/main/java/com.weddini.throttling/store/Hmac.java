@@ -0,0 +1,38 @@
+package com.weddini.throttling.store;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * HMAC-SHA256 authenticating the traffic of the nodes of a cluster with the secret they share.
+ */
+final class Hmac {
+
+    static final String ALGORITHM = "HmacSHA256";
+    static final int LENGTH = 32;
+
+    private Hmac() {
+    }
+
+    /**
+     * @return a {@link Mac} keyed by the secret, not thread-safe
+     */
+    static Mac create(byte[] secret) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("cannot authenticate the nodes with " + ALGORITHM, e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
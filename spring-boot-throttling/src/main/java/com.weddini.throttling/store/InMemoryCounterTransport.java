@@ -0,0 +1,44 @@
+package com.weddini.throttling.store;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * {@link CounterTransport} delivering batches to connected transports of the same process, meant for tests.
+ * Batches are delivered on the sending thread.
+ */
+public class InMemoryCounterTransport implements CounterTransport {
+
+    private final List<InMemoryCounterTransport> peers = new CopyOnWriteArrayList<>();
+    private volatile Consumer<byte[]> receiver = batch -> {
+    };
+
+    /**
+     * Connects both transports to each other.
+     */
+    public void connect(InMemoryCounterTransport peer) {
+        peers.add(peer);
+        peer.peers.add(this);
+    }
+
+    @Override
+    public void send(byte[] batch) {
+        for (InMemoryCounterTransport peer : peers) {
+            peer.receiver.accept(batch.clone());
+        }
+    }
+
+    @Override
+    public void receive(Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void close() {
+        for (InMemoryCounterTransport peer : peers) {
+            peer.peers.remove(this);
+        }
+        peers.clear();
+    }
+}
@@ -0,0 +1,93 @@
+package com.weddini.throttling.store;
+
+import com.weddini.throttling.ThrottlingDecision;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process {@link ThrottlingStore}, running the same GCRA as {@link RedisThrottlingStore} under a lock.
+ * Enforces limits of a single replica only, meant for tests and single-node deployments.
+ * All the keys share a single lock, {@link StripedThrottlingStore} spreads them over several stores.
+ */
+public class InMemoryThrottlingStore implements ThrottlingStore {
+
+    private static final int MIN_SWEEP_THRESHOLD = 1024;
+
+    // theoretical arrival time in microseconds by key
+    private final Map<String, Long> tats = new HashMap<>();
+    private int sweepThreshold = MIN_SWEEP_THRESHOLD;
+
+    @Override
+    public synchronized ThrottlingDecision acquire(String[] keys, int[] limits, long[] windows, int permits, long maxWait) {
+        long now = now();
+        long[] newTats = new long[keys.length];
+        long delay = 0;
+        int tightest = -1;
+        long tightestRemaining = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (limits[i] <= 0) {
+                return new ThrottlingDecision(false, -1, limits[i], 0, Long.MAX_VALUE);
+            }
+            long window = windows[i] * 1000;
+            long interval = window / limits[i];
+            long tat = Math.max(tats.getOrDefault(keys[i], now), now);
+            long newTat = tat + permits * interval;
+            long wait = newTat - window - now;
+            if (wait > maxWait * 1000) {
+                return new ThrottlingDecision(false, -1, limits[i],
+                        (int) Math.max(0, (window - (tat - now)) / interval), ceilMillis(now + wait));
+            }
+            delay = Math.max(delay, wait);
+            newTats[i] = newTat;
+            long remaining = Math.max(0, (window - (newTat - now)) / interval);
+            if (tightest < 0 || remaining < tightestRemaining) {
+                tightest = i;
+                tightestRemaining = remaining;
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            tats.put(keys[i], newTats[i]);
+        }
+        sweep(now);
+        return new ThrottlingDecision(true, ceilMillis(delay), limits[tightest], (int) tightestRemaining,
+                ceilMillis(newTats[tightest]));
+    }
+
+    @Override
+    public synchronized void rollback(String[] keys, int[] limits, long[] windows, int permits) {
+        long now = now();
+        for (int i = 0; i < keys.length; i++) {
+            Long stored = tats.get(keys[i]);
+            if (stored != null && limits[i] > 0) {
+                long tat = stored - permits * (windows[i] * 1000 / limits[i]);
+                if (tat > now) {
+                    tats.put(keys[i], tat);
+                } else {
+                    tats.remove(keys[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keys whose arrival time passed hold no state, they are dropped once the map doubles.
+     */
+    private void sweep(long now) {
+        if (tats.size() > sweepThreshold) {
+            tats.values().removeIf(tat -> tat <= now);
+            sweepThreshold = Math.max(MIN_SWEEP_THRESHOLD, tats.size() * 2);
+        }
+    }
+
+    /**
+     * @return the current time in microseconds
+     */
+    private static long now() {
+        return System.currentTimeMillis() * 1000;
+    }
+
+    private static long ceilMillis(long micros) {
+        return (micros + 999) / 1000;
+    }
+}
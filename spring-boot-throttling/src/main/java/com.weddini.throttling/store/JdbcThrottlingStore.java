@@ -0,0 +1,599 @@
+package com.weddini.throttling.store;
+
+import com.weddini.throttling.ThrottlingDecision;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link ThrottlingStore} keeping the counts of the keys per fixed window in a table of a relational database,
+ * shared by all the replicas of a service.
+ *
+ * <p>Calls are decided against a local copy of the counts with the sliding window estimate
+ * {@code previous * (1 - elapsed / window) + current}, and never write to the database themselves: their permits
+ * are coalesced per key and flushed every {@code flushInterval} as a batch of {@code UPDATE ... SET permits = permits + ?}
+ * statements, followed by a batch of inserts for the rows not found. If the batch fails, each row is written in its own
+ * transaction, so a failing row is retried on the next flush without holding back the others. The counts of the keys
+ * called since the last flush are read back right after it. A key whose copy is older than {@code maxStaleness}, e.g. a key not called lately,
+ * is read on the calling thread before the call is decided.
+ *
+ * <p>The statements are plain SQL run by any database, the table is created by {@link #createTable()}:
+ * <pre>
+ * CREATE TABLE throttling_counter (
+ *     counter_key  CHAR(64)     NOT NULL,
+ *     window_start BIGINT       NOT NULL,
+ *     permits      BIGINT       NOT NULL,
+ *     expires_at   BIGINT       NOT NULL,
+ *     PRIMARY KEY (counter_key, window_start))
+ * </pre>
+ * Keys of any length are stored as the hex SHA-256 of the key. Rows of past windows are deleted once a minute. Calls are never delayed, {@code maxWait} is ignored.
+ */
+public class JdbcThrottlingStore implements ThrottlingStore, Closeable {
+
+    public static final String DEFAULT_TABLE = "throttling_counter";
+
+    private static final long DEFAULT_FLUSH_INTERVAL = 20;
+    private static final long DEFAULT_MAX_STALENESS = 1000;
+    private static final long CLEANUP_INTERVAL = 60000;
+    // keys per select of the counts read back
+    private static final int MAX_READ_KEYS = 100;
+    private static final String INSERT_PREFIX = "INSERT INTO ";
+    private static final String INSERT_SUFFIX = " (counter_key, window_start, permits, expires_at) VALUES (?, ?, ?, ?)";
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final DataSource dataSource;
+    private final String table;
+    private final long maxStaleness;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    // permits of windows left behind before they were flushed
+    private final Queue<Row> late = new ConcurrentLinkedQueue<>();
+    private long cleanedAt;
+
+    public JdbcThrottlingStore(DataSource dataSource) {
+        this(dataSource, DEFAULT_TABLE, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_STALENESS);
+    }
+
+    /**
+     * @param table         name of the table
+     * @param flushInterval time in milliseconds between two flushes of the coalesced permits
+     * @param maxStaleness  max age in milliseconds of the local copy of the counts of a key
+     */
+    public JdbcThrottlingStore(DataSource dataSource, String table, long flushInterval, long maxStaleness) {
+        this.dataSource = dataSource;
+        this.table = table;
+        this.maxStaleness = maxStaleness;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "throttling-jdbc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the table of the counts, unless it exists.
+     *
+     * @throws ThrottlingStoreException if the table cannot be created
+     */
+    public void createTable() {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            try {
+                statement.executeQuery("SELECT counter_key FROM " + table + " WHERE 1 = 0").close();
+                return;
+            } catch (SQLException e) {
+                // not found
+            }
+            statement.execute("CREATE TABLE " + table + " (counter_key CHAR(64) NOT NULL, "
+                    + "window_start BIGINT NOT NULL, permits BIGINT NOT NULL, expires_at BIGINT NOT NULL, "
+                    + "PRIMARY KEY (counter_key, window_start))");
+        } catch (SQLException e) {
+            throw new ThrottlingStoreException("cannot create table " + table, e);
+        }
+    }
+
+    @Override
+    public ThrottlingDecision acquire(String[] keys, int[] limits, long[] windows, int permits, long maxWait) {
+        long now = System.currentTimeMillis();
+        Counter[] locked = lock(keys, windows);
+        try {
+            int tightest = -1;
+            long tightestRemaining = 0;
+            for (int i = 0; i < keys.length; i++) {
+                Counter counter = locked[i];
+                if (limits[i] <= 0) {
+                    return new ThrottlingDecision(false, -1, limits[i], 0, Long.MAX_VALUE);
+                }
+                counter.advance(now / counter.window);
+                if (now - counter.readAt > maxStaleness && counter.inFlight == 0) {
+                    read(counter, now);
+                }
+                long estimate = counter.estimate(now);
+                long remaining = limits[i] - estimate - permits;
+                if (remaining < 0) {
+                    return new ThrottlingDecision(false, -1, limits[i], (int) Math.max(0, limits[i] - estimate),
+                            (counter.epoch + 1) * counter.window);
+                }
+                if (tightest < 0 || remaining < tightestRemaining) {
+                    tightest = i;
+                    tightestRemaining = remaining;
+                }
+            }
+            for (Counter counter : locked) {
+                counter.unflushed += permits;
+                counter.touched = true;
+            }
+            return new ThrottlingDecision(true, 0, limits[tightest], (int) tightestRemaining,
+                    (locked[tightest].epoch + 1) * locked[tightest].window);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    @Override
+    public void rollback(String[] keys, int[] limits, long[] windows, int permits) {
+        long now = System.currentTimeMillis();
+        Counter[] locked = lock(keys, windows);
+        try {
+            for (Counter counter : locked) {
+                counter.advance(now / counter.window);
+                counter.unflushed -= permits;
+                counter.touched = true;
+            }
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Locks the counters of a level in the order of its windows, the same for all the calls of the level.
+     */
+    private Counter[] lock(String[] keys, long[] windows) {
+        Counter[] locked = new Counter[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            long window = windows[i];
+            for (; ; ) {
+                Counter counter = counters.computeIfAbsent(keys[i], k -> new Counter(k, window));
+                counter.lock.lock();
+                if (!counter.removed) {
+                    locked[i] = counter;
+                    break;
+                }
+                counter.lock.unlock();
+            }
+        }
+        return locked;
+    }
+
+    private static void unlock(Counter[] locked) {
+        for (Counter counter : locked) {
+            if (counter != null) {
+                counter.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Reads the counts of a key on the calling thread, the copy is left as is if the database is unavailable.
+     */
+    private void read(Counter counter, long now) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement select = connection.prepareStatement("SELECT window_start, permits FROM " + table
+                     + " WHERE counter_key = ? AND window_start >= ?")) {
+            select.setString(1, counter.column);
+            select.setLong(2, (counter.epoch - 1) * counter.window);
+            Map<Long, Long> rows = new HashMap<>();
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    rows.put(resultSet.getLong(1), resultSet.getLong(2));
+                }
+            }
+            counter.apply(rows, now);
+        } catch (SQLException e) {
+            counter.readAt = now;
+            if (logger.isWarnEnabled()) {
+                logger.warn("cannot read throttling counters of " + counter.key, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the permits coalesced since the last flush, then reads back the counts of the keys called meanwhile.
+     */
+    public synchronized void flush() {
+        long now = System.currentTimeMillis();
+        List<Row> rows = new ArrayList<>();
+        for (Row row; (row = late.poll()) != null; ) {
+            rows.add(row);
+        }
+        int lateRows = rows.size();
+        // counters of the other rows, in the same order
+        List<Counter> flushed = new ArrayList<>();
+        List<Counter> touched = new ArrayList<>();
+        List<Long> epochs = new ArrayList<>();
+        for (Iterator<Counter> it = counters.values().iterator(); it.hasNext(); ) {
+            Counter counter = it.next();
+            counter.lock.lock();
+            try {
+                counter.advance(now / counter.window);
+                if (counter.unflushed != 0) {
+                    rows.add(new Row(counter.column, counter.epoch * counter.window, counter.window, counter.unflushed));
+                    flushed.add(counter);
+                    counter.inFlight += counter.unflushed;
+                    counter.unflushed = 0;
+                }
+                if (counter.touched) {
+                    counter.touched = false;
+                    touched.add(counter);
+                    epochs.add(counter.epoch);
+                } else if (counter.inFlight == 0 && now - counter.readAt > Math.max(2 * counter.window, maxStaleness)) {
+                    // neither called nor read lately
+                    counter.removed = true;
+                    it.remove();
+                }
+            } finally {
+                counter.lock.unlock();
+            }
+        }
+
+        List<Integer> failed;
+        try {
+            failed = rows.isEmpty() ? Collections.emptyList() : write(rows);
+        } catch (SQLException | RuntimeException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("cannot write throttling counters, retrying on the next flush", e);
+            }
+            failed = new ArrayList<>();
+            for (int i = 0; i < rows.size(); i++) {
+                failed.add(i);
+            }
+        }
+        for (int i : failed) {
+            Row row = rows.get(i);
+            // permits of past windows no longer count
+            if ((i < lateRows || !flushed.get(i - lateRows).restore(row)) && row.windowStart + 2 * row.window > now) {
+                late.add(row);
+            }
+        }
+        if (!rows.isEmpty() && failed.size() == rows.size()) {
+            touched.forEach(Counter::touch);
+            return;
+        }
+        refresh(touched, epochs, now);
+        if (now - cleanedAt > CLEANUP_INTERVAL) {
+            cleanup(now);
+        }
+    }
+
+    /**
+     * Adds the permits of the rows in a single transaction: a batch of updates, then a batch of inserts of the rows
+     * not found. If the transaction fails, e.g. a row was inserted by another replica meanwhile, each row is written
+     * in its own transaction.
+     *
+     * @return the indexes of the rows not written
+     * @throws SQLException if no row could be written
+     */
+    private List<Integer> write(List<Row> rows) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                try {
+                    List<Row> missing = update(connection, rows);
+                    if (!missing.isEmpty()) {
+                        try (PreparedStatement insert = connection.prepareStatement(INSERT_PREFIX + table + INSERT_SUFFIX)) {
+                            for (Row row : missing) {
+                                bind(insert, row);
+                                insert.addBatch();
+                            }
+                            insert.executeBatch();
+                        }
+                    }
+                    connection.commit();
+                    return Collections.emptyList();
+                } catch (SQLException | RuntimeException e) {
+                    connection.rollback();
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("cannot write throttling counters in a batch, writing them row by row", e);
+                    }
+                }
+                return writeEach(connection, rows);
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * @return the rows not found
+     */
+    private List<Row> update(Connection connection, List<Row> rows) throws SQLException {
+        List<Row> missing = new ArrayList<>();
+        try (PreparedStatement update = connection.prepareStatement("UPDATE " + table
+                + " SET permits = permits + ? WHERE counter_key = ? AND window_start = ?")) {
+            for (Row row : rows) {
+                update.setLong(1, row.permits);
+                update.setString(2, row.key);
+                update.setLong(3, row.windowStart);
+                update.addBatch();
+            }
+            int[] counts = update.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    missing.add(rows.get(i));
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Writes each row in its own transaction, a row inserted by another replica meanwhile is updated again.
+     *
+     * @return the indexes of the rows not written
+     * @throws SQLException if no row could be written
+     */
+    private List<Integer> writeEach(Connection connection, List<Row> rows) throws SQLException {
+        List<Integer> failed = new ArrayList<>();
+        SQLException failure = null;
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            try {
+                if (!update(connection, Collections.singletonList(row)).isEmpty()) {
+                    try (PreparedStatement insert = connection.prepareStatement(INSERT_PREFIX + table + INSERT_SUFFIX)) {
+                        bind(insert, row);
+                        insert.executeUpdate();
+                    } catch (SQLException e) {
+                        connection.rollback();
+                        if (!update(connection, Collections.singletonList(row)).isEmpty()) {
+                            throw e;
+                        }
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                failed.add(i);
+                failure = e;
+                if (logger.isWarnEnabled()) {
+                    logger.warn("cannot write throttling counter " + row.key + ", retrying on the next flush", e);
+                }
+                try {
+                    connection.rollback();
+                } catch (SQLException lost) {
+                    // the connection is lost, the rows left are retried as well
+                    for (int j = i + 1; j < rows.size(); j++) {
+                        failed.add(j);
+                    }
+                    break;
+                }
+            }
+        }
+        if (failure != null && failed.size() == rows.size()) {
+            throw failure;
+        }
+        return failed;
+    }
+
+    private static void bind(PreparedStatement insert, Row row) throws SQLException {
+        insert.setString(1, row.key);
+        insert.setLong(2, row.windowStart);
+        insert.setLong(3, row.permits);
+        insert.setLong(4, row.windowStart + 2 * row.window);
+    }
+
+    /**
+     * Reads back the counts of the keys, keys not read are read on the next flush.
+     */
+    private void refresh(List<Counter> touched, List<Long> epochs, long now) {
+        for (int from = 0; from < touched.size(); from += MAX_READ_KEYS) {
+            int to = Math.min(touched.size(), from + MAX_READ_KEYS);
+            StringBuilder sql = new StringBuilder("SELECT counter_key, window_start, permits FROM ")
+                    .append(table).append(" WHERE counter_key IN (");
+            for (int i = from; i < to; i++) {
+                sql.append(i > from ? ", ?" : "?");
+            }
+            sql.append(')');
+            Map<String, Map<Long, Long>> rows = new HashMap<>();
+            try (Connection connection = dataSource.getConnection();
+                 PreparedStatement select = connection.prepareStatement(sql.toString())) {
+                for (int i = from; i < to; i++) {
+                    select.setString(i - from + 1, touched.get(i).column);
+                }
+                try (ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next()) {
+                        rows.computeIfAbsent(resultSet.getString(1), k -> new HashMap<>())
+                                .put(resultSet.getLong(2), resultSet.getLong(3));
+                    }
+                }
+            } catch (SQLException e) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("cannot read throttling counters", e);
+                }
+                touched.subList(from, touched.size()).forEach(Counter::touch);
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                Counter counter = touched.get(i);
+                counter.lock.lock();
+                try {
+                    if (counter.epoch == epochs.get(i)) {
+                        counter.inFlight = 0;
+                        counter.apply(rows.getOrDefault(counter.column, new HashMap<>()), now);
+                    }
+                } finally {
+                    counter.lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void cleanup(long now) {
+        cleanedAt = now;
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table + " WHERE expires_at < ?")) {
+            delete.setLong(1, now);
+            delete.executeUpdate();
+        } catch (SQLException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("cannot delete past throttling counters", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the flushes once the last permits are written.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * @return the hex SHA-256 of the key, of a fixed length whatever the length of the key
+     */
+    private static String column(String key) {
+        try {
+            return Hmac.hex(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("cannot hash throttling keys with SHA-256", e);
+        }
+    }
+
+    /**
+     * Local copy of the counts of a key in the current and the previous fixed window, guarded by its lock.
+     */
+    private final class Counter {
+
+        final ReentrantLock lock = new ReentrantLock();
+        final String key;
+        // key in the table
+        final String column;
+        final long window;
+        long epoch = Long.MIN_VALUE;
+        // counts read from the database
+        long current;
+        long previous;
+        // permits being written by the flush, then permits not written yet
+        long inFlight;
+        long unflushed;
+        long readAt;
+        boolean touched;
+        boolean removed;
+
+        Counter(String key, long window) {
+            this.key = key;
+            this.column = column(key);
+            this.window = window;
+        }
+
+        /**
+         * Moves the counter to a later window, the permits of the left window not written yet are written late.
+         */
+        void advance(long to) {
+            if (to <= epoch) {
+                return;
+            }
+            if (unflushed != 0) {
+                late.add(new Row(column, epoch * window, window, unflushed));
+            }
+            previous = to == epoch + 1 ? current + inFlight + unflushed : 0;
+            current = 0;
+            inFlight = 0;
+            unflushed = 0;
+            epoch = to;
+        }
+
+        long estimate(long now) {
+            long elapsed = now - epoch * window;
+            return Math.max(0, previous) * Math.max(0, window - elapsed) / window
+                    + Math.max(0, current + inFlight + unflushed);
+        }
+
+        /**
+         * @param rows permits by window start
+         */
+        void apply(Map<Long, Long> rows, long now) {
+            current = rows.getOrDefault(epoch * window, 0L);
+            previous = rows.getOrDefault((epoch - 1) * window, 0L);
+            readAt = now;
+        }
+
+        /**
+         * Takes back the permits of a row whose write failed, to write them with the next flush.
+         *
+         * @return false if the counter left the window of the row meanwhile
+         */
+        boolean restore(Row row) {
+            lock.lock();
+            try {
+                if (row.windowStart != epoch * window) {
+                    return false;
+                }
+                unflushed += row.permits;
+                inFlight -= row.permits;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Reads the counts of the counter back with the next flush.
+         */
+        void touch() {
+            lock.lock();
+            try {
+                touched = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class Row {
+
+        // key in the table
+        final String key;
+        final long windowStart;
+        final long window;
+        final long permits;
+
+        Row(String key, long windowStart, long window, long permits) {
+            this.key = key;
+            this.windowStart = windowStart;
+            this.window = window;
+            this.permits = permits;
+        }
+    }
+}
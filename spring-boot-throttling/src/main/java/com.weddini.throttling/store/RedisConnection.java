@@ -0,0 +1,219 @@
+package com.weddini.throttling.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pipelined connection speaking the Redis serialization protocol (RESP2), to Redis or to a
+ * {@link ThrottlingPeerServer}.
+ *
+ * <p>Callers write commands back to back without waiting for the replies of each other. Replies come back
+ * in the order of the commands and are handed over by a single reader thread. Writers queued behind the lock
+ * leave the flush to the last of them, so concurrent commands go out in a single write.
+ */
+class RedisConnection implements Closeable {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final String address;
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream in;
+    private final Queue<CompletableFuture<Object>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger writers = new AtomicInteger();
+    // not a monitor, a virtual thread blocked on the socket would pin its carrier
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile boolean closed;
+
+    RedisConnection(String host, int port, int connectTimeout) throws IOException {
+        this.address = host + ":" + port;
+        this.socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.in = new BufferedInputStream(socket.getInputStream());
+        Thread reader = new Thread(this::read, "throttling-redis-" + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @param args the command and its arguments
+     * @return the reply, a {@link String}, {@link Long}, {@link List} or null, completed exceptionally
+     * with {@link ThrottlingStoreException} by an error reply
+     */
+    CompletableFuture<Object> send(String... args) {
+        CompletableFuture<Object> reply = new CompletableFuture<>();
+        writers.incrementAndGet();
+        writeLock.lock();
+        try {
+            boolean writing = true;
+            try {
+                if (closed) {
+                    throw new IOException("connection is closed");
+                }
+                pending.add(reply);
+                write(args);
+                writing = false;
+                if (writers.decrementAndGet() == 0) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (writing) {
+                    writers.decrementAndGet();
+                }
+                // the connection is unusable once a command is partially written
+                reply.completeExceptionally(new ThrottlingStoreException("cannot send command to " + address, e));
+                close();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return reply;
+    }
+
+    private void write(String[] args) throws IOException {
+        out.write('*');
+        writeNumber(args.length);
+        for (String arg : args) {
+            byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+            out.write('$');
+            writeNumber(bytes.length);
+            out.write(bytes);
+            out.write(CRLF);
+        }
+    }
+
+    private void writeNumber(long value) throws IOException {
+        out.write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+    }
+
+    private void read() {
+        try {
+            while (!closed) {
+                Object reply = readReply();
+                CompletableFuture<Object> future = pending.poll();
+                if (future == null) {
+                    throw new IOException("unexpected reply from " + address);
+                }
+                if (reply instanceof ThrottlingStoreException) {
+                    future.completeExceptionally((ThrottlingStoreException) reply);
+                } else {
+                    future.complete(reply);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                fail(new ThrottlingStoreException("connection to " + address + " lost", e));
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private Object readReply() throws IOException {
+        int type = in.read();
+        switch (type) {
+            case '+':
+                return readLine();
+            case '-':
+                return new ThrottlingStoreException(readLine());
+            case ':':
+                return Long.parseLong(readLine());
+            case '$': {
+                int length = Integer.parseInt(readLine());
+                if (length < 0) {
+                    return null;
+                }
+                byte[] bytes = new byte[length];
+                readFully(bytes);
+                readLine();
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            case '*': {
+                int length = Integer.parseInt(readLine());
+                if (length < 0) {
+                    return null;
+                }
+                List<Object> items = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) {
+                    items.add(readReply());
+                }
+                return items;
+            }
+            case -1:
+                throw new EOFException("connection closed by " + address);
+            default:
+                throw new IOException("unknown reply type '" + (char) type + "'");
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (; ; ) {
+            int c = in.read();
+            if (c == -1) {
+                throw new EOFException("connection closed by " + address);
+            }
+            if (c == '\r') {
+                in.read();
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+    }
+
+    private void readFully(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read == -1) {
+                throw new EOFException("connection closed by " + address);
+            }
+            offset += read;
+        }
+    }
+
+    private void fail(ThrottlingStoreException e) {
+        CompletableFuture<Object> future;
+        while ((future = pending.poll()) != null) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing left to release
+        }
+        fail(new ThrottlingStoreException("connection to " + address + " closed"));
+    }
+}
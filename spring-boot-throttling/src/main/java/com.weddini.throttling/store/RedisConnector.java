@@ -0,0 +1,111 @@
+package com.weddini.throttling.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Holds a {@link RedisConnection} to a server, re-established on the next call once it fails.
+ *
+ * <p>A single caller connects at a time, the others fail fast with {@link ThrottlingStoreException} rather than
+ * queuing behind its blocking connect. A failed connect is not retried before an exponential backoff elapses, so while
+ * the server is down a call costs a volatile read instead of a connect timeout.
+ */
+class RedisConnector implements Closeable {
+
+    static final long MIN_BACKOFF = 100;
+    static final long MAX_BACKOFF = 10000;
+
+    private final String host;
+    private final int port;
+    private final int connectTimeout;
+    private final String description;
+    private final Consumer<RedisConnection> handshake;
+    private final AtomicBoolean connecting = new AtomicBoolean();
+
+    private volatile RedisConnection connection;
+    private volatile long retryAt;
+    private volatile boolean closed;
+    // guarded by connecting
+    private long backoff = MIN_BACKOFF;
+
+    /**
+     * @param description the server in error messages, e.g. {@code redis at localhost:6379}
+     */
+    RedisConnector(String host, int port, int connectTimeout, String description) {
+        this(host, port, connectTimeout, description, connection -> {
+        });
+    }
+
+    /**
+     * @param handshake run on each new connection before any call, e.g. to authenticate, throwing
+     *                  {@link ThrottlingStoreException} to give the connection up
+     */
+    RedisConnector(String host, int port, int connectTimeout, String description, Consumer<RedisConnection> handshake) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+        this.description = description;
+        this.handshake = handshake;
+    }
+
+    RedisConnection connection() {
+        RedisConnection current = connection;
+        if (current != null && !current.isClosed()) {
+            return current;
+        }
+        if (closed) {
+            throw new ThrottlingStoreException("store is closed");
+        }
+        long now = System.currentTimeMillis();
+        if (now < retryAt) {
+            throw new ThrottlingStoreException(description + " is unavailable, next connect in " + (retryAt - now) + " ms");
+        }
+        if (!connecting.compareAndSet(false, true)) {
+            throw new ThrottlingStoreException(description + " is unavailable, connecting");
+        }
+        try {
+            current = connection;
+            if (current != null && !current.isClosed()) {
+                return current;
+            }
+            try {
+                current = new RedisConnection(host, port, connectTimeout);
+            } catch (IOException e) {
+                backOff();
+                throw new ThrottlingStoreException("cannot connect to " + description, e);
+            }
+            try {
+                handshake.accept(current);
+            } catch (ThrottlingStoreException e) {
+                current.close();
+                backOff();
+                throw e;
+            }
+            backoff = MIN_BACKOFF;
+            connection = current;
+            if (closed) {
+                current.close();
+                throw new ThrottlingStoreException("store is closed");
+            }
+            return current;
+        } finally {
+            connecting.set(false);
+        }
+    }
+
+    private void backOff() {
+        retryAt = System.currentTimeMillis() + backoff;
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        RedisConnection current = connection;
+        if (current != null) {
+            current.close();
+        }
+    }
+}
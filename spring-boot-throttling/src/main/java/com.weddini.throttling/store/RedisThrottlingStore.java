@@ -0,0 +1,183 @@
+package com.weddini.throttling.store;
+
+import com.weddini.throttling.ThrottlingDecision;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link ThrottlingStore} backed by Redis, or any server speaking its protocol and running its Lua scripts.
+ *
+ * <p>Each check is a single round trip: the GCRA of all the windows of a level runs as one atomic script,
+ * called by its SHA and loaded on the first {@code NOSCRIPT} reply. The time is taken from the Redis server,
+ * so replicas with skewed clocks share the same windows. Calls of all the threads are pipelined over a single
+ * connection, re-established on the next call once it fails. While Redis is down, calls fail fast with
+ * {@link ThrottlingStoreException} between connect attempts backing off exponentially, see {@link RedisConnector}.
+ *
+ * <p>Keys of a level share a hash tag, so the script also runs on Redis Cluster.
+ */
+public class RedisThrottlingStore implements ThrottlingStore, Closeable {
+
+    private static final long DEFAULT_TIMEOUT = 1000;
+
+    // KEYS: a key per window, ARGV: permits, maxWait, then limit and window in milliseconds of each key.
+    // Times are in microseconds, the theoretical arrival time of a key is stored as an integer.
+    private static final String ACQUIRE_SCRIPT = "" +
+            "if redis.replicate_commands then pcall(redis.replicate_commands) end\n" +
+            "local time = redis.call('TIME')\n" +
+            "local now = tonumber(time[1]) * 1000000 + tonumber(time[2])\n" +
+            "local permits = tonumber(ARGV[1])\n" +
+            "local maxWait = tonumber(ARGV[2]) * 1000\n" +
+            "local tats = {}\n" +
+            "local delay = 0\n" +
+            "local tightest, tightestRemaining, tightestReset = 1, nil, now\n" +
+            "for i = 1, #KEYS do\n" +
+            "  local limit = tonumber(ARGV[1 + i * 2])\n" +
+            "  if limit <= 0 then return {0, -1, limit, 0, -1} end\n" +
+            "  local window = tonumber(ARGV[2 + i * 2]) * 1000\n" +
+            "  local interval = math.floor(window / limit)\n" +
+            "  local stored = redis.call('GET', KEYS[i])\n" +
+            "  local tat = stored and tonumber(stored) or now\n" +
+            "  if tat < now then tat = now end\n" +
+            "  local newTat = tat + permits * interval\n" +
+            "  local wait = newTat - window - now\n" +
+            "  if wait > maxWait then\n" +
+            "    return {0, -1, limit, math.max(0, math.floor((window - (tat - now)) / interval)), math.ceil((now + wait) / 1000)}\n" +
+            "  end\n" +
+            "  if wait > delay then delay = wait end\n" +
+            "  tats[i] = newTat\n" +
+            "  local remaining = math.max(0, math.floor((window - (newTat - now)) / interval))\n" +
+            "  if tightestRemaining == nil or remaining < tightestRemaining then\n" +
+            "    tightest, tightestRemaining, tightestReset = i, remaining, newTat\n" +
+            "  end\n" +
+            "end\n" +
+            "for i = 1, #KEYS do\n" +
+            "  redis.call('SET', KEYS[i], string.format('%.0f', tats[i]), 'PX', math.ceil((tats[i] - now) / 1000) + 1)\n" +
+            "end\n" +
+            "return {1, math.ceil(delay / 1000), tonumber(ARGV[1 + tightest * 2]), tightestRemaining, math.ceil(tightestReset / 1000)}\n";
+
+    // same KEYS and ARGV as the acquire script, maxWait is ignored
+    private static final String ROLLBACK_SCRIPT = "" +
+            "if redis.replicate_commands then pcall(redis.replicate_commands) end\n" +
+            "local time = redis.call('TIME')\n" +
+            "local now = tonumber(time[1]) * 1000000 + tonumber(time[2])\n" +
+            "local permits = tonumber(ARGV[1])\n" +
+            "for i = 1, #KEYS do\n" +
+            "  local limit = tonumber(ARGV[1 + i * 2])\n" +
+            "  local stored = redis.call('GET', KEYS[i])\n" +
+            "  if stored and limit > 0 then\n" +
+            "    local tat = tonumber(stored) - permits * math.floor(tonumber(ARGV[2 + i * 2]) * 1000 / limit)\n" +
+            "    if tat > now then\n" +
+            "      redis.call('SET', KEYS[i], string.format('%.0f', tat), 'PX', math.ceil((tat - now) / 1000) + 1)\n" +
+            "    else\n" +
+            "      redis.call('DEL', KEYS[i])\n" +
+            "    end\n" +
+            "  end\n" +
+            "end\n" +
+            "return 1\n";
+
+    private static final String ACQUIRE_SHA = sha1(ACQUIRE_SCRIPT);
+    private static final String ROLLBACK_SHA = sha1(ROLLBACK_SCRIPT);
+
+    private final long timeout;
+    private final RedisConnector connector;
+
+    public RedisThrottlingStore(String host, int port) {
+        this(host, port, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param timeout max time in milliseconds to connect and to wait for a reply
+     */
+    public RedisThrottlingStore(String host, int port, long timeout) {
+        this.timeout = timeout;
+        this.connector = new RedisConnector(host, port, (int) timeout, "redis at " + host + ":" + port);
+    }
+
+    @Override
+    public ThrottlingDecision acquire(String[] keys, int[] limits, long[] windows, int permits, long maxWait) {
+        List<?> reply = (List<?>) eval(ACQUIRE_SCRIPT, ACQUIRE_SHA, keys, limits, windows, permits, maxWait);
+        boolean allowed = number(reply.get(0)) == 1;
+        long resetAt = number(reply.get(4));
+        return new ThrottlingDecision(allowed, number(reply.get(1)), (int) number(reply.get(2)),
+                (int) number(reply.get(3)), resetAt >= 0 ? resetAt : Long.MAX_VALUE);
+    }
+
+    @Override
+    public void rollback(String[] keys, int[] limits, long[] windows, int permits) {
+        eval(ROLLBACK_SCRIPT, ROLLBACK_SHA, keys, limits, windows, permits, 0);
+    }
+
+    private Object eval(String script, String sha, String[] keys, int[] limits, long[] windows, int permits, long maxWait) {
+        String[] args = new String[3 + keys.length * 3 + 2];
+        args[1] = sha;
+        args[2] = Integer.toString(keys.length);
+        System.arraycopy(keys, 0, args, 3, keys.length);
+        int i = 3 + keys.length;
+        args[i++] = Integer.toString(permits);
+        args[i++] = Long.toString(maxWait);
+        for (int j = 0; j < keys.length; j++) {
+            args[i++] = Integer.toString(limits[j]);
+            args[i++] = Long.toString(windows[j]);
+        }
+
+        RedisConnection connection = connector.connection();
+        args[0] = "EVALSHA";
+        try {
+            return await(connection.send(args));
+        } catch (ThrottlingStoreException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+        }
+        // EVAL caches the script, later calls go by its SHA again
+        args[0] = "EVAL";
+        args[1] = script;
+        return await(connection.send(args));
+    }
+
+    private Object await(CompletableFuture<Object> reply) {
+        try {
+            return reply.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ThrottlingStoreException) {
+                throw (ThrottlingStoreException) e.getCause();
+            }
+            throw new ThrottlingStoreException("redis command failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new ThrottlingStoreException("no reply from redis within " + timeout + " ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ThrottlingStoreException("interrupted while waiting for redis", e);
+        }
+    }
+
+    private static long number(Object value) {
+        return value instanceof Long ? (Long) value : Long.parseLong(String.valueOf(value));
+    }
+
+    private static String sha1(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        connector.close();
+    }
+}
@@ -0,0 +1,70 @@
+package com.weddini.throttling.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rendezvous (highest random weight) hashing of keys onto nodes: a key is owned by the node with the highest
+ * hash of the pair. All nodes agree on the owners as long as they know the same node ids, and removing a node
+ * only moves the keys it owned.
+ */
+class RendezvousHash {
+
+    private final List<String> nodes;
+    private final long[] seeds;
+
+    RendezvousHash(Collection<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("no node to hash keys onto");
+        }
+        this.nodes = new ArrayList<>(nodes);
+        Collections.sort(this.nodes);
+        this.seeds = new long[this.nodes.size()];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = hash(this.nodes.get(i));
+        }
+    }
+
+    /**
+     * @return id of the node owning the key
+     */
+    String owner(String key) {
+        long hash = hash(key);
+        int owner = 0;
+        long highest = Long.MIN_VALUE;
+        for (int i = 0; i < seeds.length; i++) {
+            long weight = mix(hash ^ seeds[i]);
+            if (weight > highest) {
+                owner = i;
+                highest = weight;
+            }
+        }
+        return nodes.get(owner);
+    }
+
+    /**
+     * FNV-1a over the chars, spread by {@link #mix(long)}.
+     */
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * MurmurHash3 finalizer.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,352 @@
+package com.weddini.throttling.store;
+
+import com.weddini.throttling.ThrottlingDecision;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@link ThrottlingStore} replicated between the nodes of a cluster without a central server.
+ *
+ * <p>The count of a key per fixed window is a PN-counter, a pair of grow-only counters (G-counters) holding a slot per
+ * node: a node only increments its own slots, and merges the slots of its peers by keeping the highest value.
+ * Merges are commutative and idempotent, so nodes converge whatever the order, loss or duplication of the batches.
+ * Calls are decided against the merged local view with the sliding window estimate
+ * {@code previous * (1 - elapsed / window) + current}, with no remote call.
+ *
+ * <p>Counts changed since the last exchange are batched, compressed and sent to the peers every
+ * {@code replicationInterval} by the {@link CounterTransport}, and all the counts of the node are sent every
+ * {@value #FULL_SYNC_TICKS} exchanges to recover from lost batches. Until a batch arrives, each node only sees its own
+ * calls of the interval, so the cluster may exceed a limit by the calls of an interval on the other nodes.
+ * Calls are never delayed, {@code maxWait} is ignored.
+ */
+public class ReplicatedThrottlingStore implements ThrottlingStore, Closeable {
+
+    static final int FULL_SYNC_TICKS = 10;
+    // entries per batch, so a compressed batch fits a datagram
+    static final int MAX_BATCH_ENTRIES = 128;
+    private static final byte VERSION = 1;
+    private static final long DEFAULT_REPLICATION_INTERVAL = 100;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final String nodeId;
+    private final CounterTransport transport;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private long ticks;
+
+    /**
+     * Creates a node with a random id, exchanging counts every 100 milliseconds.
+     */
+    public ReplicatedThrottlingStore(CounterTransport transport) {
+        this(UUID.randomUUID().toString(), transport, DEFAULT_REPLICATION_INTERVAL);
+    }
+
+    /**
+     * @param nodeId              id of the node, unique in the cluster
+     * @param replicationInterval time in milliseconds between two exchanges
+     */
+    public ReplicatedThrottlingStore(String nodeId, CounterTransport transport, long replicationInterval) {
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "throttling-replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+        transport.receive(this::merge);
+        scheduler.scheduleWithFixedDelay(this::replicate, replicationInterval, replicationInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public ThrottlingDecision acquire(String[] keys, int[] limits, long[] windows, int permits, long maxWait) {
+        long now = System.currentTimeMillis();
+        Counter[] locked = lock(keys, windows);
+        try {
+            int tightest = -1;
+            long tightestRemaining = 0;
+            for (int i = 0; i < keys.length; i++) {
+                Counter counter = locked[i];
+                if (limits[i] <= 0) {
+                    return new ThrottlingDecision(false, -1, limits[i], 0, Long.MAX_VALUE);
+                }
+                counter.advance(now / counter.window);
+                long estimate = counter.estimate(now);
+                long remaining = limits[i] - estimate - permits;
+                if (remaining < 0) {
+                    return new ThrottlingDecision(false, -1, limits[i], (int) Math.max(0, limits[i] - estimate),
+                            (counter.epoch + 1) * counter.window);
+                }
+                if (tightest < 0 || remaining < tightestRemaining) {
+                    tightest = i;
+                    tightestRemaining = remaining;
+                }
+            }
+            for (Counter counter : locked) {
+                counter.own(counter.current)[0] += permits;
+                counter.dirty = true;
+            }
+            return new ThrottlingDecision(true, 0, limits[tightest], (int) tightestRemaining,
+                    (locked[tightest].epoch + 1) * locked[tightest].window);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    @Override
+    public void rollback(String[] keys, int[] limits, long[] windows, int permits) {
+        long now = System.currentTimeMillis();
+        Counter[] locked = lock(keys, windows);
+        try {
+            for (Counter counter : locked) {
+                counter.advance(now / counter.window);
+                counter.own(counter.current)[1] += permits;
+                counter.dirty = true;
+            }
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Locks the counters of a level in the order of its windows, the same for all the calls of the level.
+     */
+    private Counter[] lock(String[] keys, long[] windows) {
+        Counter[] locked = new Counter[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            locked[i] = lock(keys[i], windows[i]);
+        }
+        return locked;
+    }
+
+    /**
+     * @return the locked counter of the key, never one dropped by {@link #replicate()} meanwhile
+     */
+    private Counter lock(String key, long window) {
+        for (; ; ) {
+            Counter counter = counters.computeIfAbsent(key, k -> new Counter(window));
+            counter.lock.lock();
+            if (!counter.removed) {
+                return counter;
+            }
+            counter.lock.unlock();
+        }
+    }
+
+    private static void unlock(Counter[] locked) {
+        for (Counter counter : locked) {
+            counter.lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the counts of the node changed since the last exchange, or all of them once every
+     * {@value #FULL_SYNC_TICKS} exchanges, and drops the counters of past windows.
+     */
+    public synchronized void replicate() {
+        try {
+            long now = System.currentTimeMillis();
+            boolean full = ticks++ % FULL_SYNC_TICKS == 0;
+            List<Entry> entries = new ArrayList<>();
+            for (Iterator<Map.Entry<String, Counter>> it = counters.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Counter> e = it.next();
+                Counter counter = e.getValue();
+                counter.lock.lock();
+                try {
+                    counter.advance(now / counter.window);
+                    if (counter.current.isEmpty() && counter.previous.isEmpty()) {
+                        counter.removed = true;
+                        it.remove();
+                        continue;
+                    }
+                    if (counter.dirty || full) {
+                        counter.dirty = false;
+                        long[] previous = counter.previous.get(nodeId);
+                        if (previous != null) {
+                            entries.add(new Entry(e.getKey(), counter.window, counter.epoch - 1, previous[0], previous[1]));
+                        }
+                        long[] current = counter.current.get(nodeId);
+                        if (current != null) {
+                            entries.add(new Entry(e.getKey(), counter.window, counter.epoch, current[0], current[1]));
+                        }
+                    }
+                } finally {
+                    counter.lock.unlock();
+                }
+            }
+            for (int from = 0; from < entries.size(); from += MAX_BATCH_ENTRIES) {
+                transport.send(encode(entries.subList(from, Math.min(entries.size(), from + MAX_BATCH_ENTRIES))));
+            }
+        } catch (RuntimeException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("cannot replicate throttling counters", e);
+            }
+        }
+    }
+
+    /**
+     * Merges a batch received from a peer.
+     */
+    void merge(byte[] batch) {
+        String sender;
+        List<Entry> entries;
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(batch)))) {
+            if (in.readByte() != VERSION) {
+                return;
+            }
+            sender = in.readUTF();
+            int size = in.readInt();
+            // a batch never holds more entries, a corrupt size must not exhaust the heap of the reader
+            if (size < 0 || size > MAX_BATCH_ENTRIES) {
+                throw new IOException("batch of " + size + " entries, at most " + MAX_BATCH_ENTRIES + " expected");
+            }
+            entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                entries.add(new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("malformed batch of throttling counters", e);
+        }
+        if (nodeId.equals(sender)) {
+            return;
+        }
+        for (Entry entry : entries) {
+            Counter counter = lock(entry.key, entry.window);
+            try {
+                counter.advance(entry.epoch);
+                Map<String, long[]> slots = entry.epoch == counter.epoch ? counter.current
+                        : entry.epoch == counter.epoch - 1 ? counter.previous : null;
+                if (slots != null) {
+                    long[] slot = slots.computeIfAbsent(sender, k -> new long[2]);
+                    slot[0] = Math.max(slot[0], entry.added);
+                    slot[1] = Math.max(slot[1], entry.removed);
+                }
+            } finally {
+                counter.lock.unlock();
+            }
+        }
+    }
+
+    private byte[] encode(List<Entry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeByte(VERSION);
+            out.writeUTF(nodeId);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.key);
+                out.writeLong(entry.window);
+                out.writeLong(entry.epoch);
+                out.writeLong(entry.added);
+                out.writeLong(entry.removed);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Stops the exchanges once the last counts are sent.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        replicate();
+        transport.close();
+    }
+
+    /**
+     * Counts of a key in the current and the previous fixed window, guarded by its lock.
+     */
+    private final class Counter {
+
+        final ReentrantLock lock = new ReentrantLock();
+        final long window;
+        long epoch = Long.MIN_VALUE;
+        // {added, removed} by node id
+        Map<String, long[]> current = new HashMap<>();
+        Map<String, long[]> previous = new HashMap<>();
+        boolean dirty;
+        boolean removed;
+
+        Counter(long window) {
+            this.window = window;
+        }
+
+        /**
+         * Moves the counter to a later window, the counts of older windows are dropped.
+         */
+        void advance(long to) {
+            if (to <= epoch) {
+                return;
+            }
+            previous = to == epoch + 1 ? current : new HashMap<>();
+            current = new HashMap<>();
+            epoch = to;
+        }
+
+        long estimate(long now) {
+            long elapsed = now - epoch * window;
+            return sum(previous) * Math.max(0, window - elapsed) / window + sum(current);
+        }
+
+        long[] own(Map<String, long[]> slots) {
+            return slots.computeIfAbsent(nodeId, k -> new long[2]);
+        }
+
+        private long sum(Map<String, long[]> slots) {
+            long sum = 0;
+            for (long[] slot : slots.values()) {
+                sum += slot[0] - slot[1];
+            }
+            return Math.max(0, sum);
+        }
+    }
+
+    private static final class Entry {
+
+        final String key;
+        final long window;
+        final long epoch;
+        final long added;
+        final long removed;
+
+        Entry(String key, long window, long epoch, long added, long removed) {
+            this.key = key;
+            this.window = window;
+            this.epoch = epoch;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+}
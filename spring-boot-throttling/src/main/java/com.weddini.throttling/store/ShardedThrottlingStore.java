@@ -0,0 +1,186 @@
+package com.weddini.throttling.store;
+
+import com.weddini.throttling.ThrottlingDecision;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link ThrottlingStore} splitting the keys between the nodes of a cluster, each key being counted by exactly
+ * one node.
+ *
+ * <p>The owner of a level is picked by {@link RendezvousHash rendezvous hashing} of its hash tag, so all its windows
+ * live on the same node. Keys owned by the node are decided by the local store of its {@link ThrottlingPeerServer}
+ * without leaving the process; the others are forwarded to their owner, pipelined with the calls of all the threads
+ * over a single connection per node. The state of N keys is split between the nodes instead of being held by each
+ * of them. Calls forwarded to an unreachable owner fail with {@link ThrottlingStoreException}, fast between connect
+ * attempts backing off exponentially, see {@link RedisConnector}.
+ */
+public class ShardedThrottlingStore implements ThrottlingStore, Closeable {
+
+    /**
+     * Max time in milliseconds to connect and to wait for a reply of another node, unless given.
+     */
+    public static final long DEFAULT_TIMEOUT = 1000;
+
+    private final String nodeId;
+    private final ThrottlingPeerServer server;
+    private final RendezvousHash ring;
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final long timeout;
+    // null if the nodes share no secret
+    private final byte[] secret;
+
+    public ShardedThrottlingStore(String nodeId, Map<String, InetSocketAddress> nodes, ThrottlingPeerServer server) {
+        this(nodeId, nodes, server, DEFAULT_TIMEOUT);
+    }
+
+    public ShardedThrottlingStore(String nodeId, Map<String, InetSocketAddress> nodes, ThrottlingPeerServer server,
+                                  long timeout) {
+        this(nodeId, nodes, server, timeout, null);
+    }
+
+    /**
+     * @param nodeId  id of this node, one of the nodes
+     * @param nodes   addresses of the {@link ThrottlingPeerServer} of all the nodes by id, the same on every node
+     * @param server  server of this node, its store holds the keys owned by the node
+     * @param timeout max time in milliseconds to connect and to wait for a reply of another node
+     * @param secret  secret shared by the nodes, authenticating this node to the servers of the others, may be null
+     */
+    public ShardedThrottlingStore(String nodeId, Map<String, InetSocketAddress> nodes, ThrottlingPeerServer server,
+                                  long timeout, byte[] secret) {
+        if (!nodes.containsKey(nodeId)) {
+            throw new IllegalArgumentException("node '" + nodeId + "' is not one of " + nodes.keySet());
+        }
+        this.nodeId = nodeId;
+        this.server = server;
+        this.ring = new RendezvousHash(nodes.keySet());
+        this.timeout = timeout;
+        this.secret = secret != null ? secret.clone() : null;
+        nodes.forEach((id, address) -> {
+            if (!id.equals(nodeId)) {
+                peers.put(id, new Peer(address));
+            }
+        });
+    }
+
+    /**
+     * @return id of the node owning the level of the key
+     */
+    public String owner(String key) {
+        return ring.owner(hashTag(key));
+    }
+
+    /**
+     * @return the hash tag shared by the keys of a level, the key itself if it has none
+     */
+    static String hashTag(String key) {
+        int open = key.indexOf('{');
+        int close = key.indexOf('}', open + 1);
+        return open >= 0 && close > open ? key.substring(open + 1, close) : key;
+    }
+
+    @Override
+    public ThrottlingDecision acquire(String[] keys, int[] limits, long[] windows, int permits, long maxWait) {
+        Peer peer = peer(keys);
+        if (peer == null) {
+            return server.getStore().acquire(keys, limits, windows, permits, maxWait);
+        }
+        List<?> reply = (List<?>) peer.send(command(ThrottlingPeerServer.ACQUIRE, keys, limits, windows,
+                Integer.toString(permits), Long.toString(maxWait)));
+        long resetAt = number(reply.get(4));
+        return new ThrottlingDecision(number(reply.get(0)) == 1, number(reply.get(1)), (int) number(reply.get(2)),
+                (int) number(reply.get(3)), resetAt >= 0 ? resetAt : Long.MAX_VALUE);
+    }
+
+    @Override
+    public void rollback(String[] keys, int[] limits, long[] windows, int permits) {
+        Peer peer = peer(keys);
+        if (peer == null) {
+            server.getStore().rollback(keys, limits, windows, permits);
+        } else {
+            peer.send(command(ThrottlingPeerServer.ROLLBACK, keys, limits, windows, Integer.toString(permits)));
+        }
+    }
+
+    /**
+     * @return the owner of the level, null if owned by this node
+     */
+    private Peer peer(String[] keys) {
+        String owner = owner(keys[0]);
+        return owner.equals(nodeId) ? null : peers.get(owner);
+    }
+
+    private static String[] command(String name, String[] keys, int[] limits, long[] windows, String... params) {
+        String[] args = new String[1 + params.length + keys.length * 3];
+        args[0] = name;
+        System.arraycopy(params, 0, args, 1, params.length);
+        int i = 1 + params.length;
+        for (int j = 0; j < keys.length; j++) {
+            args[i++] = keys[j];
+            args[i++] = Integer.toString(limits[j]);
+            args[i++] = Long.toString(windows[j]);
+        }
+        return args;
+    }
+
+    private static long number(Object value) {
+        return value instanceof Long ? (Long) value : Long.parseLong(String.valueOf(value));
+    }
+
+    /**
+     * Closes the connections to the other nodes and the server of this node.
+     */
+    @Override
+    public void close() {
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        server.close();
+    }
+
+    /**
+     * Another node, reached over a pipelined connection re-established on the next call once it fails.
+     */
+    private final class Peer {
+
+        private final InetSocketAddress address;
+        private final RedisConnector connector;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+            this.connector = new RedisConnector(address.getHostString(), address.getPort(), (int) timeout, "node " + address,
+                    connection -> {
+                        if (secret != null) {
+                            ThrottlingPeerServer.authenticate(connection, secret, timeout);
+                        }
+                    });
+        }
+
+        Object send(String[] args) {
+            try {
+                return connector.connection().send(args).get(timeout, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ThrottlingStoreException) {
+                    throw (ThrottlingStoreException) e.getCause();
+                }
+                throw new ThrottlingStoreException("call to node " + address + " failed", e.getCause());
+            } catch (TimeoutException e) {
+                throw new ThrottlingStoreException("no reply from node " + address + " within " + timeout + " ms", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ThrottlingStoreException("interrupted while waiting for node " + address, e);
+            }
+        }
+
+        void close() {
+            connector.close();
+        }
+    }
+}
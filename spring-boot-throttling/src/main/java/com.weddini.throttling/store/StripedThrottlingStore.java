@@ -0,0 +1,52 @@
+package com.weddini.throttling.store;
+
+import com.weddini.throttling.ThrottlingDecision;
+
+/**
+ * In-process {@link ThrottlingStore} splitting the keys between stripes of {@link InMemoryThrottlingStore}, so calls
+ * on different keys rarely contend for the same lock, e.g. the keys a node of a {@link ShardedThrottlingStore} owns.
+ *
+ * <p>The stripe of a level is picked by its hash tag, all the windows of a level are then decided under the same lock.
+ */
+public class StripedThrottlingStore implements ThrottlingStore {
+
+    private final InMemoryThrottlingStore[] stripes;
+
+    /**
+     * Stripes of four times the available processors.
+     */
+    public StripedThrottlingStore() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param stripes number of stripes, rounded up to a power of two
+     */
+    public StripedThrottlingStore(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes should be positive, but was " + stripes);
+        }
+        int size = Integer.highestOneBit(stripes);
+        this.stripes = new InMemoryThrottlingStore[size < stripes ? size << 1 : size];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new InMemoryThrottlingStore();
+        }
+    }
+
+    @Override
+    public ThrottlingDecision acquire(String[] keys, int[] limits, long[] windows, int permits, long maxWait) {
+        return stripe(keys).acquire(keys, limits, windows, permits, maxWait);
+    }
+
+    @Override
+    public void rollback(String[] keys, int[] limits, long[] windows, int permits) {
+        stripe(keys).rollback(keys, limits, windows, permits);
+    }
+
+    private InMemoryThrottlingStore stripe(String[] keys) {
+        int h = ShardedThrottlingStore.hashTag(keys[0]).hashCode();
+        // spreads the higher bits, as HashMap does
+        h ^= h >>> 16;
+        return stripes[h & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,379 @@
+package com.weddini.throttling.store;
+
+import com.weddini.throttling.ThrottlingDecision;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Serves the keys owned by a node of a {@link ShardedThrottlingStore} to the other nodes, from a local store.
+ *
+ * <p>Speaks the Redis serialization protocol (RESP2), so peers reuse the pipelined connection of
+ * {@link RedisThrottlingStore}. Commands of a connection are answered in order and replies are flushed once
+ * no more command is buffered, so a batch of pipelined calls is answered in a single write.
+ * <ul>
+ * <li>{@code THROTTLING.ACQUIRE permits maxWait key limit window [key limit window ...]} replies
+ * {@code [allowed, delay, limit, remaining, resetAt]}, with a {@code resetAt} of -1 for none</li>
+ * <li>{@code THROTTLING.ROLLBACK permits key limit window [key limit window ...]} replies {@code OK}</li>
+ * </ul>
+ *
+ * <p>Once the nodes share a secret, a connection is served only after the peer proved it knows the secret without
+ * sending it: {@code THROTTLING.HELLO} replies a random challenge and {@code THROTTLING.AUTH hmac} answers it with its
+ * HMAC-SHA256, see {@link #authenticate(RedisConnection, byte[], long)}. A connection failing the challenge, or not
+ * answering it in time, is closed. Commands, their arguments and the connections are capped, so a client can neither
+ * exhaust the heap nor the threads of the server.
+ */
+public class ThrottlingPeerServer implements Closeable {
+
+    static final String ACQUIRE = "THROTTLING.ACQUIRE";
+    static final String ROLLBACK = "THROTTLING.ROLLBACK";
+    static final String HELLO = "THROTTLING.HELLO";
+    static final String AUTH = "THROTTLING.AUTH";
+
+    static final int MAX_CONNECTIONS = 64;
+    // a command of a level of 64 windows
+    static final int MAX_ARGS = 3 + 64 * 3;
+    static final int MAX_ARG_LENGTH = 8192;
+    private static final int MAX_LINE_LENGTH = 20;
+    private static final int AUTH_TIMEOUT = 5000;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final ServerSocket serverSocket;
+    private final ThrottlingStore store;
+    // null if the nodes share no secret
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Serves any client, so it only listens on the loopback address, for the nodes of a single host.
+     *
+     * @param port  local port the peers connect to on the loopback address, 0 for an ephemeral one
+     * @param store store holding the keys owned by the node
+     */
+    public ThrottlingPeerServer(int port, ThrottlingStore store) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), store, null);
+    }
+
+    /**
+     * @param address local address the peers connect to, e.g. the address of the node on the private network
+     * @param store   store holding the keys owned by the node
+     * @param secret  secret shared by the nodes, the peers are to authenticate with, may be null to serve any client
+     */
+    public ThrottlingPeerServer(InetSocketAddress address, ThrottlingStore store, byte[] secret) throws IOException {
+        this.secret = secret != null ? secret.clone() : null;
+        this.store = store;
+        this.serverSocket = new ServerSocket();
+        try {
+            serverSocket.bind(address);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        Thread acceptor = new Thread(this::accept, "throttling-peer-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return store holding the keys owned by the node
+     */
+    public ThrottlingStore getStore() {
+        return store;
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (clients.size() >= MAX_CONNECTIONS) {
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("refused throttling peer " + socket.getRemoteSocketAddress() + ", "
+                                + MAX_CONNECTIONS + " connections already open");
+                    }
+                    socket.close();
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                clients.add(socket);
+                Thread client = new Thread(() -> serve(socket), "throttling-peer-" + socket.getRemoteSocketAddress());
+                client.setDaemon(true);
+                client.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed() && logger.isWarnEnabled()) {
+                    logger.warn("cannot accept throttling peer", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            if (secret != null && !authenticate(s, in, out)) {
+                return;
+            }
+            String[] command;
+            while ((command = readCommand(in)) != null) {
+                try {
+                    execute(command, out);
+                } catch (RuntimeException e) {
+                    String message = String.valueOf(e.getMessage()).replace('\r', ' ').replace('\n', ' ');
+                    out.write(("-ERR " + message).getBytes(StandardCharsets.UTF_8));
+                    out.write(CRLF);
+                }
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            if (!serverSocket.isClosed() && logger.isDebugEnabled()) {
+                logger.debug("throttling peer disconnected", e);
+            }
+        } finally {
+            clients.remove(socket);
+        }
+    }
+
+    /**
+     * Challenges the peer to prove it knows the secret, the connection is closed by the caller otherwise.
+     */
+    private boolean authenticate(Socket socket, InputStream in, OutputStream out) throws IOException {
+        socket.setSoTimeout(AUTH_TIMEOUT);
+        String[] hello = readCommand(in);
+        if (hello == null || !HELLO.equals(hello[0])) {
+            writeError(out, "NOAUTH authentication required");
+            return false;
+        }
+        byte[] challenge = new byte[16];
+        random.nextBytes(challenge);
+        String nonce = Hmac.hex(challenge);
+        out.write(("+" + nonce).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.flush();
+
+        String[] auth = readCommand(in);
+        byte[] expected = Hmac.hex(Hmac.create(secret).doFinal(nonce.getBytes(StandardCharsets.US_ASCII)))
+                .getBytes(StandardCharsets.US_ASCII);
+        if (auth == null || !AUTH.equals(auth[0]) || auth.length != 2
+                || !MessageDigest.isEqual(expected, auth[1].getBytes(StandardCharsets.US_ASCII))) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("throttling peer " + socket.getRemoteSocketAddress() + " failed to authenticate");
+            }
+            writeError(out, "WRONGPASS invalid secret");
+            return false;
+        }
+        out.write("+OK".getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.flush();
+        // pipelined connections of the peers are idle between calls
+        socket.setSoTimeout(0);
+        return true;
+    }
+
+    /**
+     * Answers the challenge of a server sharing the secret, on a connection nothing else was sent over yet.
+     *
+     * @param timeout max time in milliseconds to wait for each reply
+     */
+    static void authenticate(RedisConnection connection, byte[] secret, long timeout) {
+        try {
+            String nonce = String.valueOf(connection.send(HELLO).get(timeout, TimeUnit.MILLISECONDS));
+            String hmac = Hmac.hex(Hmac.create(secret).doFinal(nonce.getBytes(StandardCharsets.US_ASCII)));
+            connection.send(AUTH, hmac).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ThrottlingStoreException) {
+                throw (ThrottlingStoreException) e.getCause();
+            }
+            throw new ThrottlingStoreException("cannot authenticate to the throttling peer", e.getCause());
+        } catch (TimeoutException e) {
+            throw new ThrottlingStoreException("no reply of the throttling peer within " + timeout + " ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ThrottlingStoreException("interrupted while authenticating to the throttling peer", e);
+        }
+    }
+
+    private static void writeError(OutputStream out, String message) throws IOException {
+        out.write(("-" + message).getBytes(StandardCharsets.UTF_8));
+        out.write(CRLF);
+        out.flush();
+    }
+
+    private void execute(String[] command, OutputStream out) throws IOException {
+        if (ACQUIRE.equals(command[0])) {
+            int permits = permits(command[1]);
+            long maxWait = Long.parseLong(command[2]);
+            Level level = new Level(command, 3);
+            ThrottlingDecision decision = store.acquire(level.keys, level.limits, level.windows, permits, maxWait);
+            out.write('*');
+            writeNumber(out, 5);
+            writeInteger(out, decision.isAllowed() ? 1 : 0);
+            writeInteger(out, decision.getDelay());
+            writeInteger(out, decision.getLimit());
+            writeInteger(out, decision.getRemaining());
+            writeInteger(out, decision.getResetAt() != Long.MAX_VALUE ? decision.getResetAt() : -1);
+        } else if (ROLLBACK.equals(command[0])) {
+            int permits = permits(command[1]);
+            Level level = new Level(command, 2);
+            store.rollback(level.keys, level.limits, level.windows, permits);
+            out.write("+OK".getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF);
+        } else {
+            throw new IllegalArgumentException("unknown command '" + command[0] + "'");
+        }
+    }
+
+    private static int permits(String arg) {
+        int permits = Integer.parseInt(arg);
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits should be positive, but was " + permits);
+        }
+        return permits;
+    }
+
+    /**
+     * @return the arguments of the next command, null once the peer disconnected
+     */
+    private static String[] readCommand(InputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        if (type != '*') {
+            throw new IOException("unexpected command type '" + (char) type + "'");
+        }
+        String[] args = new String[readLength(in, MAX_ARGS)];
+        for (int i = 0; i < args.length; i++) {
+            if (in.read() != '$') {
+                throw new IOException("bulk string expected");
+            }
+            byte[] bytes = new byte[readLength(in, MAX_ARG_LENGTH)];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    throw new EOFException("connection closed by peer");
+                }
+                offset += read;
+            }
+            readLine(in);
+            args[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return args.length > 0 ? args : new String[]{""};
+    }
+
+    /**
+     * @return the length of an array or of a bulk string, between 0 and max
+     */
+    private static int readLength(InputStream in, int max) throws IOException {
+        String line = readLine(in);
+        try {
+            int length = Integer.parseInt(line);
+            if (length >= 0 && length <= max) {
+                return length;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IOException("length between 0 and " + max + " expected, but was '" + line + "'");
+    }
+
+    /**
+     * Lines are lengths and numbers only, longer ones are rejected.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (; ; ) {
+            int c = in.read();
+            if (c == -1) {
+                throw new EOFException("connection closed by peer");
+            }
+            if (c == '\r') {
+                in.read();
+                return line.toString();
+            }
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new IOException("line longer than " + MAX_LINE_LENGTH + " chars");
+            }
+            line.append((char) c);
+        }
+    }
+
+    private static void writeInteger(OutputStream out, long value) throws IOException {
+        out.write(':');
+        writeNumber(out, value);
+    }
+
+    private static void writeNumber(OutputStream out, long value) throws IOException {
+        out.write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+            // nothing left to release
+        }
+        for (Socket client : clients) {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // nothing left to release
+            }
+        }
+    }
+
+    /**
+     * Keys, limits and windows of a level, listed as triples from an argument of a command.
+     */
+    private static final class Level {
+
+        final String[] keys;
+        final int[] limits;
+        final long[] windows;
+
+        Level(String[] args, int from) {
+            int size = (args.length - from) / 3;
+            if (size == 0 || (args.length - from) % 3 != 0) {
+                throw new IllegalArgumentException("a level should have keys of a limit and a window each");
+            }
+            keys = new String[size];
+            limits = new int[size];
+            windows = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = args[from + i * 3];
+                limits[i] = Integer.parseInt(args[from + i * 3 + 1]);
+                windows[i] = Long.parseLong(args[from + i * 3 + 2]);
+            }
+        }
+    }
+}
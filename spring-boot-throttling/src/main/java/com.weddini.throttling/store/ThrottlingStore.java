@@ -0,0 +1,38 @@
+package com.weddini.throttling.store;
+
+import com.weddini.throttling.ThrottlingDecision;
+
+/**
+ * Remote store of rate limits shared by all the replicas of a service, so a limit is enforced once
+ * for the whole cluster instead of once per replica.
+ *
+ * <p>A key of the store is enforced as a Generic Cell Rate Algorithm (GCRA) bucket: calls are spaced by
+ * {@code window / limit} with a burst of up to {@code limit} calls. The state of a key is the single theoretical
+ * arrival time of the next call, so a check is a single atomic read-modify-write of the store.
+ * Stacked limits of a level are passed at once and decided atomically, a call rejected by one of them
+ * takes no permit from the others.
+ */
+public interface ThrottlingStore {
+
+    /**
+     * Takes permits from all the windows of a level, or none of them.
+     *
+     * @param keys    store key of each window
+     * @param limits  max number of calls per window
+     * @param windows length of each window in milliseconds
+     * @param permits number of permits the call costs
+     * @param maxWait max time in milliseconds the call agrees to wait for its permits
+     * @return the decision of the store, described by the window with the least remaining permits
+     * @throws ThrottlingStoreException if the store is unavailable
+     */
+    ThrottlingDecision acquire(String[] keys, int[] limits, long[] windows, int permits, long maxWait);
+
+    /**
+     * Gives back permits taken by {@link #acquire(String[], int[], long[], int, long)}, e.g. once another level
+     * of hierarchical limits rejected the call.
+     *
+     * @throws ThrottlingStoreException if the store is unavailable
+     */
+    void rollback(String[] keys, int[] limits, long[] windows, int permits);
+
+}
@@ -0,0 +1,17 @@
+package com.weddini.throttling.store;
+
+/**
+ * Exception thrown when a {@link ThrottlingStore} cannot decide a call, e.g. the remote store is unavailable.
+ */
+public class ThrottlingStoreException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ThrottlingStoreException(String message) {
+        super(message);
+    }
+
+    public ThrottlingStoreException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,153 @@
+package com.weddini.throttling.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.crypto.Mac;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * {@link CounterTransport} sending each batch as a UDP datagram to every peer.
+ * Lost datagrams are superseded by the next batch, see {@link CounterTransport}.
+ *
+ * <p>Datagrams are only accepted from the address and port of a peer. Source addresses are easily spoofed, so once the
+ * nodes share a secret each datagram also carries the HMAC-SHA256 of its batch, and datagrams with an invalid one are
+ * dropped. A replayed datagram is harmless, counts of a node are merged by their maximum.
+ */
+public class UdpCounterTransport implements CounterTransport {
+
+    // max payload of an IPv4 datagram
+    static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final DatagramSocket socket;
+    private final List<InetSocketAddress> peers;
+    private final Set<InetSocketAddress> sources;
+    // null if the nodes share no secret, the reader thread has a Mac of its own
+    private final Mac sendMac;
+    private final Mac receiveMac;
+
+    private volatile Consumer<byte[]> receiver = batch -> {
+    };
+
+    /**
+     * @param port  local port receiving the batches of the peers
+     * @param peers addresses of the other nodes
+     */
+    public UdpCounterTransport(int port, List<InetSocketAddress> peers) throws SocketException {
+        this(port, peers, null);
+    }
+
+    /**
+     * @param port   local port receiving the batches of the peers
+     * @param peers  addresses of the other nodes, datagrams of other addresses are dropped
+     * @param secret secret shared by the nodes authenticating the datagrams, may be null to trust the source address
+     */
+    public UdpCounterTransport(int port, List<InetSocketAddress> peers, byte[] secret) throws SocketException {
+        this.sendMac = secret != null ? Hmac.create(secret) : null;
+        this.receiveMac = secret != null ? Hmac.create(secret) : null;
+        this.peers = new ArrayList<>(peers);
+        this.sources = new HashSet<>(peers);
+        this.socket = new DatagramSocket(port);
+        Thread reader = new Thread(this::read, "throttling-udp-" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @return the local port, e.g. once bound to an ephemeral port
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void send(byte[] batch) {
+        byte[] datagram = batch;
+        if (sendMac != null) {
+            datagram = Arrays.copyOf(batch, batch.length + Hmac.LENGTH);
+            synchronized (sendMac) {
+                sendMac.update(batch);
+                System.arraycopy(sendMac.doFinal(), 0, datagram, batch.length, Hmac.LENGTH);
+            }
+        }
+        if (datagram.length > MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("batch of " + batch.length + " bytes does not fit a datagram");
+        }
+        for (InetSocketAddress peer : peers) {
+            try {
+                socket.send(new DatagramPacket(datagram, datagram.length, peer));
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("cannot send counters to " + peer, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void receive(Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+    }
+
+    private void read() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                if (!sources.contains(packet.getSocketAddress())) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("dropped counters of " + packet.getSocketAddress() + ", not a peer");
+                    }
+                    continue;
+                }
+                int length = packet.getLength();
+                if (receiveMac != null) {
+                    length -= Hmac.LENGTH;
+                    if (length < 0 || !authentic(packet.getData(), packet.getOffset(), length)) {
+                        if (logger.isWarnEnabled()) {
+                            logger.warn("dropped counters of " + packet.getSocketAddress() + ", invalid HMAC");
+                        }
+                        continue;
+                    }
+                }
+                receiver.accept(Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + length));
+            } catch (IOException e) {
+                if (!socket.isClosed() && logger.isWarnEnabled()) {
+                    logger.warn("cannot receive counters", e);
+                }
+            } catch (RuntimeException e) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("cannot merge counters received from " + packet.getSocketAddress(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the batch is followed by its HMAC
+     */
+    private boolean authentic(byte[] data, int offset, int length) {
+        receiveMac.update(data, offset, length);
+        byte[] expected = receiveMac.doFinal();
+        return MessageDigest.isEqual(expected, Arrays.copyOfRange(data, offset + length, offset + length + Hmac.LENGTH));
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
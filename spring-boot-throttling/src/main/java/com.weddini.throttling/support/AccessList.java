@@ -0,0 +1,88 @@
+package com.weddini.throttling.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allowlist and denylist of evaluated throttling values, e.g. IP addresses of internal services and known bad actors,
+ * checked before any throttling gauge.
+ *
+ * <p>Lists are loaded from local files holding a value per line, blank lines and lines starting with {@code #}
+ * are ignored. {@link #reload()} swaps both lists at once, so a call never sees one list updated and the other not.
+ */
+public class AccessList {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final Path allowFile;
+    private final Path denyFile;
+
+    private volatile Lists lists = new Lists(KeySet.empty(), KeySet.empty());
+
+    /**
+     * @param allowFile file of values never throttled, may be null
+     * @param denyFile  file of values always rejected, may be null
+     */
+    public AccessList(Path allowFile, Path denyFile) {
+        this.allowFile = allowFile;
+        this.denyFile = denyFile;
+    }
+
+    /**
+     * Reads both files and replaces the lists atomically. The current lists are kept if any of the files cannot be read.
+     */
+    public void reload() throws IOException {
+        Lists loaded = new Lists(load(allowFile), load(denyFile));
+        lists = loaded;
+        if (logger.isInfoEnabled()) {
+            logger.info("loaded throttling access lists, allowed=" + loaded.allowed.size() + ", denied=" + loaded.denied.size());
+        }
+    }
+
+    public boolean isAllowed(String value) {
+        return lists.allowed.contains(value);
+    }
+
+    public boolean isDenied(String value) {
+        return lists.denied.contains(value);
+    }
+
+    /**
+     * @return number of allowed and denied values
+     */
+    public int size() {
+        Lists current = lists;
+        return current.allowed.size() + current.denied.size();
+    }
+
+    private static KeySet load(Path file) throws IOException {
+        if (file == null) {
+            return KeySet.empty();
+        }
+        List<String> values = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String value = line.trim();
+            if (!value.isEmpty() && !value.startsWith("#")) {
+                values.add(value);
+            }
+        }
+        return KeySet.of(values);
+    }
+
+    private static class Lists {
+        final KeySet allowed;
+        final KeySet denied;
+
+        Lists(KeySet allowed, KeySet denied) {
+            this.allowed = allowed;
+            this.denied = denied;
+        }
+    }
+}
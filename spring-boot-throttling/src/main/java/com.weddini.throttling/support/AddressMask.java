@@ -0,0 +1,86 @@
+package com.weddini.throttling.support;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Aggregates remote addresses into networks for {@link com.weddini.throttling.ThrottlingType#RemoteAddr},
+ * e.g. the /64 of an IPv6 client rotating through the addresses of its network.
+ *
+ * <p>The address is masked in its binary form and rendered as the canonical network address followed by
+ * the prefix length, e.g. {@code 2001:db8:0:1:0:0:0:0/64} or {@code 203.0.113.0/24}, so all the spellings of
+ * the addresses of a network evaluate to the same value. IPv4-mapped IPv6 addresses are masked as IPv4.
+ * Values which are not IP literals are returned as is, they are never resolved.
+ */
+public class AddressMask {
+
+    public static final AddressMask NONE = new AddressMask(32, 128);
+
+    private final int ipv4PrefixLength;
+    private final int ipv6PrefixLength;
+
+    /**
+     * @param ipv4PrefixLength number of leading bits kept of IPv4 addresses, 32 keeps the whole address
+     * @param ipv6PrefixLength number of leading bits kept of IPv6 addresses, 128 keeps the whole address
+     */
+    public AddressMask(int ipv4PrefixLength, int ipv6PrefixLength) {
+        if (ipv4PrefixLength < 0 || ipv4PrefixLength > 32 || ipv6PrefixLength < 0 || ipv6PrefixLength > 128) {
+            throw new IllegalArgumentException("prefix length should be within 0..32 for IPv4 and 0..128 for IPv6");
+        }
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        this.ipv6PrefixLength = ipv6PrefixLength;
+    }
+
+    /**
+     * @param address IP literal, e.g. {@link javax.servlet.ServletRequest#getRemoteAddr()}
+     * @return the network of the address, the address itself if nothing is masked or it is not an IP literal
+     */
+    public String mask(String address) {
+        if (address == null || (ipv4PrefixLength == 32 && ipv6PrefixLength == 128) || !isLiteral(address)) {
+            return address;
+        }
+        try {
+            return mask(InetAddress.getByName(address));
+        } catch (UnknownHostException e) {
+            return address;
+        }
+    }
+
+    public String mask(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int prefixLength = bytes.length == 4 ? ipv4PrefixLength : ipv6PrefixLength;
+        if (prefixLength == bytes.length * 8) {
+            return address.getHostAddress();
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            int bits = prefixLength - i * 8;
+            if (bits <= 0) {
+                bytes[i] = 0;
+            } else if (bits < 8) {
+                bytes[i] &= (byte) (0xff << (8 - bits));
+            }
+        }
+        try {
+            return InetAddress.getByAddress(bytes).getHostAddress() + "/" + prefixLength;
+        } catch (UnknownHostException e) {
+            // never thrown for addresses of a valid length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * IPv6 literals contain a colon, IPv4 literals only digits and dots, anything else would be looked up.
+     */
+    private static boolean isLiteral(String address) {
+        if (address.indexOf(':') >= 0) {
+            return true;
+        }
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return !address.isEmpty();
+    }
+}
@@ -0,0 +1,158 @@
+package com.weddini.throttling.support;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size Count-Min Sketch of calls per value over a sliding window, used by
+ * {@link com.weddini.throttling.ThrottlingMode#APPROXIMATE}.
+ *
+ * <p>The window is split into {@code slices}, each slice counted in its own plane of {@code depth x width}
+ * primitive counters. Planes rotate as time passes: the plane of the oldest slice is cleared and reused
+ * for the current one, so memory is fixed regardless of the number of values.
+ *
+ * <p>The estimate of a value is the minimum over the rows of its counters summed over the current slice and
+ * the {@code slices} preceding ones. It never undercounts the calls of the last window, it overcounts them by
+ * <ul>
+ * <li>calls of other values sharing the counters, at most {@code e / width} of all the calls of the window
+ * with probability {@code 1 - e^-depth}</li>
+ * <li>calls of the value older than the window by at most one slice</li>
+ * </ul>
+ */
+public class CountMinSketch {
+
+    // epoch of a plane being cleared
+    private static final long CLEARING = Long.MIN_VALUE;
+
+    private final int depth;
+    private final int width;
+    private final int slices;
+    private final long sliceMillis;
+    private final AtomicIntegerArray counters;
+    // epoch (time / sliceMillis) each plane counts
+    private final AtomicLongArray epochs;
+
+    /**
+     * @param windowMillis length of the window in milliseconds
+     * @param depth        number of rows, i.e. independent hashes of a value
+     * @param width        number of counters of a row, rounded up to a power of two
+     * @param slices       number of slices of the window
+     */
+    public CountMinSketch(long windowMillis, int depth, int width, int slices) {
+        if (depth < 1 || width < 1 || slices < 1) {
+            throw new IllegalArgumentException("depth, width and slices should be positive");
+        }
+        int w = 1;
+        while (w < width) {
+            w <<= 1;
+        }
+        this.depth = depth;
+        this.width = w;
+        this.slices = slices;
+        this.sliceMillis = Math.max(1, windowMillis / slices);
+        int planes = slices + 1;
+        this.counters = new AtomicIntegerArray(planes * depth * w);
+        this.epochs = new AtomicLongArray(planes);
+        for (int i = 0; i < planes; i++) {
+            epochs.set(i, -1);
+        }
+    }
+
+    /**
+     * @return the fingerprint of a value, the same for equal values
+     */
+    public static long fingerprint(String value) {
+        return KeySet.fingerprint(value != null ? value : "");
+    }
+
+    /**
+     * Counts calls of a value in the current slice.
+     *
+     * @param fingerprint fingerprint of the value, see {@link #fingerprint(String)}
+     * @param count       number of calls
+     * @param now         the current time in milliseconds
+     * @return the estimate of the value including the counted calls
+     */
+    public int add(long fingerprint, int count, long now) {
+        int plane = plane(now / sliceMillis);
+        for (int row = 0; row < depth; row++) {
+            counters.addAndGet(index(plane, row, fingerprint), count);
+        }
+        return estimate(fingerprint, now);
+    }
+
+    /**
+     * Takes back calls counted by {@link #add(long, int, long)} at the given time, unless their slice
+     * was already rotated out.
+     */
+    public void subtract(long fingerprint, int count, long addedAt) {
+        long epoch = addedAt / sliceMillis;
+        int plane = (int) (epoch % epochs.length());
+        if (epochs.get(plane) != epoch) {
+            return;
+        }
+        for (int row = 0; row < depth; row++) {
+            counters.addAndGet(index(plane, row, fingerprint), -count);
+        }
+    }
+
+    /**
+     * @return the estimated number of calls of a value within the window ending now
+     */
+    public int estimate(long fingerprint, long now) {
+        long epoch = now / sliceMillis;
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int sum = 0;
+            for (long e = epoch; e >= 0 && e >= epoch - slices; e--) {
+                int plane = (int) (e % epochs.length());
+                if (epochs.get(plane) == e) {
+                    sum += counters.get(index(plane, row, fingerprint));
+                }
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * @return the time in milliseconds the oldest counted slice falls out of the window
+     */
+    public long nextRotation(long now) {
+        return (now / sliceMillis + 1) * sliceMillis;
+    }
+
+    /**
+     * @return the plane counting the given epoch, cleared first if it still holds an older one
+     */
+    private int plane(long epoch) {
+        int plane = (int) (epoch % epochs.length());
+        for (; ; ) {
+            long current = epochs.get(plane);
+            if (current == CLEARING) {
+                // a plane holds depth x width counters, clearing it is short
+                Thread.yield();
+            } else if (current >= epoch) {
+                // a late writer of a recycled plane overcounts the newer slice, never undercounts
+                return plane;
+            } else if (epochs.compareAndSet(plane, current, CLEARING)) {
+                int from = plane * depth * width;
+                for (int i = from; i < from + depth * width; i++) {
+                    counters.set(i, 0);
+                }
+                epochs.set(plane, epoch);
+                return plane;
+            }
+        }
+    }
+
+    /**
+     * Rows are hashed by double hashing of the 64-bit fingerprint.
+     */
+    private int index(int plane, int row, long fingerprint) {
+        int h1 = (int) fingerprint;
+        int h2 = (int) (fingerprint >>> 32) | 1;
+        int column = (h1 + row * h2) & (width - 1);
+        return (plane * depth + row) * width + column;
+    }
+}
@@ -0,0 +1,150 @@
+package com.weddini.throttling.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded-memory tracker of the most frequent keys, a set-associative variant of the Space-Saving algorithm.
+ *
+ * <p>A key is hashed to a group of {@value #WAYS} counters. A tracked key increments its counter, a new key takes
+ * an empty counter or replaces the smallest counter of the group, inheriting its count as the error bound.
+ * Counters are replaced with a CAS and incremented with a {@link LongAdder}, so offering a key never blocks
+ * and a hot key does not contend on a single counter.
+ * The true count of a reported key lies within {@code [count - error, count]}, increments racing with
+ * the replacement of a counter may be lost.
+ *
+ * @param <K> The type of the keys
+ */
+public class HeavyHitters<K> {
+
+    private static final int WAYS = 8;
+
+    private final AtomicReferenceArray<Counter<K>> counters;
+    private final int groupMask;
+
+    /**
+     * @param capacity number of tracked keys, rounded up to a power of two of at least {@value #WAYS}
+     */
+    public HeavyHitters(int capacity) {
+        int groups = 1;
+        while (groups * WAYS < capacity) {
+            groups <<= 1;
+        }
+        this.counters = new AtomicReferenceArray<>(groups * WAYS);
+        this.groupMask = groups - 1;
+    }
+
+    public void offer(K key, long weight) {
+        int h = key.hashCode();
+        int base = ((h ^ (h >>> 16)) & groupMask) * WAYS;
+        for (; ; ) {
+            int empty = -1;
+            int smallest = -1;
+            Counter<K> min = null;
+            for (int i = base; i < base + WAYS; i++) {
+                Counter<K> counter = counters.get(i);
+                if (counter == null) {
+                    if (empty < 0) {
+                        empty = i;
+                    }
+                } else if (counter.key.equals(key)) {
+                    counter.count.add(weight);
+                    return;
+                } else if (min == null || counter.count.sum() < min.count.sum()) {
+                    min = counter;
+                    smallest = i;
+                }
+            }
+            if (empty >= 0) {
+                if (counters.compareAndSet(empty, null, new Counter<>(key, weight, 0))) {
+                    return;
+                }
+            } else {
+                long count = min.count.sum();
+                if (counters.compareAndSet(smallest, min, new Counter<>(key, count + weight, count))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param n max number of keys to return
+     * @return the most frequent tracked keys, by descending count
+     */
+    public List<Hitter<K>> top(int n) {
+        Map<K, Hitter<K>> hitters = new HashMap<>();
+        for (int i = 0; i < counters.length(); i++) {
+            Counter<K> counter = counters.get(i);
+            if (counter != null) {
+                // a key racing into two empty counters of a group is reported once
+                hitters.merge(counter.key, new Hitter<>(counter.key, counter.count.sum(), counter.error),
+                        (a, b) -> a.count >= b.count ? a : b);
+            }
+        }
+        List<Hitter<K>> top = new ArrayList<>(hitters.values());
+        top.sort((a, b) -> Long.compare(b.count, a.count));
+        return top.size() > n ? new ArrayList<>(top.subList(0, n)) : top;
+    }
+
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, null);
+        }
+    }
+
+    private static class Counter<K> {
+        final K key;
+        final LongAdder count = new LongAdder();
+        final long error;
+
+        Counter(K key, long count, long error) {
+            this.key = key;
+            this.count.add(count);
+            this.error = error;
+        }
+    }
+
+    /**
+     * A tracked key with its estimated count.
+     */
+    public static class Hitter<K> {
+        private final K key;
+        private final long count;
+        private final long error;
+
+        public Hitter(K key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * @return the count, overestimated by at most {@link #getError()}
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Hitter{" +
+                    "key=" + key +
+                    ", count=" + count +
+                    ", error=" + error +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.weddini.throttling.support;
+
+import java.util.Collection;
+
+/**
+ * Immutable set of evaluated throttling values, e.g. IP addresses, kept with their 64-bit fingerprints
+ * in an open-addressing table of parallel arrays.
+ *
+ * <p>Never allocates on lookup. The value is only compared once its fingerprint is found, so a lookup of an absent
+ * value almost never touches a string, while colliding fingerprints never make an absent value look present.
+ */
+public final class KeySet {
+
+    private static final KeySet EMPTY = new KeySet(new long[1], new String[1], 0);
+
+    // 0 marks an empty slot
+    private final long[] table;
+    private final String[] values;
+    private final int size;
+
+    private KeySet(long[] table, String[] values, int size) {
+        this.table = table;
+        this.values = values;
+        this.size = size;
+    }
+
+    public static KeySet empty() {
+        return EMPTY;
+    }
+
+    public static KeySet of(Collection<String> values) {
+        if (values.isEmpty()) {
+            return EMPTY;
+        }
+        int capacity = 2;
+        while (capacity < values.size() * 2) {
+            capacity <<= 1;
+        }
+        long[] table = new long[capacity];
+        String[] strings = new String[capacity];
+        int size = 0;
+        for (String value : values) {
+            long fingerprint = fingerprint(value);
+            int slot = find(table, strings, fingerprint, value);
+            if (table[slot] == 0) {
+                table[slot] = fingerprint;
+                strings[slot] = value;
+                size++;
+            }
+        }
+        return new KeySet(table, strings, size);
+    }
+
+    public boolean contains(String value) {
+        if (value == null || size == 0) {
+            return false;
+        }
+        return table[find(table, values, fingerprint(value), value)] != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the slot holding the value or the empty slot it belongs to
+     */
+    private static int find(long[] table, String[] values, long fingerprint, String value) {
+        int mask = table.length - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        while (table[slot] != 0 && (table[slot] != fingerprint || !values[slot].equals(value))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * FNV-1a over the chars followed by the MurmurHash3 finalizer, never 0.
+     */
+    static long fingerprint(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+}
@@ -0,0 +1,244 @@
+package com.weddini.throttling.support;
+
+import com.weddini.throttling.ThrottlingKey;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits of evaluated throttling values overriding the limits of the {@link com.weddini.throttling.Throttling}
+ * annotations, e.g. higher limits for VIP tenants, changed without a redeploy.
+ *
+ * <p>Overrides are read from a local file and from configured entries, an override per line:
+ * <pre>
+ * # group value limit/timeUnit
+ * ReportController#export acme 1000/MINUTES
+ * *                      10.0.0.1 100/SECONDS
+ * </pre>
+ * The group is the {@link ThrottlingKey#getGroup() simple name of the class and the name} of the throttled method,
+ * {@code *} standing for any method.
+ * An override replaces all the stacked limits of the levels whose evaluated value it names, an override of the method
+ * taking precedence over an override of any method. Blank lines and lines starting with {@code #} are ignored.
+ *
+ * <p>Overrides are kept with 64-bit fingerprints of the group and the value in an immutable open-addressing table,
+ * so a lookup never allocates for a value without an override. The group and the value are only compared once their
+ * fingerprint is found, so two values sharing a fingerprint never share an override. {@link #reload()} swaps the table
+ * atomically.
+ */
+public class LimitOverrides {
+
+    private static final String ANY_METHOD = "*";
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final Group ANY_METHOD_GROUP = new Group(ANY_METHOD);
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final Path file;
+    private final List<String> entries;
+    // group of each throttled method, see ThrottlingKey#getGroup()
+    private final Map<Method, Group> groups = new ConcurrentHashMap<>();
+
+    private volatile Table table = Table.EMPTY;
+
+    /**
+     * @param file    file of overrides, may be null
+     * @param entries overrides in the format of the file, e.g. from the application properties, may be null.
+     *                Overrides of the file take precedence
+     */
+    public LimitOverrides(Path file, List<String> entries) {
+        this.file = file;
+        this.entries = entries != null ? new ArrayList<>(entries) : Collections.emptyList();
+    }
+
+    /**
+     * Reads the file and the entries and replaces the overrides atomically. The current overrides are kept if the file
+     * cannot be read or holds a malformed line.
+     */
+    public void reload() throws IOException {
+        List<String> lines = new ArrayList<>(entries);
+        if (file != null) {
+            lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+        }
+        List<Long> fingerprints = new ArrayList<>();
+        List<String> groupNames = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        List<Integer> limits = new ArrayList<>();
+        List<TimeUnit> timeUnits = new ArrayList<>();
+        for (String line : lines) {
+            String entry = line.trim();
+            if (entry.isEmpty() || entry.startsWith("#")) {
+                continue;
+            }
+            String[] fields = entry.split("\\s+");
+            int slash = fields.length == 3 ? fields[2].indexOf('/') : -1;
+            if (slash < 0) {
+                throw new IOException("malformed limit override '" + entry + "', 'group value limit/timeUnit' expected");
+            }
+            int limit;
+            try {
+                limit = Integer.parseInt(fields[2].substring(0, slash));
+                timeUnits.add(timeUnit(fields[2].substring(slash + 1)));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("malformed limit override '" + entry + "'", e);
+            }
+            if (limit <= 0) {
+                throw new IOException("malformed limit override '" + entry + "', limit should be positive");
+            }
+            limits.add(limit);
+            fingerprints.add(fingerprint(new Group(fields[0]).hash, fields[1]));
+            groupNames.add(fields[0]);
+            values.add(fields[1]);
+        }
+        Table loaded = Table.of(fingerprints, groupNames, values, limits, timeUnits);
+        table = loaded;
+        if (logger.isInfoEnabled()) {
+            logger.info("loaded throttling limit overrides, overrides=" + loaded.size);
+        }
+    }
+
+    /**
+     * @return the key with the overridden limit of its evaluated value, or the key itself if not overridden
+     */
+    public ThrottlingKey apply(ThrottlingKey key) {
+        Table current = table;
+        String value = key.getEvaluatedValue();
+        if (current.size == 0 || value == null) {
+            return key;
+        }
+        Group group = groups.computeIfAbsent(key.getMethod(), method -> new Group(key.getGroup()));
+        int slot = current.find(fingerprint(group.hash, value), group.name, value);
+        if (current.fingerprints[slot] == 0) {
+            slot = current.find(fingerprint(ANY_METHOD_GROUP.hash, value), ANY_METHOD, value);
+        }
+        if (current.fingerprints[slot] == 0) {
+            return key;
+        }
+        return key.withLimit(current.limits[slot], current.timeUnits[slot]);
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    /**
+     * FNV-1a over the chars of the value continuing from the group, followed by the MurmurHash3 finalizer, never 0.
+     */
+    private static long fingerprint(long group, String value) {
+        long h = hash(group, value);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+    private static long hash(long h, String chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            h ^= chars.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * Accepts the names of {@link TimeUnit} in any case, singular or plural, e.g. {@code minute} or {@code MINUTES}.
+     */
+    private static TimeUnit timeUnit(String name) {
+        String unit = name.toUpperCase();
+        return TimeUnit.valueOf(unit.endsWith("S") ? unit : unit + "S");
+    }
+
+    /**
+     * Group of a throttled method with the FNV-1a state after its chars and a separator.
+     */
+    private static final class Group {
+
+        final String name;
+        final long hash;
+
+        Group(String name) {
+            this.name = name;
+            this.hash = hash(FNV_OFFSET, name) * FNV_PRIME;
+        }
+    }
+
+    /**
+     * Open-addressing table of the fingerprints with their groups, values and limits in parallel arrays,
+     * 0 marks an empty slot.
+     */
+    private static final class Table {
+
+        static final Table EMPTY = new Table(new long[1], new String[1], new String[1], new int[1], new TimeUnit[1], 0);
+
+        final long[] fingerprints;
+        final String[] groups;
+        final String[] values;
+        final int[] limits;
+        final TimeUnit[] timeUnits;
+        final int size;
+
+        private Table(long[] fingerprints, String[] groups, String[] values, int[] limits, TimeUnit[] timeUnits, int size) {
+            this.fingerprints = fingerprints;
+            this.groups = groups;
+            this.values = values;
+            this.limits = limits;
+            this.timeUnits = timeUnits;
+            this.size = size;
+        }
+
+        /**
+         * A later override of the same group and value replaces the former one.
+         */
+        static Table of(List<Long> fingerprints, List<String> groups, List<String> values, List<Integer> limits,
+                        List<TimeUnit> timeUnits) {
+            if (fingerprints.isEmpty()) {
+                return EMPTY;
+            }
+            int capacity = 2;
+            while (capacity < fingerprints.size() * 2) {
+                capacity <<= 1;
+            }
+            Table table = new Table(new long[capacity], new String[capacity], new String[capacity], new int[capacity],
+                    new TimeUnit[capacity], 0);
+            int size = 0;
+            for (int i = 0; i < fingerprints.size(); i++) {
+                int slot = table.find(fingerprints.get(i), groups.get(i), values.get(i));
+                if (table.fingerprints[slot] == 0) {
+                    table.fingerprints[slot] = fingerprints.get(i);
+                    table.groups[slot] = groups.get(i);
+                    table.values[slot] = values.get(i);
+                    size++;
+                }
+                table.limits[slot] = limits.get(i);
+                table.timeUnits[slot] = timeUnits.get(i);
+            }
+            return new Table(table.fingerprints, table.groups, table.values, table.limits, table.timeUnits, size);
+        }
+
+        /**
+         * @return the slot holding the group and the value or the empty slot they belong to
+         */
+        int find(long fingerprint, String group, String value) {
+            int mask = fingerprints.length - 1;
+            int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+            while (fingerprints[slot] != 0
+                    && (fingerprints[slot] != fingerprint || !values[slot].equals(value) || !groups[slot].equals(group))) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
@@ -8,6 +8,7 @@ import org.springframework.core.DefaultParameterNameDiscoverer;
 import org.springframework.core.ParameterNameDiscoverer;
 import org.springframework.expression.EvaluationContext;
 import org.springframework.expression.Expression;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
 
 import java.lang.reflect.Method;
 import java.util.Arrays;
@@ -34,7 +35,76 @@ public class SpElEvaluator extends CachedExpressionEvaluator {
         }
         EvaluationContext evaluationContext = createEvaluationContext(object, clazz, method, args);
         AnnotatedElementKey methodKey = new AnnotatedElementKey(method, clazz);
-        return condition(expression, methodKey, evaluationContext);
+        return condition(expression, methodKey, evaluationContext, String.class);
+    }
+
+    /**
+     * Evaluates an expression against named variables instead of the method arguments, e.g. the exchange of
+     * a reactive handler whose arguments are not resolved yet when it is throttled.
+     *
+     * @param variables values referenced by name in the expression, e.g. {@code #exchange}
+     */
+    public String evaluate(String expression, Object object, Map<String, Object> variables, Class clazz, Method method) {
+        EvaluationContext evaluationContext = createEvaluationContext(object, variables);
+        AnnotatedElementKey methodKey = new AnnotatedElementKey(method, clazz);
+        return condition(expression, methodKey, evaluationContext, String.class);
+    }
+
+    /**
+     * Evaluates the number of permits a call costs.
+     * Numbers are parsed as is, anything else is evaluated as a cached expression.
+     *
+     * @return the cost, 1 if the expression is empty or evaluates to null
+     * @throws IllegalArgumentException if the cost is not positive, a call is never free
+     */
+    public int evaluateCost(String expression, Object object, Object[] args, Class clazz, Method method) {
+        if (expression == null || expression.isEmpty()) {
+            return 1;
+        }
+        if (isNumber(expression)) {
+            return positive(Integer.parseInt(expression));
+        }
+        Object[] arguments = args != null ? args : new Object[0];
+        EvaluationContext evaluationContext = createEvaluationContext(object, clazz, method, arguments);
+        AnnotatedElementKey methodKey = new AnnotatedElementKey(method, clazz);
+        Integer cost = condition(expression, methodKey, evaluationContext, Integer.class);
+        return cost != null ? positive(cost) : 1;
+    }
+
+    /**
+     * Evaluates the number of permits a call costs against named variables instead of the method arguments,
+     * see {@link #evaluate(String, Object, Map, Class, Method)} and {@link #evaluateCost(String, Object, Object[], Class, Method)}.
+     */
+    public int evaluateCost(String expression, Object object, Map<String, Object> variables, Class clazz, Method method) {
+        if (expression == null || expression.isEmpty()) {
+            return 1;
+        }
+        if (isNumber(expression)) {
+            return positive(Integer.parseInt(expression));
+        }
+        EvaluationContext evaluationContext = createEvaluationContext(object, variables);
+        AnnotatedElementKey methodKey = new AnnotatedElementKey(method, clazz);
+        Integer cost = condition(expression, methodKey, evaluationContext, Integer.class);
+        return cost != null ? positive(cost) : 1;
+    }
+
+    private static int positive(int cost) {
+        if (cost <= 0) {
+            throw new IllegalArgumentException("cost should be positive, but was " + cost);
+        }
+        return cost;
+    }
+
+    private static boolean isNumber(String expression) {
+        if (expression.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < expression.length(); i++) {
+            if (!Character.isDigit(expression.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private EvaluationContext createEvaluationContext(Object object, Class<?> targetClass, Method method, Object[] args) {
@@ -43,12 +113,18 @@ public class SpElEvaluator extends CachedExpressionEvaluator {
         return new MethodBasedEvaluationContext(root, targetMethod, args, this.paramNameDiscoverer);
     }
 
-    private String condition(String conditionExpression, AnnotatedElementKey elementKey, EvaluationContext evalContext) {
-        String result = null;
+    private EvaluationContext createEvaluationContext(Object object, Map<String, Object> variables) {
+        StandardEvaluationContext evaluationContext = new StandardEvaluationContext(new ExpressionRootObject(object, new Object[0]));
+        evaluationContext.setVariables(variables);
+        return evaluationContext;
+    }
+
+    private <T> T condition(String conditionExpression, AnnotatedElementKey elementKey, EvaluationContext evalContext, Class<T> type) {
+        T result = null;
         Expression expression = getExpression(this.conditionCache, elementKey, conditionExpression);
         if (expression != null) {
             try {
-                result = expression.getValue(evalContext, String.class);
+                result = expression.getValue(evalContext, type);
             } catch (NullPointerException ignore) {
             }
         }
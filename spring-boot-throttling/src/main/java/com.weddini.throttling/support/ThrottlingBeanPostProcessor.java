@@ -3,6 +3,7 @@ package com.weddini.throttling.support;
 import com.weddini.throttling.Throttling;
 import com.weddini.throttling.ThrottlingException;
 import com.weddini.throttling.ThrottlingKey;
+import com.weddini.throttling.ThrottlingPermit;
 import com.weddini.throttling.service.ThrottlingEvaluator;
 import com.weddini.throttling.service.ThrottlingService;
 import org.apache.commons.logging.Log;
@@ -11,15 +12,20 @@ import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.ReflectionUtils;
+import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
-import static org.springframework.core.annotation.AnnotationUtils.findAnnotation;
+import static org.springframework.core.annotation.AnnotationUtils.getRepeatableAnnotations;
 
 /**
  * {@link org.springframework.beans.factory.config.BeanPostProcessor}
@@ -58,8 +64,7 @@ public class ThrottlingBeanPostProcessor implements BeanPostProcessor {
         }
 
         for (Method method : bean.getClass().getMethods()) {
-            Throttling annotation = method.getAnnotation(Throttling.class);
-            if (annotation != null) {
+            if (method.getAnnotationsByType(Throttling.class).length > 0) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("discovered bean '" + beanName + "' annotated with @Throttling");
                 }
@@ -84,22 +89,30 @@ public class ThrottlingBeanPostProcessor implements BeanPostProcessor {
 
         return Proxy.newProxyInstance(clazz.getClassLoader(), clazz.getInterfaces(), (proxy, method, args) -> {
 
-            Throttling annotation = findAnnotation(clazz.getMethod(method.getName(), method.getParameterTypes()), Throttling.class);
+            Set<Throttling> annotations = getRepeatableAnnotations(clazz.getMethod(method.getName(), method.getParameterTypes()), Throttling.class);
+            ThrottlingPermit heldPermit = null;
 
-            if (annotation != null) {
+            if (!annotations.isEmpty()) {
 
+                Throttling annotation = annotations.iterator().next();
 
-                final String evaluatedValue = throttlingEvaluator.evaluate(annotation, bean, clazz, method, args);
+                List<Throttling[]> levels = ThrottlingKey.levels(annotations.toArray(new Throttling[annotations.size()]));
+                List<String> evaluatedValues = throttlingEvaluator.evaluate(levels, bean, clazz, method, args);
+                final String evaluatedValue = evaluatedValues.get(0);
 
-                ThrottlingKey key = ThrottlingKey.builder()
-                        .method(method)
-                        .annotation(annotation)
-                        .evaluatedValue(evaluatedValue)
-                        .build();
+                List<ThrottlingKey> keys = ThrottlingKey.keys(method, levels, evaluatedValues);
 
-                boolean isAllowed = throttlingService.throttle(key, evaluatedValue);
+                int cost = throttlingEvaluator.evaluateCost(annotation, bean, clazz, method, args);
 
-                if (!isAllowed) {
+                ThrottlingPermit permit;
+                try {
+                    permit = throttlingService.acquirePermit(keys, cost, annotation.maxWait(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    permit = null;
+                }
+
+                if (permit == null) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("cannot proceed with a method call due to @Throttling configuration, type="
                                 + annotation.type() + ", value=" + evaluatedValue);
@@ -107,6 +120,13 @@ public class ThrottlingBeanPostProcessor implements BeanPostProcessor {
                     throw new ThrottlingException();
                 }
 
+                if (ThrottlingKey.holdsPermit(keys)) {
+                    heldPermit = permit;
+                }
+            }
+
+            if (heldPermit != null) {
+                return invokeHoldingPermit(method, bean, args, heldPermit);
             }
 
             // call original method
@@ -114,4 +134,29 @@ public class ThrottlingBeanPostProcessor implements BeanPostProcessor {
         });
     }
 
+    /**
+     * Calls the original method and releases the permit with the measured latency once the call completes.
+     * For {@link CompletionStage} and {@link ListenableFuture} results the permit is held until the result completes.
+     */
+    private Object invokeHoldingPermit(Method method, Object bean, Object[] args, ThrottlingPermit permit) {
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = ReflectionUtils.invokeMethod(method, bean, args);
+        } catch (RuntimeException | Error e) {
+            permit.release(System.nanoTime() - start);
+            throw e;
+        }
+
+        if (result instanceof CompletionStage) {
+            ((CompletionStage<?>) result).whenComplete((value, ex) -> permit.release(System.nanoTime() - start));
+        } else if (result instanceof ListenableFuture) {
+            ((ListenableFuture<?>) result).addCallback(value -> permit.release(System.nanoTime() - start),
+                    ex -> permit.release(System.nanoTime() - start));
+        } else {
+            permit.release(System.nanoTime() - start);
+        }
+        return result;
+    }
+
 }
@@ -1,54 +1,96 @@
 package com.weddini.throttling.support;
 
 import com.weddini.throttling.Throttling;
+import com.weddini.throttling.ThrottlingDecision;
 import com.weddini.throttling.ThrottlingException;
 import com.weddini.throttling.ThrottlingKey;
+import com.weddini.throttling.ThrottlingPermit;
 import com.weddini.throttling.service.ThrottlingEvaluator;
 import com.weddini.throttling.service.ThrottlingService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
 import org.springframework.web.method.HandlerMethod;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ThrottlingInterceptor extends HandlerInterceptorAdapter {
 
+    private static final String DELAYED_ATTRIBUTE = ThrottlingInterceptor.class.getName() + ".DELAYED";
+    private static final String PERMIT_ATTRIBUTE = ThrottlingInterceptor.class.getName() + ".PERMIT";
+    private static final String START_ATTRIBUTE = ThrottlingInterceptor.class.getName() + ".START";
+
+    // extra time given to the async request on top of the throttling delay
+    private static final long ASYNC_TIMEOUT_MARGIN = 5000;
+
     private final Log logger = LogFactory.getLog(getClass());
 
     private final ThrottlingEvaluator throttlingEvaluator;
     private final ThrottlingService throttlingService;
+    private final WheelTimer timer;
 
     public ThrottlingInterceptor(ThrottlingEvaluator throttlingEvaluator, ThrottlingService throttlingService) {
+        this(throttlingEvaluator, throttlingService, null);
+    }
+
+    public ThrottlingInterceptor(ThrottlingEvaluator throttlingEvaluator, ThrottlingService throttlingService, WheelTimer timer) {
         this.throttlingEvaluator = throttlingEvaluator;
         this.throttlingService = throttlingService;
+        this.timer = timer;
     }
 
 
     @Override
-    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
 
         if (HandlerMethod.class.isInstance(handler)) {
 
             HandlerMethod handlerMethod = (HandlerMethod) handler;
 
-            Throttling annotation = handlerMethod.getMethod().getAnnotation(Throttling.class);
+            Throttling[] annotations = handlerMethod.getMethod().getAnnotationsByType(Throttling.class);
 
-            if (annotation != null) {
+            if (annotations.length > 0) {
+
+                Throttling annotation = annotations[0];
+
+                if (request.getAttribute(DELAYED_ATTRIBUTE) != null) {
+                    // async dispatch of a delayed request, the permit is already reserved
+                    request.removeAttribute(DELAYED_ATTRIBUTE);
+                    WebAsyncUtils.getAsyncManager(request).clearConcurrentResult();
+                    if (request.getAttribute(PERMIT_ATTRIBUTE) != null) {
+                        // the call starts now, its delay is not part of its latency
+                        request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+                    }
+                    return true;
+                }
 
-                String evaluatedValue = throttlingEvaluator.evaluate(annotation, handlerMethod.getBean(), handlerMethod.getBeanType(),
+                if (request.getAttribute(PERMIT_ATTRIBUTE) != null) {
+                    // async dispatch of a request already holding a concurrency permit
+                    return true;
+                }
+
+                List<Throttling[]> levels = ThrottlingKey.levels(annotations);
+                List<String> evaluatedValues = throttlingEvaluator.evaluate(levels, handlerMethod.getBean(), handlerMethod.getBeanType(),
                         handlerMethod.getMethod(), handlerMethod.getMethodParameters());
+                String evaluatedValue = evaluatedValues.get(0);
 
-                ThrottlingKey key = ThrottlingKey.builder()
-                        .method(handlerMethod.getMethod())
-                        .annotation(annotation)
-                        .evaluatedValue(evaluatedValue)
-                        .build();
+                List<ThrottlingKey> keys = ThrottlingKey.keys(handlerMethod.getMethod(), levels, evaluatedValues);
 
-                boolean isHandlingAllowed = throttlingService.throttle(key, evaluatedValue);
+                // the handler arguments are not resolved yet, the cost is evaluated against the request
+                int cost = throttlingEvaluator.evaluateCost(annotation, handlerMethod.getBean(), handlerMethod.getBeanType(),
+                        handlerMethod.getMethod(), request);
 
-                if (!isHandlingAllowed) {
+                ThrottlingDecision decision = throttlingService.decide(keys, timer != null ? annotation.maxWait() : 0, cost);
+                setHeaders(response, decision);
+                long delay = decision.getDelay();
+
+                if (delay < 0) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("cannot proceed with a handling http request [" + request.getRequestURI() + "] due to @Throttling configuration, type="
                                 + annotation.type() + ", value=" + evaluatedValue);
@@ -56,10 +98,71 @@ public class ThrottlingInterceptor extends HandlerInterceptorAdapter {
                     throw new ThrottlingException();
                 }
 
+                ThrottlingPermit permit = ThrottlingKey.holdsPermit(keys) ? once(decision.getPermit()) : null;
+                long start = System.nanoTime();
+                if (permit != null) {
+                    request.setAttribute(PERMIT_ATTRIBUTE, permit);
+                    request.setAttribute(START_ATTRIBUTE, start);
+                }
+
+                if (delay > 0) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("delaying http request [" + request.getRequestURI() + "] for " + delay
+                                + " ms due to @Throttling configuration, type=" + annotation.type() + ", value=" + evaluatedValue);
+                    }
+                    // release the worker thread and dispatch the request again once the reserved permit is due
+                    DeferredResult<Object> deferredResult = new DeferredResult<>(delay + ASYNC_TIMEOUT_MARGIN);
+                    WebAsyncManager asyncManager = WebAsyncUtils.getAsyncManager(request);
+                    request.setAttribute(DELAYED_ATTRIBUTE, Boolean.TRUE);
+                    if (permit != null) {
+                        // released by afterCompletion of the async dispatch, or here if the request times out or
+                        // fails before it
+                        deferredResult.onCompletion(() -> permit.release(System.nanoTime() - start));
+                    }
+                    asyncManager.startDeferredResultProcessing(deferredResult);
+                    timer.schedule(() -> deferredResult.setResult(Boolean.TRUE), delay);
+                    return false;
+                }
             }
         }
 
         return true;
     }
 
+    /**
+     * @return the permit released once at most, by whichever of the completion callbacks runs first
+     */
+    private static ThrottlingPermit once(ThrottlingPermit permit) {
+        AtomicBoolean released = new AtomicBoolean();
+        return elapsedNanos -> {
+            if (released.compareAndSet(false, true)) {
+                permit.release(elapsedNanos);
+            }
+        };
+    }
+
+    private static void setHeaders(HttpServletResponse response, ThrottlingDecision decision) {
+        if (decision.getRemaining() >= 0) {
+            response.setHeader(ThrottlingDecision.LIMIT_HEADER, String.valueOf(decision.getLimit()));
+            response.setHeader(ThrottlingDecision.REMAINING_HEADER, String.valueOf(decision.getRemaining()));
+        }
+        if (decision.hasResetAt()) {
+            response.setHeader(ThrottlingDecision.RESET_HEADER, String.valueOf(decision.getResetEpochSeconds()));
+            if (!decision.isAllowed()) {
+                response.setHeader(ThrottlingDecision.RETRY_AFTER_HEADER, String.valueOf(decision.getRetryAfterSeconds()));
+            }
+        }
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        ThrottlingPermit permit = (ThrottlingPermit) request.getAttribute(PERMIT_ATTRIBUTE);
+        if (permit != null) {
+            long elapsedNanos = System.nanoTime() - (Long) request.getAttribute(START_ATTRIBUTE);
+            request.removeAttribute(PERMIT_ATTRIBUTE);
+            request.removeAttribute(START_ATTRIBUTE);
+            permit.release(elapsedNanos);
+        }
+    }
+
 }
@@ -0,0 +1,84 @@
+package com.weddini.throttling.support;
+
+import com.weddini.throttling.service.ThrottlingService;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.io.IOException;
+
+/**
+ * Management operations of the throttling, exported over JMX by Spring once registered as a bean.
+ */
+@ManagedResource(objectName = "com.weddini.throttling:name=throttling", description = "Spring Boot Throttling")
+public class ThrottlingManagement {
+
+    private final ThrottlingService throttlingService;
+    private final LimitOverrides limitOverrides;
+    private final AccessList accessList;
+
+    /**
+     * @param limitOverrides overrides reloaded by {@link #reloadLimitOverrides()}, may be null
+     */
+    public ThrottlingManagement(ThrottlingService throttlingService, LimitOverrides limitOverrides) {
+        this(throttlingService, limitOverrides, null);
+    }
+
+    /**
+     * @param limitOverrides overrides reloaded by {@link #reloadLimitOverrides()}, may be null
+     * @param accessList     allowlist and denylist reloaded by {@link #reloadAccessLists()}, may be null
+     */
+    public ThrottlingManagement(ThrottlingService throttlingService, LimitOverrides limitOverrides, AccessList accessList) {
+        this.throttlingService = throttlingService;
+        this.limitOverrides = limitOverrides;
+        this.accessList = accessList;
+    }
+
+    @ManagedOperation(description = "Changes the capacity of the gauge cache, gauges over a shrunk capacity are evicted")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "partition", description = "Cache partition, empty for the shared cache"),
+            @ManagedOperationParameter(name = "capacity", description = "New capacity")})
+    public void resizeCache(String partition, int capacity) {
+        throttlingService.resizeCache(partition, capacity);
+    }
+
+    @ManagedOperation(description = "Capacity of the gauge cache, -1 if unknown")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "partition", description = "Cache partition, empty for the shared cache")})
+    public long getCacheCapacity(String partition) {
+        return throttlingService.getCacheCapacity(partition);
+    }
+
+    @ManagedOperation(description = "Resets the gauges of a method, e.g. ReportController#export")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "group", description = "Simple class name and method name")})
+    public int resetMethod(String group) {
+        return throttlingService.resetMethod(group);
+    }
+
+    @ManagedOperation(description = "Resets the gauges of an evaluated value across all the methods, e.g. a user")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "evaluatedValue", description = "Evaluated value")})
+    public int resetValue(String evaluatedValue) {
+        return throttlingService.resetValue(evaluatedValue);
+    }
+
+    @ManagedOperation(description = "Reloads the limit overrides, the current ones are kept if the file cannot be read")
+    public int reloadLimitOverrides() throws IOException {
+        if (limitOverrides == null) {
+            return 0;
+        }
+        limitOverrides.reload();
+        return limitOverrides.size();
+    }
+
+    @ManagedOperation(description = "Reloads the allowlist and the denylist, the current ones are kept if a file cannot be read")
+    public int reloadAccessLists() throws IOException {
+        if (accessList == null) {
+            return 0;
+        }
+        accessList.reload();
+        return accessList.size();
+    }
+}
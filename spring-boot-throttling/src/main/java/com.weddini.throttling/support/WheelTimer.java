@@ -0,0 +1,126 @@
+package com.weddini.throttling.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed wheel timer firing delayed throttling calls.
+ *
+ * <p>Tasks are handed over through a lock-free queue and fired by a single daemon thread
+ * with a precision of one tick, so delayed calls never occupy a request thread while waiting.
+ */
+public class WheelTimer {
+
+    private static final int WHEEL_SIZE = 512;
+    private static final long DEFAULT_TICK_DURATION = 10;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final long tickNanos;
+    private final long startTime;
+    private final Queue<Timeout> pending;
+    private final List<List<Timeout>> wheel;
+    private final Thread worker;
+
+    private volatile boolean running;
+
+    public WheelTimer() {
+        this(DEFAULT_TICK_DURATION);
+    }
+
+    /**
+     * @param tickDuration duration of a tick in milliseconds
+     */
+    public WheelTimer(long tickDuration) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration <= 0");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.wheel = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.running = true;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, "throttling-timer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Schedules the task for a one-time execution on the timer thread.
+     *
+     * @param task  the task, expected to be short and non-blocking
+     * @param delay delay in milliseconds
+     */
+    public void schedule(Runnable task, long delay) {
+        pending.add(new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)));
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long sleep = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            transferPending(tick);
+            expire(wheel.get((int) (tick % WHEEL_SIZE)));
+            tick++;
+        }
+    }
+
+    private void transferPending(long tick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            long calculated = (timeout.deadline - startTime) / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / WHEEL_SIZE;
+            wheel.get((int) (Math.max(calculated, tick) % WHEEL_SIZE)).add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                continue;
+            }
+            iterator.remove();
+            try {
+                timeout.task.run();
+            } catch (Throwable t) {
+                if (logger.isErrorEnabled()) {
+                    logger.error("exception occurred while running delayed throttling task", t);
+                }
+            }
+        }
+    }
+
+    private static class Timeout {
+        final Runnable task;
+        final long deadline;
+        long remainingRounds;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.service.ThrottlingService;
+import com.weddini.throttling.service.ThrottlingServiceImpl;
+import com.weddini.throttling.support.AccessList;
+import com.weddini.throttling.support.KeySet;
+import com.weddini.throttling.support.ThrottlingManagement;
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.core.annotation.AnnotationUtils.findAnnotation;
+
+public class AccessListTest {
+
+    static class A {
+        @Throttling(limit = 1, timeUnit = TimeUnit.MINUTES)
+        public void testMethod() {
+        }
+    }
+
+    @Test
+    public void testKeySet() {
+        KeySet keySet = KeySet.of(Arrays.asList("10.0.0.1", "10.0.0.2", "10.0.0.1"));
+
+        Assert.isTrue(keySet.size() == 2, "duplicates should be counted once");
+        Assert.isTrue(keySet.contains("10.0.0.1"), "10.0.0.1 should be in the set");
+        Assert.isTrue(keySet.contains("10.0.0.2"), "10.0.0.2 should be in the set");
+        Assert.isTrue(!keySet.contains("10.0.0.3"), "10.0.0.3 shouldn't be in the set");
+        Assert.isTrue(!keySet.contains(null), "null shouldn't be in the set");
+    }
+
+    @Test
+    public void testAccessList() throws Exception {
+        Path allowFile = Files.createTempFile("allow", ".txt");
+        Path denyFile = Files.createTempFile("deny", ".txt");
+        try {
+            Files.write(allowFile, Arrays.asList("# internal services", "10.0.0.1", ""), StandardCharsets.UTF_8);
+            Files.write(denyFile, Collections.singletonList("6.6.6.6"), StandardCharsets.UTF_8);
+
+            AccessList accessList = new AccessList(allowFile, denyFile);
+            accessList.reload();
+            ThrottlingService service = new ThrottlingServiceImpl(100, accessList);
+
+            Assert.isTrue(service.throttle(key("10.0.0.1"), 1), "Should be ok with the first call of the allowed value");
+            Assert.isTrue(service.throttle(key("10.0.0.1"), 1), "Allowed value shouldn't be throttled");
+            Assert.isTrue(!service.throttle(key("6.6.6.6"), 1), "Denied value should be rejected");
+            Assert.isTrue(service.throttle(key("10.0.0.2"), 1), "Should be ok with the first call");
+            Assert.isTrue(!service.throttle(key("10.0.0.2"), 1), "Shouldn't be ok with the next call");
+
+            Files.write(allowFile, Collections.singletonList("10.0.0.2"), StandardCharsets.UTF_8);
+            Assert.isTrue(new ThrottlingManagement(service, null, accessList).reloadAccessLists() == 2,
+                    "Should reload both lists");
+
+            Assert.isTrue(service.throttle(key("10.0.0.2"), 1), "Reloaded allowed value shouldn't be throttled");
+            Assert.isTrue(!accessList.isAllowed("10.0.0.1"), "10.0.0.1 shouldn't be allowed once reloaded");
+        } finally {
+            Files.delete(allowFile);
+            Files.delete(denyFile);
+        }
+    }
+
+    @Test
+    public void testAllowedLevel() throws Exception {
+        Path allowFile = Files.createTempFile("allow", ".txt");
+        try {
+            Files.write(allowFile, Collections.singletonList("10.0.0.1"), StandardCharsets.UTF_8);
+            AccessList accessList = new AccessList(allowFile, null);
+            accessList.reload();
+            ThrottlingService service = new ThrottlingServiceImpl(100, accessList);
+
+            List<ThrottlingKey> keys = Arrays.asList(key("10.0.0.1").get(0), key("acme").get(0));
+            Assert.isTrue(service.throttle(keys, 1), "Should be ok with the first call of the tenant");
+            Assert.isTrue(!service.throttle(keys, 1), "Allowed value shouldn't exempt the call from the limit of its tenant");
+            Assert.isTrue(service.throttle(key("10.0.0.1"), 1), "Allowed value shouldn't be throttled on its own level");
+        } finally {
+            Files.delete(allowFile);
+        }
+    }
+
+    private List<ThrottlingKey> key(String evaluatedValue) throws NoSuchMethodException {
+        Method method = A.class.getMethod("testMethod");
+        return Collections.singletonList(ThrottlingKey.builder()
+                .method(method)
+                .annotation(findAnnotation(method, Throttling.class))
+                .evaluatedValue(evaluatedValue)
+                .build());
+    }
+}
@@ -0,0 +1,27 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.support.AddressMask;
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+public class AddressMaskTest {
+
+    @Test
+    public void testAddressMask() {
+        AddressMask mask = new AddressMask(24, 64);
+
+        Assert.isTrue(mask.mask("203.0.113.7").equals("203.0.113.0/24"), "IPv4 address should be masked to /24");
+        Assert.isTrue(mask.mask("2001:db8:0:1:aaaa:bbbb:cccc:dddd").equals(mask.mask("2001:DB8::1:1:2:3:4")),
+                "addresses of a /64 should evaluate to the same network");
+        Assert.isTrue(mask.mask("2001:db8::1").equals("2001:db8:0:0:0:0:0:0/64"), "IPv6 address should be masked to /64");
+        Assert.isTrue(!mask.mask("2001:db8:0:1::1").equals(mask.mask("2001:db8:0:2::1")),
+                "addresses of different networks should differ");
+        Assert.isTrue(mask.mask("::ffff:203.0.113.7").equals("203.0.113.0/24"), "IPv4-mapped address should be masked as IPv4");
+        Assert.isTrue(mask.mask("localhost").equals("localhost"), "host names should not be resolved");
+        Assert.isTrue(mask.mask((String) null) == null, "null should stay null");
+
+        Assert.isTrue(AddressMask.NONE.mask("2001:db8::1").equals("2001:db8::1"), "nothing should be masked by default");
+        Assert.isTrue(new AddressMask(20, 128).mask("203.0.127.7").equals("203.0.112.0/20"),
+                "prefix should be masked within a byte");
+    }
+}
@@ -0,0 +1,24 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.cache.BlockedKeys;
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+public class BlockedKeysTest {
+
+    @Test
+    public void testBlockedKeys() {
+        BlockedKeys<String> blockedKeys = new BlockedKeys<>(16);
+        long now = System.currentTimeMillis();
+
+        Assert.isTrue(blockedKeys.blockedUntil("a", now) == 0, "key = a shouldn't be blocked");
+
+        blockedKeys.block("a", now + 1000);
+        Assert.isTrue(blockedKeys.blockedUntil("a", now) == now + 1000, "key = a should be blocked");
+        Assert.isTrue(blockedKeys.blockedUntil("b", now) == 0, "key = b shouldn't be blocked");
+        Assert.isTrue(blockedKeys.blockedUntil("a", now + 1000) == 0, "key = a shouldn't be blocked once the time passed");
+
+        blockedKeys.unblock("a");
+        Assert.isTrue(blockedKeys.blockedUntil("a", now) == 0, "key = a shouldn't be blocked once unblocked");
+    }
+}
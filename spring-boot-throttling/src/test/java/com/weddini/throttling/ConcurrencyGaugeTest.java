@@ -0,0 +1,51 @@
+package com.weddini.throttling;
+
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+public class ConcurrencyGaugeTest {
+
+    @Test
+    public void testConcurrencyGauge() {
+        ConcurrencyGauge gauge = new ConcurrencyGauge(2);
+
+        Assert.isTrue(gauge.throttle(), "Should be ok with the first call");
+        Assert.isTrue(gauge.throttle(), "Should be ok with the second call");
+        Assert.isTrue(!gauge.throttle(), "Shouldn't be ok with the third call in flight");
+
+        gauge.release(0);
+        Assert.isTrue(gauge.getInFlight() == 1, "Should have one call in flight");
+        Assert.isTrue(gauge.throttle(), "Should be ok with the call after release");
+
+        gauge.release(0);
+        gauge.release(0);
+        gauge.release(0);
+        Assert.isTrue(gauge.getInFlight() == 0, "Shouldn't go below zero calls in flight");
+    }
+
+    @Test
+    public void testAdaptiveConcurrencyGauge() {
+        AdaptiveLimit adaptiveLimit = new AdaptiveLimit(10);
+        AdaptiveConcurrencyGauge gauge = new AdaptiveConcurrencyGauge(adaptiveLimit);
+
+        // healthy latency with saturated limit grows the limit
+        for (int i = 0; i < 300; i++) {
+            for (int j = 0; j < gauge.getLimit(); j++) {
+                gauge.throttle();
+            }
+            while (gauge.getInFlight() > 0) {
+                gauge.release(1_000_000);
+            }
+        }
+        int grown = gauge.getLimit();
+        Assert.isTrue(grown > 10, "Limit should grow while latency is healthy, but was " + grown);
+
+        // degraded latency shrinks the limit
+        for (int i = 0; i < 500; i++) {
+            gauge.throttle();
+            gauge.release(100_000_000);
+        }
+        Assert.isTrue(gauge.getLimit() < grown, "Limit should back off while latency is degraded, but was " + gauge.getLimit());
+    }
+
+}
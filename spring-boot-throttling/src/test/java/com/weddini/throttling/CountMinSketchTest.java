@@ -0,0 +1,57 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.support.CountMinSketch;
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+public class CountMinSketchTest {
+
+    @Test
+    public void testCountMinSketch() {
+        CountMinSketch sketch = new CountMinSketch(1000, 4, 64, 4);
+        long now = 10_000;
+
+        for (int i = 0; i < 1000; i++) {
+            sketch.add(CountMinSketch.fingerprint("value-" + i), 1, now);
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.isTrue(sketch.estimate(CountMinSketch.fingerprint("value-" + i), now) >= 1,
+                    "estimate should never undercount");
+        }
+
+        long hot = CountMinSketch.fingerprint("hot");
+        int before = sketch.estimate(hot, now);
+        Assert.isTrue(sketch.add(hot, 5, now) == before + 5, "estimate should include the added calls");
+
+        sketch.subtract(hot, 5, now);
+        Assert.isTrue(sketch.estimate(hot, now) == before, "estimate should drop by the subtracted calls");
+
+        sketch.add(hot, 5, now);
+        Assert.isTrue(sketch.estimate(hot, now + 999) >= 5, "calls should be counted within the window");
+        Assert.isTrue(sketch.nextRotation(now) == now + 250, "the oldest slice should rotate out with the next slice");
+        Assert.isTrue(sketch.estimate(hot, now + 1250) == 0, "calls should fall out of the window once rotated");
+
+        sketch.add(hot, 1, now + 1250);
+        Assert.isTrue(sketch.estimate(hot, now + 1250) == 1, "a rotated plane should be cleared before reuse");
+    }
+
+    @Test
+    public void testApproximateThrottlingGauge() {
+        CountMinSketch[] sketches = {new CountMinSketch(60_000, 4, 64, 4)};
+
+        for (int i = 0; i < 3; i++) {
+            ApproximateThrottlingGauge gauge = new ApproximateThrottlingGauge(sketches, new int[]{3}, "a");
+            Assert.isTrue(gauge.throttle(), "call should be allowed");
+        }
+        ApproximateThrottlingGauge gauge = new ApproximateThrottlingGauge(sketches, new int[]{3}, "a");
+        ThrottlingDecision decision = gauge.decide(0, 1);
+        Assert.isTrue(!decision.isAllowed(), "call above the limit should be rejected");
+        Assert.isTrue(decision.getRemaining() == 0, "no permit should remain");
+
+        ApproximateThrottlingGauge other = new ApproximateThrottlingGauge(sketches, new int[]{3}, "b");
+        Assert.isTrue(other.throttle(3), "calls of another value should be counted apart");
+        other.rollback(3);
+        Assert.isTrue(new ApproximateThrottlingGauge(sketches, new int[]{3}, "b").throttle(3),
+                "rolled back permits should be returned");
+    }
+}
@@ -0,0 +1,35 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.support.HeavyHitters;
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+import java.util.List;
+
+public class HeavyHittersTest {
+
+    @Test
+    public void testHeavyHitters() {
+        HeavyHitters<String> heavyHitters = new HeavyHitters<>(16);
+
+        for (int i = 0; i < 1000; i++) {
+            heavyHitters.offer("hot", 1);
+            heavyHitters.offer("cold-" + i, 1);
+            if (i % 2 == 0) {
+                heavyHitters.offer("warm", 2);
+            }
+        }
+
+        List<HeavyHitters.Hitter<String>> top = heavyHitters.top(2);
+        Assert.isTrue(top.size() == 2, "top should hold 2 keys");
+        Assert.isTrue(top.get(0).getKey().equals("hot") || top.get(1).getKey().equals("hot"), "key = hot should be a top key");
+        Assert.isTrue(top.get(0).getKey().equals("warm") || top.get(1).getKey().equals("warm"), "key = warm should be a top key");
+        for (HeavyHitters.Hitter<String> hitter : top) {
+            Assert.isTrue(hitter.getCount() - hitter.getError() <= 1000, "count should overestimate by at most the error");
+            Assert.isTrue(hitter.getCount() >= 1000, "count should never underestimate");
+        }
+
+        heavyHitters.clear();
+        Assert.isTrue(heavyHitters.top(2).isEmpty(), "top should be empty once cleared");
+    }
+}
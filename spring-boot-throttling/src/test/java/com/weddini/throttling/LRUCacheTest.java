@@ -5,6 +5,11 @@ import com.weddini.throttling.cache.CacheBuilder;
 import org.junit.Test;
 import org.springframework.util.Assert;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public class LRUCacheTest {
 
     @Test
@@ -43,4 +48,94 @@ public class LRUCacheTest {
         Assert.notNull(cache.get(7), "entry with key = 7 should be in cache");
         
     }
+
+    @Test
+    public void testComputeAllIfAbsent() throws Exception {
+        Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>builder().setMaximumWeight(3).build();
+        cache.put(1, 10);
+        cache.put(2, 20);
+        cache.put(3, 30);
+
+        List<Integer> values = cache.computeAllIfAbsent(Arrays.asList(1, 4), key -> key * 100);
+
+        Assert.isTrue(values.equals(Arrays.asList(10, 400)), "existing values should be returned and missing computed");
+        Assert.isTrue(3 == cache.count(), "size should be equal 3");
+        Assert.notNull(cache.get(1), "entry with key = 1 should be promoted");
+        Assert.isNull(cache.get(2), "entry with key = 2 should be evicted");
+    }
+
+    @Test
+    public void testResize() {
+        List<Integer> evicted = new ArrayList<>();
+        Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>builder()
+                .setMaximumWeight(1000)
+                .removalListener(notification -> evicted.add(notification.getKey()))
+                .build();
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+        }
+
+        cache.resize(100);
+
+        Assert.isTrue(100 == cache.count(), "size should be equal 100");
+        Assert.isTrue(100 == cache.maximumWeight(), "maximum weight should be equal 100");
+        Assert.isTrue(evicted.size() == 900 && evicted.get(0) == 0, "least recently used entries should be evicted first");
+        Assert.notNull(cache.get(999), "entry with key = 999 should be in cache");
+
+        cache.resize(200);
+        for (int i = 1000; i < 1100; i++) {
+            cache.put(i, i);
+        }
+
+        Assert.isTrue(200 == cache.count(), "size should be equal 200");
+        Assert.notNull(cache.get(900), "entry with key = 900 should be in cache");
+    }
+
+    @Test
+    public void testPinned() {
+        List<Integer> pinned = new ArrayList<>(Collections.singletonList(1));
+        Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>builder()
+                .setMaximumWeight(2)
+                .pinned(pinned::contains)
+                .build();
+        cache.put(1, 1);
+        cache.put(2, 2);
+        cache.put(3, 3);
+
+        Assert.isTrue(cache.get(1) != null, "pinned entry with key = 1 shouldn't be evicted");
+        Assert.isNull(cache.get(2), "entry with key = 2 should be evicted instead");
+
+        pinned.add(3);
+        pinned.add(4);
+        cache.put(4, 4);
+        Assert.isTrue(cache.count() == 3, "the cache should exceed its maximum weight by the pinned entries");
+
+        pinned.clear();
+        cache.refresh();
+        Assert.isTrue(cache.count() == 2, "entries should be evicted once unpinned");
+    }
+
+    @Test
+    public void testIndex() {
+        List<String> invalidated = new ArrayList<>();
+        Cache<String, Integer> cache = CacheBuilder.<String, Integer>builder()
+                .setMaximumWeight(4)
+                .index("user", key -> key.substring(key.indexOf(':') + 1))
+                .removalListener(notification -> invalidated.add(notification.getKey()))
+                .build();
+        cache.put("login:alice", 1);
+        cache.put("export:alice", 1);
+        cache.put("login:bob", 1);
+        cache.get("login:alice");
+        cache.put("export:bob", 1);
+        cache.put("search:carol", 1);
+
+        Assert.isTrue(invalidated.equals(Collections.singletonList("export:alice")), "entry with key = export:alice should be evicted");
+        Assert.isTrue(cache.invalidateAll("user", "alice").equals(Collections.singletonList("login:alice")),
+                "only the remaining entry of alice should be invalidated");
+        Assert.isTrue(cache.invalidateAll("user", "alice").isEmpty(), "no entry of alice should be left");
+        Assert.isTrue(cache.invalidateAll("user", "bob").size() == 2, "entries of bob should be invalidated");
+        Assert.isTrue(1 == cache.count(), "size should be equal 1");
+        Assert.notNull(cache.get("search:carol"), "entry with key = search:carol should be in cache");
+    }
 }
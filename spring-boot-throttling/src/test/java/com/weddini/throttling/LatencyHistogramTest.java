@@ -0,0 +1,27 @@
+package com.weddini.throttling;
+
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        Assert.isTrue(histogram.getCount() == 1000, "Should count all recorded values");
+
+        long median = histogram.getValueAtPercentile(0.5);
+        Assert.isTrue(median > 500 * 0.875 && median <= 500, "Median should be within bucket precision, but was " + median);
+
+        long p90 = histogram.getValueAtPercentile(0.9);
+        Assert.isTrue(p90 > 900 * 0.875 && p90 <= 900, "90th percentile should be within bucket precision, but was " + p90);
+
+        histogram.reset();
+        Assert.isTrue(histogram.getCount() == 0 && histogram.getValueAtPercentile(0.9) == 0, "Should be empty after reset");
+    }
+
+}
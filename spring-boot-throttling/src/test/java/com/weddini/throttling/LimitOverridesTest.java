@@ -0,0 +1,160 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.service.ThrottlingService;
+import com.weddini.throttling.service.ThrottlingServiceImpl;
+import com.weddini.throttling.support.LimitOverrides;
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.core.annotation.AnnotationUtils.findAnnotation;
+
+public class LimitOverridesTest {
+
+    static class A {
+        @Throttling(limit = 1, timeUnit = TimeUnit.MINUTES)
+        public void testMethod() {
+        }
+
+        @Throttling(limit = 1, timeUnit = TimeUnit.SECONDS, mode = ThrottlingMode.APPROXIMATE)
+        @Throttling(limit = 10, timeUnit = TimeUnit.MINUTES, mode = ThrottlingMode.APPROXIMATE)
+        public void approximateMethod() {
+        }
+
+        @Throttling(limit = 1, mode = ThrottlingMode.CONCURRENCY)
+        public void concurrentMethod() {
+        }
+    }
+
+    @Test
+    public void testLimitOverrides() throws Exception {
+        Path file = Files.createTempFile("overrides", ".txt");
+        try {
+            Files.write(file, Arrays.asList("# VIP tenants", "A#testMethod acme 3/minutes", ""), StandardCharsets.UTF_8);
+
+            LimitOverrides overrides = new LimitOverrides(file, Collections.singletonList("* 10.0.0.1 2/MINUTES"));
+            overrides.reload();
+            ThrottlingService service = new ThrottlingServiceImpl(100);
+            service.setLimitOverrides(overrides);
+
+            ThrottlingKey acme = overrides.apply(key("acme").get(0));
+            Assert.isTrue(acme.getLimit() == 3 && acme.getTimeUnit() == TimeUnit.MINUTES, "Key should carry the overridden limit");
+            Assert.isTrue(overrides.apply(key("globex").get(0)).getLimit() == 1, "Key should carry the declared limit");
+
+            for (int i = 0; i < 3; i++) {
+                Assert.isTrue(service.throttle(key("acme"), 1), "Should be ok with the overridden limit");
+            }
+            Assert.isTrue(!service.throttle(key("acme"), 1), "Shouldn't be ok over the overridden limit");
+            Assert.isTrue(service.throttle(key("10.0.0.1"), 1), "Should be ok with the limit of any method");
+            Assert.isTrue(service.throttle(key("10.0.0.1"), 1), "Should be ok with the limit of any method");
+            Assert.isTrue(!service.throttle(key("10.0.0.1"), 1), "Shouldn't be ok over the limit of any method");
+            Assert.isTrue(service.throttle(key("globex"), 1), "Should be ok with the first call");
+            Assert.isTrue(!service.throttle(key("globex"), 1), "Shouldn't be ok over the declared limit");
+
+            Files.write(file, Collections.singletonList("A#testMethod acme 5/MINUTES"), StandardCharsets.UTF_8);
+            overrides.reload();
+
+            Assert.isTrue(service.throttle(key("acme"), 1), "Should be ok with the reloaded limit");
+
+            for (String malformed : new String[]{"A#testMethod acme many", "A#testMethod acme 0/MINUTES", "A#testMethod acme -1/MINUTES"}) {
+                Files.write(file, Collections.singletonList(malformed), StandardCharsets.UTF_8);
+                try {
+                    overrides.reload();
+                    Assert.isTrue(false, "Malformed override '" + malformed + "' should be rejected");
+                } catch (IOException e) {
+                    Assert.isTrue(overrides.size() == 2, "Overrides should be kept once a reload fails");
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testApproximateOverrides() throws Exception {
+        LimitOverrides overrides = new LimitOverrides(null, Collections.singletonList("A#approximateMethod acme 2/SECONDS"));
+        overrides.reload();
+        ThrottlingService service = new ThrottlingServiceImpl(100);
+        service.setLimitOverrides(overrides);
+
+        Assert.isTrue(service.throttle(approximateKey("globex"), 1), "Should be ok with the declared limits");
+        Assert.isTrue(!service.throttle(approximateKey("globex"), 1), "Shouldn't be ok over the declared limit");
+        for (int i = 0; i < 2; i++) {
+            Assert.isTrue(service.throttle(approximateKey("acme"), 1), "Should be ok with the overridden limit");
+        }
+        Assert.isTrue(!service.throttle(approximateKey("acme"), 1), "Shouldn't be ok over the overridden limit");
+        Thread.sleep(1500);
+        Assert.isTrue(service.throttle(approximateKey("acme"), 1), "Should count the overridden limit over its own window");
+    }
+
+    @Test
+    public void testReloadInFlight() throws Exception {
+        Path file = Files.createTempFile("overrides", ".txt");
+        try {
+            Files.write(file, Collections.singletonList("A#concurrentMethod acme 2/SECONDS"), StandardCharsets.UTF_8);
+            LimitOverrides overrides = new LimitOverrides(file, null);
+            overrides.reload();
+            ThrottlingService service = new ThrottlingServiceImpl(100);
+            service.setLimitOverrides(overrides);
+
+            ThrottlingDecision first = service.decide(concurrentKey("acme"), 0, 1);
+            Assert.isTrue(first.isAllowed(), "Should be ok with the first call");
+
+            Files.write(file, Collections.singletonList("A#concurrentMethod acme 1/SECONDS"), StandardCharsets.UTF_8);
+            overrides.reload();
+            ThrottlingDecision second = service.decide(concurrentKey("acme"), 0, 1);
+            Assert.isTrue(second.isAllowed(), "Should be ok with the first call of the reloaded limit");
+            Assert.isTrue(!service.decide(concurrentKey("acme"), 0, 1).isAllowed(), "Shouldn't be ok over the reloaded limit");
+
+            first.getPermit().release(0);
+            Assert.isTrue(!service.decide(concurrentKey("acme"), 0, 1).isAllowed(),
+                    "Shouldn't return the permit of the first call to the gauge of the reloaded limit");
+            second.getPermit().release(0);
+
+            Files.write(file, Collections.singletonList("A#concurrentMethod acme 2/SECONDS"), StandardCharsets.UTF_8);
+            overrides.reload();
+            for (int i = 0; i < 2; i++) {
+                Assert.isTrue(service.decide(concurrentKey("acme"), 0, 1).isAllowed(),
+                        "Should have returned the permit of the first call to the gauge which granted it");
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private List<ThrottlingKey> concurrentKey(String evaluatedValue) throws NoSuchMethodException {
+        Method method = A.class.getMethod("concurrentMethod");
+        return Collections.singletonList(ThrottlingKey.builder()
+                .method(method)
+                .annotation(findAnnotation(method, Throttling.class))
+                .evaluatedValue(evaluatedValue)
+                .build());
+    }
+
+    private List<ThrottlingKey> approximateKey(String evaluatedValue) throws NoSuchMethodException {
+        Method method = A.class.getMethod("approximateMethod");
+        return Collections.singletonList(ThrottlingKey.builder()
+                .method(method)
+                .annotations(method.getAnnotationsByType(Throttling.class))
+                .evaluatedValue(evaluatedValue)
+                .build());
+    }
+
+    private List<ThrottlingKey> key(String evaluatedValue) throws NoSuchMethodException {
+        Method method = A.class.getMethod("testMethod");
+        return Collections.singletonList(ThrottlingKey.builder()
+                .method(method)
+                .annotation(findAnnotation(method, Throttling.class))
+                .evaluatedValue(evaluatedValue)
+                .build());
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.Test;
 import org.springframework.util.Assert;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ThrottlingGaugeTest {
 
@@ -29,4 +30,159 @@ public class ThrottlingGaugeTest {
         Assert.isTrue(gauge.throttle(), "Should be ok with the call after sleep 1 sec.");
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testConcurrentThrottlingGauge() throws InterruptedException {
+        ThrottlingGauge gauge = new ThrottlingGauge(TimeUnit.MINUTES, 100);
+        AtomicInteger allowed = new AtomicInteger();
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    gauge.removeEldest();
+                    if (gauge.throttle()) {
+                        allowed.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.isTrue(allowed.get() == 100, "Exactly 100 calls should be allowed, but was " + allowed.get());
+    }
+
+    @Test
+    public void testThrottlingGaugeReserve() {
+        ThrottlingGauge gauge = new ThrottlingGauge(TimeUnit.SECONDS, 1);
+
+        Assert.isTrue(gauge.reserve(500) == 0, "Should be ok with the first call without delay");
+        Assert.isTrue(gauge.reserve(500) == -1, "Shouldn't reserve the next call beyond max wait");
+
+        long delay = gauge.reserve(2000);
+        Assert.isTrue(delay > 500 && delay <= 1001, "Should reserve the next call after the window, but was " + delay);
+        Assert.isTrue(gauge.nextPermitTime() - System.currentTimeMillis() > 1000,
+                "Next permit should be available after the reserved call");
+        Assert.isTrue(!gauge.throttle(), "Shouldn't be ok with the call while the next permit is reserved");
+    }
+
+    @Test
+    public void testStackedThrottlingGauge() throws InterruptedException {
+        ThrottlingGauge gauge = new ThrottlingGauge(new TimeUnit[]{TimeUnit.SECONDS, TimeUnit.MINUTES}, new int[]{2, 3});
+
+        Assert.isTrue(gauge.throttle(), "Should be ok with the first call");
+        Assert.isTrue(gauge.throttle(), "Should be ok with the second call");
+        Assert.isTrue(!gauge.throttle(), "Shouldn't be ok with the third call within a second");
+
+        Thread.sleep(1100);
+
+        Assert.isTrue(gauge.throttle(), "Should be ok with the third call after sleep 1 sec.");
+        Assert.isTrue(!gauge.throttle(), "Shouldn't be ok with the fourth call within a minute");
+        Assert.isTrue(!gauge.throttle(), "Shouldn't be ok with the fourth call within a minute");
+
+        long wait = gauge.nextPermitTime() - System.currentTimeMillis();
+        Assert.isTrue(wait > 55000 && wait <= 60001, "Rejected calls shouldn't take permits, but next permit is in " + wait);
+    }
+
+    @Test
+    public void testWeightedThrottlingGauge() {
+        ThrottlingGauge gauge = new ThrottlingGauge(TimeUnit.MINUTES, 10);
+
+        Assert.isTrue(!gauge.throttle(11), "Shouldn't be ok with the call costing more than the limit");
+        Assert.isTrue(gauge.throttle(7), "Should be ok with the call costing 7 permits");
+        Assert.isTrue(!gauge.throttle(4), "Shouldn't be ok with the call costing more than 3 remaining permits");
+        Assert.isTrue(gauge.throttle(3), "Should be ok with the call costing 3 remaining permits");
+        Assert.isTrue(!gauge.throttle(), "Shouldn't be ok with the next call");
+    }
+
+    @Test
+    public void testThrottlingGaugeDecision() {
+        ThrottlingGauge gauge = new ThrottlingGauge(new TimeUnit[]{TimeUnit.SECONDS, TimeUnit.MINUTES}, new int[]{5, 3});
+        long now = System.currentTimeMillis();
+
+        ThrottlingDecision decision = gauge.decide(0, 2);
+        Assert.isTrue(decision.isAllowed(), "Should be ok with the first call");
+        Assert.isTrue(decision.getLimit() == 3 && decision.getRemaining() == 1,
+                "Should be described by the tightest window, but was " + decision);
+        Assert.isTrue(decision.getResetAt() - now >= 60000, "Should reset once the call leaves the minute window");
+
+        decision = gauge.decide(0, 2);
+        Assert.isTrue(!decision.isAllowed(), "Shouldn't be ok with the call above the limit");
+        Assert.isTrue(decision.getRemaining() == 1, "Rejected call shouldn't take permits, but was " + decision);
+        Assert.isTrue(decision.getRetryAfterSeconds() >= 59, "Should retry after the minute window, but was " + decision);
+    }
+
+    @Test
+    public void testRollback() {
+        ThrottlingGauge gauge = new ThrottlingGauge(TimeUnit.SECONDS, 2);
+        long now = System.currentTimeMillis();
+
+        Assert.isTrue(gauge.reserve(now, 0, 1) == 0, "Should be ok with the first call");
+        Assert.isTrue(gauge.reserve(now + 10, 0, 1) == 0, "Should be ok with the second call");
+        gauge.rollback(now, 1);
+        Assert.isTrue(gauge.reserve(now + 20, 0, 1) == 0, "Should be ok with the call taking the permit given back");
+        Assert.isTrue(gauge.reserve(now + 20, 0, 1) < 0, "Shouldn't be ok with the call above the limit");
+
+        // the first call no longer counts, the other two are still within the window
+        Assert.isTrue(gauge.reserve(now + 1005, 0, 1) < 0, "Shouldn't give the permit back twice once the first call expires");
+        Assert.isTrue(gauge.reserve(now + 1011, 0, 1) == 0, "Should be ok once the second call expires");
+    }
+
+    @Test
+    public void testCallAboveLimit() {
+        ThrottlingGauge gauge = new ThrottlingGauge(TimeUnit.SECONDS, 2);
+        long now = System.currentTimeMillis();
+
+        Assert.isTrue(gauge.reserve(now, Long.MAX_VALUE, 3) < 0, "Shouldn't be ok with a call above the limit, however long it waits");
+        Assert.isTrue(!gauge.decide(now, Long.MAX_VALUE, 3).isAllowed(), "Shouldn't be ok with a call above the limit");
+        Assert.isTrue(gauge.reserve(now, 0, 2) == 0, "Should be ok with a call of the limit");
+    }
+
+    @Test
+    public void testConcurrentRollback() throws InterruptedException {
+        // the race needs a writer preempted between reading the state and publishing its newest call
+        for (int round = 0; round < 50; round++) {
+            int limit = 100000;
+            ThrottlingGauge gauge = new ThrottlingGauge(TimeUnit.SECONDS, limit);
+            long now = System.currentTimeMillis();
+            AtomicInteger held = new AtomicInteger();
+
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < 5000; j++) {
+                        if (gauge.reserve(now, 0, 1) == 0) {
+                            held.incrementAndGet();
+                        }
+                        if (gauge.reserve(now, 0, 1) == 0) {
+                            gauge.rollback(now, 1);
+                        }
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            int granted = 0;
+            while (gauge.reserve(now, 0, 1) == 0) {
+                granted++;
+            }
+            Assert.isTrue(granted == limit - held.get(),
+                    "Should keep every rollback racing the calls, but granted " + granted + " of " + (limit - held.get()));
+
+            // a rollback lost in the ring would take its permits off once more as the call expires
+            granted = 0;
+            while (gauge.reserve(now + 1001, 0, 1) == 0) {
+                granted++;
+            }
+            Assert.isTrue(granted == limit, "Should grant the whole limit once the calls expire, but granted " + granted);
+        }
+    }
+
+}
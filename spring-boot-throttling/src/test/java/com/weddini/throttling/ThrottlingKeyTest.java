@@ -18,6 +18,14 @@ public class ThrottlingKeyTest {
                 headerName = "X-Forwarded-For")
         public void testMethod() {
         }
+
+        @Throttling(limit = 5, type = ThrottlingType.SpEL, expression = "'all'")
+        public void overloadedMethod(String value) {
+        }
+
+        @Throttling(limit = 5, type = ThrottlingType.SpEL, expression = "'all'")
+        public void overloadedMethod(Integer value) {
+        }
     }
 
     static class B {
@@ -73,6 +81,26 @@ public class ThrottlingKeyTest {
 
         Assert.assertEquals(key1.hashCode(), key3.hashCode());
         Assert.assertEquals(key1, key3);
+        Assert.assertEquals(key1.id(), key3.id());
+
+    }
+
+    @Test
+    public void testOverloadsId() throws NoSuchMethodException {
+        Method method1 = A.class.getMethod("overloadedMethod", String.class);
+        Method method2 = A.class.getMethod("overloadedMethod", Integer.class);
+
+        ThrottlingKey key1 = ThrottlingKey.builder()
+                .method(method1)
+                .annotation(findAnnotation(method1, Throttling.class))
+                .evaluatedValue("all")
+                .build();
+        ThrottlingKey key2 = ThrottlingKey.builder()
+                .method(method2)
+                .annotation(findAnnotation(method2, Throttling.class))
+                .evaluatedValue("all")
+                .build();
 
+        Assert.assertNotEquals(key1.id(), key2.id());
     }
 }
@@ -0,0 +1,397 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.service.ThrottlingEvaluator;
+import com.weddini.throttling.service.ThrottlingEvaluatorImpl;
+import com.weddini.throttling.service.ThrottlingService;
+import com.weddini.throttling.service.ThrottlingServiceImpl;
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.core.annotation.AnnotationUtils.findAnnotation;
+
+public class ThrottlingServiceTest {
+
+    static class A {
+        @Throttling(limit = 2, timeUnit = TimeUnit.SECONDS)
+        public void testMethod() {
+        }
+
+        @Throttling(limit = 10, timeUnit = TimeUnit.MINUTES, type = ThrottlingType.SpEL, expression = "'bulk'", cost = "#p0.size()")
+        public void bulkMethod(List<String> items) {
+        }
+
+        @Throttling(limit = 10, timeUnit = TimeUnit.MINUTES, cost = "#request.getIntHeader('X-Items')")
+        public void uploadMethod() {
+        }
+
+        @Throttling(limit = 10, timeUnit = TimeUnit.MINUTES, cost = "0")
+        public void freeMethod() {
+        }
+
+        @Throttling(limit = 2, timeUnit = TimeUnit.MINUTES, type = ThrottlingType.SpEL, expression = "#p0")
+        @Throttling(limit = 3, timeUnit = TimeUnit.MINUTES, type = ThrottlingType.SpEL, expression = "#p1")
+        public void tenantMethod(String user, String tenant) {
+        }
+
+        @Throttling(limit = 1, timeUnit = TimeUnit.MINUTES, type = ThrottlingType.SpEL, expression = "#p0")
+        public void exportMethod(String tenant) {
+        }
+
+        @Throttling(limit = 1, timeUnit = TimeUnit.MINUTES, type = ThrottlingType.SpEL, expression = "#p0",
+                partition = "login", partitionCapacity = 2)
+        public void loginMethod(String address) {
+        }
+
+        @Throttling(limit = 1, mode = ThrottlingMode.CONCURRENCY, type = ThrottlingType.SpEL, expression = "#p0")
+        public void concurrentMethod(String user) {
+        }
+
+        @Throttling(limit = 3, timeUnit = TimeUnit.MINUTES, type = ThrottlingType.SpEL, expression = "#p0")
+        @Throttling(limit = 1, mode = ThrottlingMode.CONCURRENCY, type = ThrottlingType.SpEL, expression = "#p0")
+        public void mixedMethod(String user) {
+        }
+
+        @Throttling(limit = 1, mode = ThrottlingMode.ADAPTIVE, type = ThrottlingType.SpEL, expression = "#p0")
+        @Throttling(limit = 3, mode = ThrottlingMode.ADAPTIVE, type = ThrottlingType.SpEL, expression = "'global'")
+        public void adaptiveMethod(String user) {
+        }
+    }
+
+    private ThrottlingKey key(String evaluatedValue) throws NoSuchMethodException {
+        Method method = A.class.getMethod("testMethod");
+        return ThrottlingKey.builder()
+                .method(method)
+                .annotation(findAnnotation(method, Throttling.class))
+                .evaluatedValue(evaluatedValue)
+                .build();
+    }
+
+    @Test
+    public void testAcquire() throws Exception {
+        ThrottlingService service = new ThrottlingServiceImpl(100);
+        ThrottlingKey key = key("batch");
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            Assert.isTrue(service.acquire(key, "batch", 2, TimeUnit.SECONDS), "Should acquire the permit within timeout");
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        Assert.isTrue(elapsed >= 1000, "Should wait for the next window, but was " + elapsed);
+        Assert.isTrue(!service.acquire(key, "batch", 100, TimeUnit.MILLISECONDS), "Shouldn't acquire the permit within short timeout");
+    }
+
+    @Test
+    public void testCost() throws Exception {
+        ThrottlingService service = new ThrottlingServiceImpl(100);
+        ThrottlingEvaluator evaluator = new ThrottlingEvaluatorImpl();
+        A bean = new A();
+        Method method = A.class.getMethod("bulkMethod", List.class);
+        Throttling annotation = findAnnotation(method, Throttling.class);
+        Object[] args = {new ArrayList<>(Arrays.asList("a", "b", "c", "d", "e", "f"))};
+
+        String evaluatedValue = evaluator.evaluate(annotation, bean, A.class, method, args);
+        int cost = evaluator.evaluateCost(annotation, bean, A.class, method, args);
+        Assert.isTrue(cost == 6, "Cost should be evaluated from the arguments, but was " + cost);
+
+        ThrottlingKey key = ThrottlingKey.builder()
+                .method(method)
+                .annotation(annotation)
+                .evaluatedValue(evaluatedValue)
+                .build();
+        Assert.isTrue(service.throttle(key, evaluatedValue, cost), "Should be ok with the first bulk call");
+        Assert.isTrue(!service.throttle(key, evaluatedValue, cost), "Shouldn't be ok with the bulk call above the limit");
+        Assert.isTrue(service.throttle(key, evaluatedValue, 4), "Should be ok with the call costing remaining permits");
+    }
+
+    @Test
+    public void testRequestCost() throws Exception {
+        ThrottlingEvaluator evaluator = new ThrottlingEvaluatorImpl();
+        A bean = new A();
+        Method uploadMethod = A.class.getMethod("uploadMethod");
+        Method freeMethod = A.class.getMethod("freeMethod");
+
+        int cost = evaluator.evaluateCost(findAnnotation(uploadMethod, Throttling.class), bean, A.class, uploadMethod, request(3));
+        Assert.isTrue(cost == 3, "Cost should be evaluated from the request, but was " + cost);
+
+        cost = evaluator.evaluateCost(findAnnotation(uploadMethod, Throttling.class), bean, A.class, uploadMethod, request(-1));
+        Assert.isTrue(cost == 1, "Negative cost should fall back to a single permit, but was " + cost);
+        cost = evaluator.evaluateCost(findAnnotation(freeMethod, Throttling.class), bean, A.class, freeMethod, request(3));
+        Assert.isTrue(cost == 1, "Zero cost should fall back to a single permit, but was " + cost);
+
+        try {
+            new ThrottlingServiceImpl(100).throttle(key("free"), "free", 0);
+            Assert.isTrue(false, "Shouldn't take zero permits");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * @return request answering the X-Items header only
+     */
+    private static HttpServletRequest request(int items) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(), new Class[]{HttpServletRequest.class},
+                (proxy, method, args) -> method.getName().equals("getIntHeader") && "X-Items".equals(args[0]) ? items : null);
+    }
+
+    @Test
+    public void testHierarchicalThrottling() throws Exception {
+        ThrottlingService service = new ThrottlingServiceImpl(100);
+        Method method = A.class.getMethod("tenantMethod", String.class, String.class);
+        List<Throttling[]> levels = ThrottlingKey.levels(method.getAnnotationsByType(Throttling.class));
+        Assert.isTrue(levels.size() == 2, "Annotations with different context should form 2 levels");
+
+        List<ThrottlingKey> alice = ThrottlingKey.keys(method, levels, Arrays.asList("alice", "acme"));
+        List<ThrottlingKey> bob = ThrottlingKey.keys(method, levels, Arrays.asList("bob", "acme"));
+
+        Assert.isTrue(service.throttle(alice, 1), "Should be ok with the first call of the user");
+        Assert.isTrue(service.throttle(alice, 1), "Should be ok with the second call of the user");
+        Assert.isTrue(!service.throttle(alice, 1), "Shouldn't be ok with the call above the user limit");
+        Assert.isTrue(service.throttle(bob, 1), "Should be ok with the call of another user of the tenant");
+        Assert.isTrue(!service.throttle(bob, 1), "Shouldn't be ok with the call above the tenant limit");
+
+        Assert.isTrue(service.throttle(Collections.singletonList(bob.get(0)), 1),
+                "Permit of the call rejected by the tenant should be rolled back at the user level");
+        Assert.isTrue(!service.throttle(Collections.singletonList(bob.get(0)), 1), "Shouldn't be ok with the call above the user limit");
+
+        try {
+            service.decide(Collections.emptyList(), 0, 1);
+            Assert.isTrue(false, "Shouldn't decide a call of no keys");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            service.reserve(Collections.emptyList(), 0, 1);
+            Assert.isTrue(false, "Shouldn't reserve a call of no keys");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+
+    @Test
+    public void testPartitions() throws Exception {
+        ThrottlingService service = new ThrottlingServiceImpl(2);
+        Method exportMethod = A.class.getMethod("exportMethod", String.class);
+        Method loginMethod = A.class.getMethod("loginMethod", String.class);
+
+        ThrottlingKey exportKey = ThrottlingKey.builder()
+                .method(exportMethod)
+                .annotation(findAnnotation(exportMethod, Throttling.class))
+                .evaluatedValue("tenant")
+                .build();
+        Assert.isTrue(service.throttle(exportKey, "tenant"), "Should be ok with the first export call");
+
+        for (int i = 0; i < 10; i++) {
+            ThrottlingKey loginKey = ThrottlingKey.builder()
+                    .method(loginMethod)
+                    .annotation(findAnnotation(loginMethod, Throttling.class))
+                    .evaluatedValue("address-" + i)
+                    .build();
+            Assert.isTrue(loginKey.getPartition().equals("login"), "Key should carry the partition");
+            Assert.isTrue(service.throttle(loginKey, "address-" + i), "Should be ok with the first login call of an address");
+        }
+
+        Assert.isTrue(!service.throttle(exportKey, "tenant"),
+                "Shouldn't be ok with the second export call, login gauges shouldn't evict the export gauge");
+    }
+
+    @Test
+    public void testHeldPermits() throws Exception {
+        ThrottlingService service = new ThrottlingServiceImpl(1);
+        Method concurrentMethod = A.class.getMethod("concurrentMethod", String.class);
+        List<ThrottlingKey> alice = ThrottlingKey.keys(concurrentMethod,
+                ThrottlingKey.levels(concurrentMethod.getAnnotationsByType(Throttling.class)), Collections.singletonList("alice"));
+        List<ThrottlingKey> bob = ThrottlingKey.keys(concurrentMethod,
+                ThrottlingKey.levels(concurrentMethod.getAnnotationsByType(Throttling.class)), Collections.singletonList("bob"));
+
+        ThrottlingDecision first = service.decide(alice, 0, 1);
+        Assert.isTrue(first.isAllowed(), "Should be ok with the first call");
+
+        // a full cache keeps the gauge holding the permit
+        service.decide(bob, 0, 1).getPermit().release(0);
+        Assert.isTrue(!service.decide(alice, 0, 1).isAllowed(), "Shouldn't be ok with the second call in flight");
+
+        first.getPermit().release(0);
+        Assert.isTrue(service.decide(alice, 0, 1).isAllowed(), "Should be ok with the call once the permit is released");
+    }
+
+    @Test
+    public void testMixedModes() throws Exception {
+        ThrottlingService service = new ThrottlingServiceImpl(100);
+        Method mixedMethod = A.class.getMethod("mixedMethod", String.class);
+        List<Throttling[]> levels = ThrottlingKey.levels(mixedMethod.getAnnotationsByType(Throttling.class));
+        Assert.isTrue(levels.size() == 2, "Annotations of a different mode should form 2 levels");
+        List<ThrottlingKey> alice = ThrottlingKey.keys(mixedMethod, levels, Arrays.asList("alice", "alice"));
+
+        ThrottlingDecision first = service.decide(alice, 0, 1);
+        Assert.isTrue(first.isAllowed(), "Should be ok with the first call");
+        Assert.isTrue(!service.decide(alice, 0, 1).isAllowed(), "Shouldn't be ok with the second call in flight");
+        first.getPermit().release(0);
+        for (int i = 0; i < 2; i++) {
+            ThrottlingDecision decision = service.decide(alice, 0, 1);
+            Assert.isTrue(decision.isAllowed(), "Should be ok with the call once the permit is released");
+            decision.getPermit().release(0);
+        }
+        Assert.isTrue(!service.decide(alice, 0, 1).isAllowed(), "Shouldn't be ok with the call above the rate limit");
+    }
+
+    @Test
+    public void testAdaptiveLevels() throws Exception {
+        ThrottlingService service = new ThrottlingServiceImpl(100);
+        Method adaptiveMethod = A.class.getMethod("adaptiveMethod", String.class);
+        List<Throttling[]> levels = ThrottlingKey.levels(adaptiveMethod.getAnnotationsByType(Throttling.class));
+
+        List<ThrottlingDecision> decisions = new ArrayList<>();
+        for (String user : new String[]{"alice", "bob", "carol"}) {
+            ThrottlingDecision decision = service.decide(ThrottlingKey.keys(adaptiveMethod, levels, Arrays.asList(user, "global")), 0, 1);
+            Assert.isTrue(decision.isAllowed(), "Should be ok with the first call of " + user + " within the global limit");
+            decisions.add(decision);
+        }
+        Assert.isTrue(!service.decide(ThrottlingKey.keys(adaptiveMethod, levels, Arrays.asList("dave", "global")), 0, 1).isAllowed(),
+                "Shouldn't be ok with the call above the global limit");
+        for (ThrottlingDecision decision : decisions) {
+            decision.getPermit().release(0);
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        Path file = Files.createTempFile("throttling", ".snapshot");
+        Method exportMethod = A.class.getMethod("exportMethod", String.class);
+        List<ThrottlingKey> keys = new ArrayList<>();
+        for (String tenant : new String[]{"acme", "globex"}) {
+            keys.add(ThrottlingKey.builder()
+                    .method(exportMethod)
+                    .annotation(findAnnotation(exportMethod, Throttling.class))
+                    .evaluatedValue(tenant)
+                    .build());
+        }
+
+        ThrottlingService before = new ThrottlingServiceImpl(100);
+        Assert.isTrue(before.throttle(keys.get(0), "acme"), "Should be ok with the first export call");
+        Assert.isTrue(before.throttle(key("expired"), "expired"), "Should be ok with the first call");
+        Thread.sleep(1100);
+        Assert.isTrue(before.writeSnapshot(file) == 1, "Should only write the gauges holding live calls");
+
+        ThrottlingService after = new ThrottlingServiceImpl(100);
+        after.restoreSnapshot(file);
+        // indexed in the background, gauges created meanwhile start empty
+        Thread.sleep(200);
+        Assert.isTrue(!after.throttle(keys.get(0), "acme"), "Shouldn't be ok with the second export call after a restart");
+        Assert.isTrue(after.throttle(keys.get(1), "globex"), "Should be ok with a key missing from the snapshot");
+        Assert.isTrue(!Files.exists(file), "Snapshot should be restored once");
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        Path directory = Files.createTempDirectory("throttling");
+        Method exportMethod = A.class.getMethod("exportMethod", String.class);
+        List<ThrottlingKey> keys = new ArrayList<>();
+        for (String tenant : new String[]{"acme", "globex", "initech"}) {
+            keys.add(ThrottlingKey.builder()
+                    .method(exportMethod)
+                    .annotation(findAnnotation(exportMethod, Throttling.class))
+                    .evaluatedValue(tenant)
+                    .build());
+        }
+
+        // never closed, as if the application crashed
+        ThrottlingJournal crashedJournal = new ThrottlingJournal(directory, 10, 256, 0);
+        ThrottlingService crashed = new ThrottlingServiceImpl(100);
+        crashed.setJournal(crashedJournal);
+        Assert.isTrue(crashed.throttle(keys.get(0), "acme"), "Should be ok with the first export call");
+        Assert.isTrue(crashed.throttle(keys.get(1), "globex"), "Should be ok with the first export call");
+        Thread.sleep(200);
+
+        ThrottlingJournal journal = new ThrottlingJournal(directory, 10, 256, 100);
+        ThrottlingService restarted = new ThrottlingServiceImpl(100);
+        restarted.setJournal(journal);
+        awaitReplay(journal);
+        Assert.isTrue(!restarted.throttle(keys.get(0), "acme"), "Shouldn't be ok with the second export call after a crash");
+        Assert.isTrue(restarted.throttle(keys.get(2), "initech"), "Should be ok with a key missing from the journal");
+        Thread.sleep(300);
+        journal.close();
+        crashedJournal.close();
+
+        List<String> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(file -> files.add(file.getFileName().toString()));
+        }
+        Assert.isTrue(files.size() == 1 && files.get(0).endsWith(".snapshot"), "Segments should be compacted into a snapshot");
+
+        ThrottlingJournal compacted = new ThrottlingJournal(directory);
+        ThrottlingService again = new ThrottlingServiceImpl(100);
+        again.setJournal(compacted);
+        awaitReplay(compacted);
+        Assert.isTrue(compacted.size() == 3, "Should replay the calls of both runs");
+        Assert.isTrue(!again.throttle(keys.get(1), "globex"), "Shouldn't be ok with the second export call after a compaction");
+        Assert.isTrue(!again.throttle(keys.get(2), "initech"), "Shouldn't be ok with the second export call after a compaction");
+        compacted.close();
+    }
+
+    @Test
+    public void testSnapshotAndJournal() throws Exception {
+        Path directory = Files.createTempDirectory("throttling");
+        Path file = directory.resolve("gauges.snapshot");
+        ThrottlingKey key = key("journaled");
+
+        ThrottlingJournal closedJournal = new ThrottlingJournal(directory, 10, 256, 0);
+        ThrottlingService before = new ThrottlingServiceImpl(100);
+        before.setJournal(closedJournal);
+        Assert.isTrue(before.throttle(key, "journaled"), "Should be ok with the first call");
+        Assert.isTrue(before.writeSnapshot(file) == 1, "Should write the journaled gauge");
+        closedJournal.close();
+
+        ThrottlingJournal journal = new ThrottlingJournal(directory, 10, 256, 0);
+        ThrottlingService restarted = new ThrottlingServiceImpl(100);
+        restarted.restoreSnapshot(file);
+        restarted.setJournal(journal);
+        awaitReplay(journal);
+        Assert.isTrue(restarted.throttle(key, "journaled"), "Should restore the first call once, from the journal only");
+        Assert.isTrue(!restarted.throttle(key, "journaled"), "Shouldn't be ok with the third call");
+        journal.close();
+    }
+
+    private static void awaitReplay(ThrottlingJournal journal) throws InterruptedException {
+        for (int i = 0; i < 100 && !journal.isReplayed(); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        ThrottlingService service = new ThrottlingServiceImpl(100);
+        Method exportMethod = A.class.getMethod("exportMethod", String.class);
+        ThrottlingKey export = ThrottlingKey.builder()
+                .method(exportMethod)
+                .annotation(findAnnotation(exportMethod, Throttling.class))
+                .evaluatedValue("acme")
+                .build();
+
+        Assert.isTrue(service.throttle(export, "acme"), "Should be ok with the first export call");
+        Assert.isTrue(!service.throttle(export, "acme"), "Shouldn't be ok with the second export call");
+        Assert.isTrue(service.throttle(key("acme"), "acme"), "Should be ok with the first call");
+        Assert.isTrue(service.throttle(key("acme"), "acme"), "Should be ok with the second call");
+        Assert.isTrue(!service.throttle(key("acme"), "acme"), "Shouldn't be ok with the third call");
+
+        Assert.isTrue(service.resetMethod("A#exportMethod") == 1, "Should reset the gauge of the method");
+        Assert.isTrue(service.throttle(export, "acme"), "Should be ok with an export call once reset");
+        Assert.isTrue(!service.throttle(key("acme"), "acme"), "Other methods shouldn't be reset");
+
+        Assert.isTrue(service.resetValue("acme") == 2, "Should reset the gauges of the value across methods");
+        Assert.isTrue(service.throttle(export, "acme"), "Should be ok with an export call once reset");
+        Assert.isTrue(service.throttle(key("acme"), "acme"), "Should be ok with a call once reset");
+        Assert.isTrue(service.resetValue("globex") == 0, "Should reset nothing for an unknown value");
+    }
+}
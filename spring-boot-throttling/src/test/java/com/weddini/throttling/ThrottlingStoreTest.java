@@ -0,0 +1,708 @@
+package com.weddini.throttling;
+
+import com.weddini.throttling.service.ThrottlingService;
+import com.weddini.throttling.service.ThrottlingServiceImpl;
+import com.weddini.throttling.store.InMemoryCounterTransport;
+import com.weddini.throttling.store.InMemoryThrottlingStore;
+import com.weddini.throttling.store.JdbcThrottlingStore;
+import com.weddini.throttling.store.RedisThrottlingStore;
+import com.weddini.throttling.store.ReplicatedThrottlingStore;
+import com.weddini.throttling.store.ShardedThrottlingStore;
+import com.weddini.throttling.store.StripedThrottlingStore;
+import com.weddini.throttling.store.ThrottlingPeerServer;
+import com.weddini.throttling.store.ThrottlingStore;
+import com.weddini.throttling.store.ThrottlingStoreException;
+import com.weddini.throttling.store.UdpCounterTransport;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.springframework.core.annotation.AnnotationUtils.findAnnotation;
+
+public class ThrottlingStoreTest {
+
+    static class A {
+        @Throttling(limit = 3, timeUnit = TimeUnit.MINUTES, type = ThrottlingType.SpEL, expression = "#p0")
+        public void testMethod(String user) {
+        }
+
+        @Throttling(limit = 1, mode = ThrottlingMode.CONCURRENCY, type = ThrottlingType.SpEL, expression = "#p0")
+        public void concurrentMethod(String user) {
+        }
+    }
+
+    @Test
+    public void testInMemoryThrottlingStore() {
+        ThrottlingStore store = new InMemoryThrottlingStore();
+        String[] keys = {"a:1000", "a:60000"};
+        int[] limits = {2, 3};
+        long[] windows = {1000, 60000};
+
+        ThrottlingDecision decision = store.acquire(keys, limits, windows, 1, 0);
+        Assert.isTrue(decision.isAllowed() && decision.getDelay() == 0, "first call should be allowed");
+        Assert.isTrue(decision.getRemaining() == 1 && decision.getLimit() == 2, "tightest window should be reported");
+
+        Assert.isTrue(store.acquire(keys, limits, windows, 1, 0).isAllowed(), "second call should be allowed");
+        decision = store.acquire(keys, limits, windows, 1, 0);
+        Assert.isTrue(!decision.isAllowed(), "third call within a second should be rejected");
+        Assert.isTrue(decision.getResetAt() > System.currentTimeMillis(), "rejected call should be retried later");
+
+        decision = store.acquire(keys, limits, windows, 1, 1000);
+        Assert.isTrue(decision.isAllowed() && decision.getDelay() > 0, "third call should be delayed within max wait");
+        Assert.isTrue(!store.acquire(keys, limits, windows, 1, 1000).isAllowed(),
+                "fourth call should be rejected by the minute window");
+
+        store.rollback(keys, limits, windows, 1);
+        Assert.isTrue(store.acquire(keys, limits, windows, 1, 1000).isAllowed(), "rolled back permit should be returned");
+    }
+
+    @Test
+    public void testRedisThrottlingStore() throws Exception {
+        try (RespServer server = new RespServer();
+             RedisThrottlingStore store = new RedisThrottlingStore("127.0.0.1", server.getPort())) {
+            String[] keys = {"b:60000"};
+            int[] limits = {100};
+            long[] windows = {60000};
+            // loads the script before the calls race for it
+            store.acquire(new String[]{"warmup:60000"}, limits, windows, 1, 0);
+
+            AtomicInteger allowed = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(8);
+            for (int t = 0; t < 8; t++) {
+                new Thread(() -> {
+                    for (int i = 0; i < 25; i++) {
+                        if (store.acquire(keys, limits, windows, 1, 0).isAllowed()) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }).start();
+            }
+            Assert.isTrue(done.await(10, TimeUnit.SECONDS), "pipelined calls should complete");
+            Assert.isTrue(allowed.get() == 100, "limit should be enforced atomically, but allowed " + allowed.get());
+            Assert.isTrue(server.evals.get() == 1, "script should be loaded once, then called by its SHA");
+
+            store.rollback(keys, limits, windows, 1);
+            ThrottlingDecision decision = store.acquire(keys, limits, windows, 1, 0);
+            Assert.isTrue(decision.isAllowed() && decision.getRemaining() == 0, "rolled back permit should be returned");
+        }
+    }
+
+    @Test
+    public void testRedisOutage() throws Exception {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0)) {
+            port = closed.getLocalPort();
+        }
+        try (RedisThrottlingStore store = new RedisThrottlingStore("127.0.0.1", port, 200)) {
+            String[] keys = {"c:60000"};
+            int[] limits = {1};
+            long[] windows = {60000};
+            Assert.isTrue(message(store, keys, limits, windows).startsWith("cannot connect"), "first call should try to connect");
+            Assert.isTrue(message(store, keys, limits, windows).contains("unavailable"),
+                    "next call should fail fast until the backoff elapses");
+        }
+    }
+
+    @Test
+    public void testStoreOutageReleasesPermits() throws Exception {
+        ThrottlingStore down = new ThrottlingStore() {
+            @Override
+            public ThrottlingDecision acquire(String[] keys, int[] limits, long[] windows, int permits, long maxWait) {
+                throw new ThrottlingStoreException("store is down");
+            }
+
+            @Override
+            public void rollback(String[] keys, int[] limits, long[] windows, int permits) {
+                throw new ThrottlingStoreException("store is down");
+            }
+        };
+        ThrottlingService service = new ThrottlingServiceImpl(100, null, Collections.emptyMap(), down);
+        Method concurrentMethod = A.class.getMethod("concurrentMethod", String.class);
+        Method rateMethod = A.class.getMethod("testMethod", String.class);
+        List<ThrottlingKey> keys = Arrays.asList(
+                ThrottlingKey.builder()
+                        .method(concurrentMethod)
+                        .annotation(findAnnotation(concurrentMethod, Throttling.class))
+                        .evaluatedValue("user")
+                        .build(),
+                ThrottlingKey.builder()
+                        .method(rateMethod)
+                        .annotation(findAnnotation(rateMethod, Throttling.class))
+                        .level(1)
+                        .evaluatedValue("user")
+                        .build());
+
+        for (int i = 0; i < 3; i++) {
+            Assert.isTrue(service.decide(keys, 0, 1).isAllowed(), "calls should be allowed while the store is down");
+            Assert.isTrue(service.reserve(keys, 0, 1) == 0, "calls should be allowed while the store is down");
+        }
+    }
+
+    private static String message(ThrottlingStore store, String[] keys, int[] limits, long[] windows) {
+        try {
+            store.acquire(keys, limits, windows, 1, 0);
+        } catch (ThrottlingStoreException e) {
+            return e.getMessage();
+        }
+        throw new IllegalStateException("call should fail while redis is down");
+    }
+
+    @Test
+    public void testSharedStore() throws Exception {
+        ThrottlingStore store = new InMemoryThrottlingStore();
+        ThrottlingService replica1 = new ThrottlingServiceImpl(100, null, Collections.emptyMap(), store);
+        ThrottlingService replica2 = new ThrottlingServiceImpl(100, null, Collections.emptyMap(), store);
+        Method method = A.class.getMethod("testMethod", String.class);
+        ThrottlingKey key = ThrottlingKey.builder()
+                .method(method)
+                .annotation(findAnnotation(method, Throttling.class))
+                .evaluatedValue("user")
+                .build();
+
+        Assert.isTrue(replica1.throttle(key, "user"), "first call should be allowed");
+        Assert.isTrue(replica2.throttle(key, "user"), "second call should be allowed");
+        Assert.isTrue(replica1.throttle(key, "user"), "third call should be allowed");
+        Assert.isTrue(!replica2.throttle(key, "user"), "limit should be shared by the replicas");
+    }
+
+    @Test
+    public void testLeasedThrottlingGauge() throws Exception {
+        ThrottlingStore store = new InMemoryThrottlingStore();
+        Method method = A.class.getMethod("testMethod", String.class);
+        ThrottlingKey key = ThrottlingKey.builder()
+                .method(method)
+                .annotation(findAnnotation(method, Throttling.class))
+                .evaluatedValue("user")
+                .build();
+        // leases are refilled on the calling thread
+        LeasedThrottlingGauge replica1 = new LeasedThrottlingGauge(store, key, 2, 60000, Runnable::run);
+        LeasedThrottlingGauge replica2 = new LeasedThrottlingGauge(store, key, 2, 60000, Runnable::run);
+
+        Assert.isTrue(replica1.throttle(), "first call should be allowed");
+        Assert.isTrue(replica1.getLeased() == 1, "first call should be served from a new lease");
+        Assert.isTrue(replica2.throttle(), "second call should lease what is left of the limit");
+        Assert.isTrue(replica2.getLeased() == 0, "lease should hold what is left of the limit");
+        Assert.isTrue(replica1.throttle(), "leased permits should be served locally");
+        Assert.isTrue(!replica1.throttle() && !replica2.throttle(), "limit should be enforced across the replicas");
+
+        replica1.rollback(1);
+        replica1.returnLease();
+        Assert.isTrue(replica1.getLeased() == 0, "unused permits should leave the lease");
+        Assert.isTrue(replica2.throttle(), "returned permits should be available to other replicas");
+    }
+
+    @Test
+    public void testLeaseExpiry() throws Exception {
+        ThrottlingStore store = new InMemoryThrottlingStore();
+        Method method = A.class.getMethod("testMethod", String.class);
+        ThrottlingKey key = ThrottlingKey.builder()
+                .method(method)
+                .annotation(findAnnotation(method, Throttling.class))
+                .evaluatedValue("user")
+                .build();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            LeasedThrottlingGauge replica1 = new LeasedThrottlingGauge(store, key, 3, 100, executor);
+            LeasedThrottlingGauge replica2 = new LeasedThrottlingGauge(store, key, 3, 100, Runnable::run);
+
+            Assert.isTrue(replica1.throttle(), "first call should be allowed by the store while the lease is taken");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (replica1.getLeased() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.isTrue(replica1.getLeased() > 0, "lease should be taken in the background");
+
+            // the key is not called on replica1 anymore
+            while (replica1.getLeased() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.isTrue(replica1.getLeased() == 0, "expired lease should be returned without a later call");
+            Assert.isTrue(replica2.throttle(), "returned permits should be available to other replicas");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReplicatedThrottlingStore() {
+        InMemoryCounterTransport transport1 = new InMemoryCounterTransport();
+        InMemoryCounterTransport transport2 = new InMemoryCounterTransport();
+        transport1.connect(transport2);
+        // counts are exchanged by the test only
+        try (ReplicatedThrottlingStore node1 = new ReplicatedThrottlingStore("node1", transport1, 3600000);
+             ReplicatedThrottlingStore node2 = new ReplicatedThrottlingStore("node2", transport2, 3600000)) {
+            String[] keys = {"c:3600000"};
+            int[] limits = {10};
+            long[] windows = {3600000};
+
+            for (int i = 0; i < 6; i++) {
+                Assert.isTrue(node1.acquire(keys, limits, windows, 1, 0).isAllowed(), "calls on node1 should be allowed");
+            }
+            ThrottlingDecision decision = node2.acquire(keys, limits, windows, 4, 0);
+            Assert.isTrue(decision.isAllowed() && decision.getRemaining() == 6,
+                    "node2 should only see its own calls before an exchange");
+
+            node1.replicate();
+            node2.replicate();
+            decision = node1.acquire(keys, limits, windows, 1, 0);
+            Assert.isTrue(!decision.isAllowed() && decision.getRemaining() == 0, "merged counts should reach the limit");
+            Assert.isTrue(!node2.acquire(keys, limits, windows, 1, 0).isAllowed(), "merged counts should reach the limit");
+
+            // duplicated batches are merged away
+            node1.replicate();
+            node1.replicate();
+            Assert.isTrue(!node2.acquire(keys, limits, windows, 1, 0).isAllowed(), "merges should be idempotent");
+
+            node2.rollback(keys, limits, windows, 2);
+            node2.replicate();
+            Assert.isTrue(node1.acquire(keys, limits, windows, 2, 0).isAllowed(), "rolled back permits should be replicated");
+            Assert.isTrue(!node1.acquire(keys, limits, windows, 1, 0).isAllowed(), "limit should be reached again");
+        }
+    }
+
+    @Test
+    public void testMalformedBatch() throws Exception {
+        InMemoryCounterTransport transport1 = new InMemoryCounterTransport();
+        InMemoryCounterTransport transport2 = new InMemoryCounterTransport();
+        transport1.connect(transport2);
+        try (ReplicatedThrottlingStore ignored = new ReplicatedThrottlingStore("node1", transport1, 3600000)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                out.writeByte(1);
+                out.writeUTF("node2");
+                out.writeInt(Integer.MAX_VALUE);
+            }
+            try {
+                transport2.send(bytes.toByteArray());
+                throw new IllegalStateException("batch of a corrupt size should be rejected");
+            } catch (IllegalArgumentException e) {
+                Assert.isTrue(e.getMessage().startsWith("malformed"), "batch should be rejected before its entries are allocated");
+            }
+        }
+    }
+
+    @Test
+    public void testUdpCounterTransport() throws Exception {
+        int[] ports = new int[4];
+        for (int i = 0; i < ports.length; i++) {
+            try (DatagramSocket free = new DatagramSocket(0)) {
+                ports[i] = free.getLocalPort();
+            }
+        }
+        byte[] secret = "secret".getBytes(StandardCharsets.UTF_8);
+        InetSocketAddress receiverAddress = new InetSocketAddress("127.0.0.1", ports[0]);
+        List<InetSocketAddress> peers = new ArrayList<>();
+        peers.add(new InetSocketAddress("127.0.0.1", ports[1]));
+        peers.add(new InetSocketAddress("127.0.0.1", ports[2]));
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        try (UdpCounterTransport receiver = new UdpCounterTransport(ports[0], peers, secret);
+             UdpCounterTransport peer = new UdpCounterTransport(ports[1], Collections.singletonList(receiverAddress), secret);
+             UdpCounterTransport forger = new UdpCounterTransport(ports[2], Collections.singletonList(receiverAddress),
+                     "guess".getBytes(StandardCharsets.UTF_8));
+             UdpCounterTransport stranger = new UdpCounterTransport(ports[3], Collections.singletonList(receiverAddress), secret)) {
+            receiver.receive(received::add);
+
+            forger.send(new byte[]{1});
+            stranger.send(new byte[]{2});
+            peer.send(new byte[]{3});
+
+            byte[] batch = received.poll(5, TimeUnit.SECONDS);
+            Assert.isTrue(batch != null && batch.length == 1 && batch[0] == 3, "batch of the peer should be received without its HMAC");
+            Assert.isTrue(received.poll(200, TimeUnit.MILLISECONDS) == null,
+                    "batches of an invalid HMAC or of another address should be dropped");
+        }
+    }
+
+    @Test
+    public void testJdbcThrottlingStore() throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:throttling;DB_CLOSE_DELAY=-1");
+        // permits are flushed by the test only
+        try (JdbcThrottlingStore node1 = new JdbcThrottlingStore(dataSource, "counters", 3600000, 200);
+             JdbcThrottlingStore node2 = new JdbcThrottlingStore(dataSource, "counters", 3600000, 200)) {
+            node1.createTable();
+            String[] keys = {"f:3600000"};
+            int[] limits = {10};
+            long[] windows = {3600000};
+
+            for (int i = 0; i < 6; i++) {
+                Assert.isTrue(node1.acquire(keys, limits, windows, 1, 0).isAllowed(), "calls on node1 should be allowed");
+            }
+            ThrottlingDecision decision = node2.acquire(keys, limits, windows, 4, 0);
+            Assert.isTrue(decision.isAllowed() && decision.getRemaining() == 6,
+                    "node2 should not see the permits of node1 before a flush");
+            node1.flush();
+            node2.flush();
+            try (Connection connection = dataSource.getConnection();
+                 ResultSet resultSet = connection.createStatement().executeQuery("SELECT COUNT(*), SUM(permits) FROM counters")) {
+                Assert.isTrue(resultSet.next() && resultSet.getInt(1) == 1 && resultSet.getLong(2) == 10,
+                        "permits of both nodes should be coalesced in a single row");
+            }
+            Assert.isTrue(!node2.acquire(keys, limits, windows, 1, 0).isAllowed(), "counts should be read back after a flush");
+
+            // the copy of node1 is older than the max staleness
+            Thread.sleep(250);
+            Assert.isTrue(!node1.acquire(keys, limits, windows, 1, 0).isAllowed(), "stale counts should be read again");
+
+            node2.rollback(keys, limits, windows, 2);
+            node2.flush();
+            Thread.sleep(250);
+            Assert.isTrue(node1.acquire(keys, limits, windows, 2, 0).isAllowed(), "rolled back permits should be written");
+            Assert.isTrue(!node1.acquire(keys, limits, windows, 1, 0).isAllowed(), "limit should be reached again");
+        }
+    }
+
+    @Test
+    public void testJdbcFailingRow() throws Exception {
+        JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:failing;DB_CLOSE_DELAY=-1");
+        try (JdbcThrottlingStore store = new JdbcThrottlingStore(failingInserts(h2, 13), "failing", 3600000, 200)) {
+            store.createTable();
+            char[] chars = new char[1000];
+            Arrays.fill(chars, 'k');
+            String[] longKey = {new String(chars)};
+            String[] failingKey = {"failing"};
+            int[] limits = {100};
+            long[] windows = {3600000};
+
+            Assert.isTrue(store.acquire(longKey, limits, windows, 1, 0).isAllowed(), "call of a long key should be allowed");
+            Assert.isTrue(store.acquire(failingKey, limits, windows, 13, 0).isAllowed(), "call of the failing key should be allowed");
+            store.flush();
+            try (Connection connection = h2.getConnection();
+                 ResultSet resultSet = connection.createStatement().executeQuery("SELECT COUNT(*), SUM(permits) FROM failing")) {
+                Assert.isTrue(resultSet.next() && resultSet.getInt(1) == 1 && resultSet.getLong(2) == 1,
+                        "row of the long key should be written despite the failing row");
+            }
+            Assert.isTrue(store.acquire(failingKey, limits, windows, 1, 0).getRemaining() == 86,
+                    "permits of the failing row should be kept for the next flush");
+        }
+    }
+
+    /**
+     * @return the data source failing the inserts of rows of the given permits
+     */
+    private static DataSource failingInserts(DataSource dataSource, long permits) {
+        ClassLoader classLoader = ThrottlingStoreTest.class.getClassLoader();
+        return (DataSource) Proxy.newProxyInstance(classLoader, new Class[]{DataSource.class}, (proxy, method, args) -> {
+            Object result = invoke(method, dataSource, args);
+            if (!method.getName().equals("getConnection")) {
+                return result;
+            }
+            return Proxy.newProxyInstance(classLoader, new Class[]{Connection.class}, (connection, connectionMethod, connectionArgs) -> {
+                Object statement = invoke(connectionMethod, result, connectionArgs);
+                if (!connectionMethod.getName().equals("prepareStatement") || !((String) connectionArgs[0]).startsWith("INSERT")) {
+                    return statement;
+                }
+                boolean[] failing = {false};
+                return Proxy.newProxyInstance(classLoader, new Class[]{PreparedStatement.class}, (insert, insertMethod, insertArgs) -> {
+                    if (insertMethod.getName().equals("setLong") && (Integer) insertArgs[0] == 3 && (Long) insertArgs[1] == permits) {
+                        failing[0] = true;
+                    }
+                    if (insertMethod.getName().startsWith("execute") && failing[0]) {
+                        throw new SQLException("failing row");
+                    }
+                    return invoke(insertMethod, statement, insertArgs);
+                });
+            });
+        });
+    }
+
+    private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void testAuthenticatedPeers() throws Exception {
+        byte[] secret = "secret".getBytes(StandardCharsets.UTF_8);
+        byte[] guess = "guess".getBytes(StandardCharsets.UTF_8);
+        InetSocketAddress loopback = new InetSocketAddress("127.0.0.1", 0);
+        try (ThrottlingPeerServer server0 = new ThrottlingPeerServer(loopback, new StripedThrottlingStore(), secret);
+             ThrottlingPeerServer server1 = new ThrottlingPeerServer(loopback, new StripedThrottlingStore(), secret);
+             ThrottlingPeerServer server2 = new ThrottlingPeerServer(loopback, new StripedThrottlingStore(), guess)) {
+            Map<String, InetSocketAddress> nodes = new HashMap<>();
+            nodes.put("node0", new InetSocketAddress("127.0.0.1", server0.getPort()));
+            nodes.put("node1", new InetSocketAddress("127.0.0.1", server1.getPort()));
+            ShardedThrottlingStore node0 = new ShardedThrottlingStore("node0", nodes, server0, 1000, secret);
+            Map<String, InetSocketAddress> intruderNodes = new HashMap<>(nodes);
+            intruderNodes.put("node0", new InetSocketAddress("127.0.0.1", server2.getPort()));
+            ShardedThrottlingStore intruder = new ShardedThrottlingStore("node0", intruderNodes, server2, 1000, guess);
+
+            String level = null;
+            for (int i = 0; level == null; i++) {
+                if (node0.owner("{f" + i + "}").equals("node1")) {
+                    level = "throttling:{f" + i + "}";
+                }
+            }
+            String[] keys = {level + ":60000"};
+            int[] limits = {1};
+            long[] windows = {60000};
+            Assert.isTrue(node0.acquire(keys, limits, windows, 1, 0).isAllowed(), "authenticated peer should be served");
+            try {
+                intruder.acquire(keys, limits, windows, 1, 0);
+                throw new IllegalStateException("peer of another secret shouldn't be served");
+            } catch (ThrottlingStoreException e) {
+                Assert.isTrue(e.getMessage().startsWith("WRONGPASS"), "peer should fail the challenge, but was " + e.getMessage());
+            }
+
+            try (Socket client = new Socket("127.0.0.1", server1.getPort())) {
+                client.setSoTimeout(5000);
+                client.getOutputStream().write("*1000000\r\n".getBytes(StandardCharsets.US_ASCII));
+                client.getOutputStream().flush();
+                Assert.isTrue(client.getInputStream().read() == -1, "command of too many arguments should close the connection");
+            }
+        }
+    }
+
+    @Test
+    public void testPeerServerRejectsMalformedCommands() throws Exception {
+        try (ThrottlingPeerServer server = new ThrottlingPeerServer(0, new InMemoryThrottlingStore());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            client.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+            String[][] commands = {
+                    {"THROTTLING.ACQUIRE", "0", "0", "throttling:{a}:60000", "1", "60000"},
+                    {"THROTTLING.ACQUIRE", "-5", "0", "throttling:{a}:60000", "1", "60000"},
+                    {"THROTTLING.ACQUIRE", "1", "0"},
+                    {"THROTTLING.ROLLBACK", "-1", "throttling:{a}:60000", "1", "60000"}
+            };
+            for (String[] command : commands) {
+                StringBuilder resp = new StringBuilder("*").append(command.length).append("\r\n");
+                for (String arg : command) {
+                    resp.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+                }
+                client.getOutputStream().write(resp.toString().getBytes(StandardCharsets.US_ASCII));
+                client.getOutputStream().flush();
+                String reply = in.readLine();
+                Assert.isTrue(reply.startsWith("-ERR"), "Should reject " + String.join(" ", command) + ", but was " + reply);
+            }
+            Assert.isTrue(server.getStore().acquire(new String[]{"throttling:{a}:60000"}, new int[]{1}, new long[]{60000}, 1, 0).isAllowed(),
+                    "Should leave the level untouched by rejected commands");
+        }
+    }
+
+    @Test
+    public void testShardedThrottlingStore() throws Exception {
+        ThrottlingPeerServer[] servers = new ThrottlingPeerServer[3];
+        Map<String, InetSocketAddress> nodes = new HashMap<>();
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new ThrottlingPeerServer(0, new InMemoryThrottlingStore());
+            nodes.put("node" + i, new InetSocketAddress("127.0.0.1", servers[i].getPort()));
+        }
+        ShardedThrottlingStore[] stores = new ShardedThrottlingStore[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            stores[i] = new ShardedThrottlingStore("node" + i, nodes, servers[i]);
+        }
+        try {
+            Map<String, Integer> owned = new HashMap<>();
+            for (int i = 0; i < 300; i++) {
+                String key = "throttling:{d" + i + "}:60000";
+                String owner = stores[0].owner(key);
+                Assert.isTrue(owner.equals(stores[1].owner(key)) && owner.equals(stores[2].owner(key)),
+                        "nodes should agree on the owner of a key");
+                owned.merge(owner, 1, Integer::sum);
+            }
+            Assert.isTrue(owned.size() == 3 && owned.values().stream().allMatch(n -> n > 50),
+                    "keys should be spread over the nodes, but got " + owned);
+
+            // a level owned by node1, called from all the nodes
+            String level = null;
+            for (int i = 0; level == null; i++) {
+                if (stores[0].owner("{e" + i + "}").equals("node1")) {
+                    level = "throttling:{e" + i + "}";
+                }
+            }
+            String[] keys = {level + ":1000", level + ":60000"};
+            int[] limits = {10, 3};
+            long[] windows = {1000, 60000};
+            Assert.isTrue(stores[0].acquire(keys, limits, windows, 1, 0).isAllowed(), "forwarded call should be allowed");
+            Assert.isTrue(stores[1].acquire(keys, limits, windows, 1, 0).isAllowed(), "local call should be allowed");
+            ThrottlingDecision decision = stores[2].acquire(keys, limits, windows, 1, 0);
+            Assert.isTrue(decision.isAllowed() && decision.getRemaining() == 0 && decision.getLimit() == 3,
+                    "owner should report the tightest window");
+            decision = stores[0].acquire(keys, limits, windows, 1, 0);
+            Assert.isTrue(!decision.isAllowed() && decision.getResetAt() > System.currentTimeMillis(),
+                    "limit should be enforced once by the owner");
+
+            stores[2].rollback(keys, limits, windows, 1);
+            Assert.isTrue(stores[0].acquire(keys, limits, windows, 1, 0).isAllowed(), "forwarded rollback should return the permit");
+        } finally {
+            for (ShardedThrottlingStore store : stores) {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * In-process stand-in for Redis: speaks RESP and runs the throttling scripts, recognized by their commands,
+     * with {@link InMemoryThrottlingStore}.
+     */
+    static class RespServer implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final InMemoryThrottlingStore store = new InMemoryThrottlingStore();
+        private final Map<String, Boolean> scripts = new ConcurrentHashMap<>();
+        private final AtomicInteger evals = new AtomicInteger();
+
+        RespServer() throws IOException {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        Thread client = new Thread(() -> serve(socket));
+                        client.setDaemon(true);
+                        client.start();
+                    }
+                } catch (IOException ignored) {
+                    // closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket) {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                for (; ; ) {
+                    List<String> command = readCommand(in);
+                    if (command == null) {
+                        return;
+                    }
+                    out.write(execute(command).getBytes(StandardCharsets.UTF_8));
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+            } catch (Exception ignored) {
+                // client gone
+            }
+        }
+
+        private String execute(List<String> command) throws Exception {
+            Boolean rollback;
+            if (command.get(0).equals("EVAL")) {
+                evals.incrementAndGet();
+                rollback = command.get(1).contains("'DEL'");
+                scripts.put(sha1(command.get(1)), rollback);
+            } else {
+                rollback = scripts.get(command.get(1));
+                if (rollback == null) {
+                    return "-NOSCRIPT No matching script.\r\n";
+                }
+            }
+
+            int n = Integer.parseInt(command.get(2));
+            String[] keys = command.subList(3, 3 + n).toArray(new String[n]);
+            int permits = Integer.parseInt(command.get(3 + n));
+            long maxWait = Long.parseLong(command.get(4 + n));
+            int[] limits = new int[n];
+            long[] windows = new long[n];
+            for (int i = 0; i < n; i++) {
+                limits[i] = Integer.parseInt(command.get(5 + n + i * 2));
+                windows[i] = Long.parseLong(command.get(6 + n + i * 2));
+            }
+            if (rollback) {
+                store.rollback(keys, limits, windows, permits);
+                return ":1\r\n";
+            }
+            ThrottlingDecision d = store.acquire(keys, limits, windows, permits, maxWait);
+            long resetAt = d.getResetAt() == Long.MAX_VALUE ? -1 : d.getResetAt();
+            return "*5\r\n:" + (d.isAllowed() ? 1 : 0) + "\r\n:" + d.getDelay() + "\r\n:" + d.getLimit() + "\r\n:"
+                    + d.getRemaining() + "\r\n:" + resetAt + "\r\n";
+        }
+
+        private static List<String> readCommand(InputStream in) throws IOException {
+            String header = readLine(in);
+            if (header == null) {
+                return null;
+            }
+            int n = Integer.parseInt(header.substring(1));
+            List<String> args = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                int length = Integer.parseInt(readLine(in).substring(1));
+                byte[] bytes = new byte[length];
+                int offset = 0;
+                while (offset < length) {
+                    offset += in.read(bytes, offset, length - offset);
+                }
+                readLine(in);
+                args.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return args;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c = in.read(); c != '\r'; c = in.read()) {
+                if (c == -1) {
+                    return null;
+                }
+                line.append((char) c);
+            }
+            in.read();
+            return line.toString();
+        }
+
+        private static String sha1(String script) throws Exception {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}